@@ -0,0 +1,199 @@
+package com.example.lab_bt;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Reusable view over the AD structures of a scan record. {@link #parse} only records
+ * offsets into the caller's array, nothing is copied until a getter that returns an
+ * object is called. Not thread-safe, keep one instance per scanning thread.
+ */
+public class AdvertisementData {
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32_COMPLETE = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+    public static final int TYPE_NAME_SHORT = 0x08;
+    public static final int TYPE_NAME_COMPLETE = 0x09;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    // Bluetooth base UUID 0000xxxx-0000-1000-8000-00805f9b34fb.
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private static final int MAX_UUID_LISTS = 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] record;
+    private int flags;
+    private int nameOffset;
+    private int nameLength;
+    private int manufacturerOffset;
+    private int manufacturerLength;
+
+    private final int[] uuidOffsets = new int[MAX_UUID_LISTS];
+    private final int[] uuidLengths = new int[MAX_UUID_LISTS];
+    private final int[] uuidWidths = new int[MAX_UUID_LISTS];
+    private int uuidLists;
+
+    /** Returns false when the record is malformed, whatever parsed up to there is kept. */
+    public boolean parse(byte[] record) {
+        this.record = record;
+        flags = -1;
+        nameLength = -1;
+        manufacturerLength = -1;
+        uuidLists = 0;
+        if (record == null) {
+            return false;
+        }
+
+        int position = 0;
+        while (position < record.length) {
+            int length = record[position] & 0xFF;
+            if (length == 0) {
+                return true;
+            }
+            int end = position + 1 + length;
+            if (end > record.length) {
+                return false;
+            }
+            int type = record[position + 1] & 0xFF;
+            int dataOffset = position + 2;
+            int dataLength = length - 1;
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (dataLength > 0) {
+                        flags = record[dataOffset] & 0xFF;
+                    }
+                    break;
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16_COMPLETE:
+                    addUuidList(dataOffset, dataLength, 2);
+                    break;
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32_COMPLETE:
+                    addUuidList(dataOffset, dataLength, 4);
+                    break;
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128_COMPLETE:
+                    addUuidList(dataOffset, dataLength, 16);
+                    break;
+                case TYPE_NAME_SHORT:
+                case TYPE_NAME_COMPLETE:
+                    // A complete name wins over a shortened one.
+                    if (nameLength < 0 || type == TYPE_NAME_COMPLETE) {
+                        nameOffset = dataOffset;
+                        nameLength = dataLength;
+                    }
+                    break;
+                case TYPE_MANUFACTURER_DATA:
+                    manufacturerOffset = dataOffset;
+                    manufacturerLength = dataLength;
+                    break;
+                default:
+                    break;
+            }
+            position = end;
+        }
+        return true;
+    }
+
+    private void addUuidList(int offset, int length, int width) {
+        if (uuidLists < MAX_UUID_LISTS) {
+            uuidOffsets[uuidLists] = offset;
+            uuidLengths[uuidLists] = length - length % width;
+            uuidWidths[uuidLists] = width;
+            uuidLists++;
+        }
+    }
+
+    /** -1 when the record has no flags structure. */
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasLocalName() {
+        return nameLength >= 0;
+    }
+
+    public String getLocalName() {
+        return nameLength < 0 ? null : new String(record, nameOffset, nameLength, UTF_8);
+    }
+
+    /** Compares the raw name bytes, {@code name} must be UTF-8 encoded. */
+    public boolean nameEquals(byte[] name) {
+        return nameLength == name.length && regionMatches(nameOffset, name);
+    }
+
+    public boolean nameStartsWith(byte[] prefix) {
+        return nameLength >= prefix.length && regionMatches(nameOffset, prefix);
+    }
+
+    private boolean regionMatches(int offset, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (record[offset + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** -1 when there is no manufacturer data. */
+    public int getManufacturerId() {
+        if (manufacturerLength < 2) {
+            return -1;
+        }
+        return (record[manufacturerOffset] & 0xFF) | (record[manufacturerOffset + 1] & 0xFF) << 8;
+    }
+
+    public int getManufacturerDataOffset() {
+        return manufacturerLength < 2 ? -1 : manufacturerOffset + 2;
+    }
+
+    public int getManufacturerDataLength() {
+        return manufacturerLength < 2 ? 0 : manufacturerLength - 2;
+    }
+
+    public byte[] getRecord() {
+        return record;
+    }
+
+    /**
+     * Checks the advertised service UUIDs, 16- and 32-bit ones are expanded against the
+     * Bluetooth base UUID.
+     */
+    public boolean hasServiceUuid(long msb, long lsb) {
+        boolean shortForm = lsb == BASE_UUID_LSB && (msb & 0xFFFFFFFFL) == BASE_UUID_MSB;
+        long shortValue = msb >>> 32;
+        for (int list = 0; list < uuidLists; list++) {
+            int offset = uuidOffsets[list];
+            int end = offset + uuidLengths[list];
+            int width = uuidWidths[list];
+            for (int i = offset; i < end; i += width) {
+                if (width == 16) {
+                    if (readLittleEndian(i + 8, 8) == msb && readLittleEndian(i, 8) == lsb) {
+                        return true;
+                    }
+                } else if (shortForm && readLittleEndian(i, width) == shortValue) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public boolean hasServiceUuid(UUID uuid) {
+        return hasServiceUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    private long readLittleEndian(int offset, int width) {
+        long value = 0;
+        for (int i = width - 1; i >= 0; i--) {
+            value = (value << 8) | (record[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,337 @@
+package com.example.lab_bt;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * App-wide record of which devices this phone may control: token, grant time and
+ * expiry per device. Entries live in an open-addressing table keyed by the packed
+ * address, so a lookup is a hash and a short probe with no allocation. Changes are
+ * written out together on a background thread shortly after the last one.
+ */
+public class AuthorizationStore {
+    private static final String TAG = AuthorizationStore.class.getName();
+    private static final String FILE = "authorizations.bin";
+    private static final int FILE_VERSION = 1;
+
+    /** Expiry of an authorization that never runs out. */
+    public static final long NEVER = 0;
+
+    private static final long EMPTY = -1;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long PERSIST_DELAY = 1000;
+
+    private static AuthorizationStore instance;
+
+    private final File file;
+    // Keeps a flush() and the scheduled write from sharing the temporary file.
+    private final Object fileLock = new Object();
+    // A daemon, it must not keep the process alive; flush() covers a deliberate exit.
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "AuthorizationStore");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private long[] addresses;
+    private long[] grantTimes;
+    private long[] expiries;
+    private byte[][] tokens;
+    private int size;
+    private boolean persistPending;
+
+    private final Runnable persistTask = new Runnable() {
+        @Override
+        public void run() {
+            persist();
+        }
+    };
+
+    public static synchronized AuthorizationStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new AuthorizationStore(new File(context.getApplicationContext()
+                    .getFilesDir(), FILE));
+        }
+        return instance;
+    }
+
+    AuthorizationStore(File file) {
+        this.file = file;
+        allocate(INITIAL_CAPACITY);
+        load();
+    }
+
+    private void allocate(int capacity) {
+        addresses = new long[capacity];
+        Arrays.fill(addresses, EMPTY);
+        grantTimes = new long[capacity];
+        expiries = new long[capacity];
+        tokens = new byte[capacity][];
+        size = 0;
+    }
+
+    private static int hash(long address) {
+        // Consecutive addresses from one vendor differ only in the low bits, spread them.
+        address ^= address >>> 33;
+        address *= 0xff51afd7ed558ccdL;
+        address ^= address >>> 33;
+        return (int) address;
+    }
+
+    private int slot(long address) {
+        int mask = addresses.length - 1;
+        int index = hash(address) & mask;
+        while (addresses[index] != EMPTY && addresses[index] != address) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    public synchronized boolean isAuthorized(long address, long now) {
+        int index = slot(address);
+        return addresses[index] != EMPTY && (expiries[index] == NEVER || expiries[index] > now);
+    }
+
+    public boolean isAuthorized(String address) {
+        return isAuthorized(MacAddress.pack(address), System.currentTimeMillis());
+    }
+
+    /** A copy of the token, null when the device has no authorization. */
+    public synchronized byte[] getToken(long address) {
+        int index = slot(address);
+        return addresses[index] == EMPTY ? null : tokens[index].clone();
+    }
+
+    /** -1 when the device has no authorization. */
+    public synchronized long getGrantTime(long address) {
+        int index = slot(address);
+        return addresses[index] == EMPTY ? -1 : grantTimes[index];
+    }
+
+    /** -1 when the device has no authorization. */
+    public synchronized long getExpiry(long address) {
+        int index = slot(address);
+        return addresses[index] == EMPTY ? -1 : expiries[index];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Keeps a copy of {@code token}. */
+    public synchronized void grant(long address, byte[] token, long grantTime, long expiry) {
+        put(address, token.clone(), grantTime, expiry);
+        schedulePersist();
+    }
+
+    /** Adds a whole key set with at most one resize and one write, returns how many. */
+    public synchronized int importKeys(Collection<KeyExchangeHandler.Key> keys, long grantTime) {
+        ensureCapacity(size + keys.size());
+        for (KeyExchangeHandler.Key key : keys) {
+            put(key.address, key.token, grantTime, key.expiry);
+        }
+        schedulePersist();
+        return keys.size();
+    }
+
+    /** Every authorization still valid at {@code now}, ready for a key hand-off. */
+    public synchronized List<KeyExchangeHandler.Key> exportKeys(long now) {
+        List<KeyExchangeHandler.Key> keys = new ArrayList<>(size);
+        for (int i = 0; i < addresses.length; i++) {
+            if (addresses[i] != EMPTY && (expiries[i] == NEVER || expiries[i] > now)) {
+                keys.add(new KeyExchangeHandler.Key(addresses[i], tokens[i], expiries[i]));
+            }
+        }
+        return keys;
+    }
+
+    public synchronized boolean revoke(long address) {
+        int index = slot(address);
+        if (addresses[index] == EMPTY) {
+            return false;
+        }
+        // Backward-shift deletion keeps every probe chain intact without tombstones.
+        int mask = addresses.length - 1;
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (addresses[next] != EMPTY) {
+            int home = hash(addresses[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        addresses[hole] = EMPTY;
+        tokens[hole] = null;
+        size--;
+        schedulePersist();
+        return true;
+    }
+
+    private void move(int from, int to) {
+        addresses[to] = addresses[from];
+        grantTimes[to] = grantTimes[from];
+        expiries[to] = expiries[from];
+        tokens[to] = tokens[from];
+    }
+
+    private void put(long address, byte[] token, long grantTime, long expiry) {
+        ensureCapacity(size + 1);
+        int index = slot(address);
+        if (addresses[index] == EMPTY) {
+            addresses[index] = address;
+            size++;
+        }
+        tokens[index] = token;
+        grantTimes[index] = grantTime;
+        expiries[index] = expiry;
+    }
+
+    // Keeps the load factor at or below one half so probe chains stay short.
+    private void ensureCapacity(int entries) {
+        int capacity = addresses.length;
+        while (entries * 2 > capacity) {
+            capacity *= 2;
+        }
+        if (capacity == addresses.length) {
+            return;
+        }
+        long[] oldAddresses = addresses;
+        long[] oldGrantTimes = grantTimes;
+        long[] oldExpiries = expiries;
+        byte[][] oldTokens = tokens;
+        allocate(capacity);
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] != EMPTY) {
+                int index = slot(oldAddresses[i]);
+                addresses[index] = oldAddresses[i];
+                grantTimes[index] = oldGrantTimes[i];
+                expiries[index] = oldExpiries[i];
+                tokens[index] = oldTokens[i];
+                size++;
+            }
+        }
+    }
+
+    private void schedulePersist() {
+        if (!persistPending) {
+            persistPending = true;
+            executor.schedule(persistTask, PERSIST_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Writes pending changes now, on the caller's thread. */
+    public void flush() {
+        persist();
+    }
+
+    private void persist() {
+        synchronized (fileLock) {
+            write();
+        }
+    }
+
+    private void write() {
+        List<KeyExchangeHandler.Key> keys;
+        long[] grants;
+        synchronized (this) {
+            persistPending = false;
+            keys = new ArrayList<>(size);
+            grants = new long[size];
+            for (int i = 0; i < addresses.length; i++) {
+                if (addresses[i] != EMPTY) {
+                    grants[keys.size()] = grantTimes[i];
+                    keys.add(new KeyExchangeHandler.Key(addresses[i], tokens[i], expiries[i]));
+                }
+            }
+        }
+
+        // Written next to the real file and renamed over it, a crash leaves the old copy.
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                KeyExchangeHandler.Key key = keys.get(i);
+                out.writeLong(key.address);
+                out.writeLong(grants[i]);
+                out.writeLong(key.expiry);
+                out.writeByte(key.token.length);
+                out.write(key.token);
+            }
+            out.close();
+            out = null;
+            if (!temporary.renameTo(file)) {
+                Log.w(TAG, "Unable to replace " + file + ".");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save authorizations.", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to close " + temporary + ".", e);
+                }
+            }
+        }
+    }
+
+    private void load() {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (in.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Unknown authorization file version, starting empty.");
+                return;
+            }
+            int count = in.readInt();
+            ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                long address = in.readLong();
+                long grantTime = in.readLong();
+                long expiry = in.readLong();
+                byte[] token = new byte[in.readUnsignedByte()];
+                in.readFully(token);
+                put(address, token, grantTime, expiry);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Authorization file is damaged, kept " + size + " entries.", e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close " + file + ".", e);
+            }
+        }
+    }
+}
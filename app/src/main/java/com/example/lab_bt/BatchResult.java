@@ -0,0 +1,85 @@
+package com.example.lab_bt;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Outcome of {@link BluetoothLeService#sendBatch}: the status and latency of every
+ * addressed device plus the time until the last of them finished.
+ */
+public class BatchResult {
+    public interface Callback {
+        void onComplete(BatchResult result);
+    }
+
+    private final long startTime = SystemClock.elapsedRealtime();
+    private final Map<String, Integer> statuses = new HashMap<>();
+    private final Map<String, Long> latencies = new HashMap<>();
+    private final Callback callback;
+
+    private int remaining;
+    private long elapsed;
+
+    BatchResult(int deviceCount, Callback callback) {
+        this.remaining = deviceCount;
+        this.callback = callback;
+    }
+
+    void complete(String address, int status) {
+        boolean done;
+        synchronized (this) {
+            if (statuses.containsKey(address)) {
+                return;
+            }
+            long latency = SystemClock.elapsedRealtime() - startTime;
+            statuses.put(address, status);
+            latencies.put(address, latency);
+            done = --remaining == 0;
+            if (done) {
+                elapsed = latency;
+            }
+        }
+        if (done && callback != null) {
+            callback.onComplete(this);
+        }
+    }
+
+    public synchronized Map<String, Integer> getStatuses() {
+        return Collections.unmodifiableMap(new HashMap<>(statuses));
+    }
+
+    public synchronized Map<String, Long> getLatencies() {
+        return Collections.unmodifiableMap(new HashMap<>(latencies));
+    }
+
+    public synchronized int getSuccessCount() {
+        int count = 0;
+        for (int status : statuses.values()) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized long getMaxLatency() {
+        long max = 0;
+        for (long latency : latencies.values()) {
+            max = Math.max(max, latency);
+        }
+        return max;
+    }
+
+    /** Time from submission until the last device completed. */
+    public synchronized long getElapsed() {
+        return elapsed;
+    }
+
+    public synchronized boolean isDone() {
+        return remaining == 0;
+    }
+}
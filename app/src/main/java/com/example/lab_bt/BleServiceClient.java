@@ -0,0 +1,115 @@
+package com.example.lab_bt;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * Binds to {@link BluetoothLeService} and holds one device for a screen: {@link #attach}
+ * in onCreate, {@link #detach} in onDestroy. The service keeps the link through the
+ * screen being recreated, so attaching again is mostly the cost of binding.
+ */
+public class BleServiceClient {
+    private static final String TAG = BleServiceClient.class.getName();
+
+    public interface Callback {
+        /** The service is bound, initialized and holds the device. */
+        void onAttached(BluetoothLeService service);
+
+        void onAttachFailed();
+    }
+
+    private final Context context;
+    private final String address;
+    private final GattListener listener;
+    private final Handler handler;
+    private final Callback callback;
+
+    private BluetoothLeService.LocalBinder binder;
+    private BluetoothLeService service;
+    private boolean bound;
+    private long attachTime;
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
+            BluetoothLeService.LocalBinder localBinder = (BluetoothLeService.LocalBinder) iBinder;
+            BluetoothLeService bluetoothLeService = localBinder.getService();
+            if (!bluetoothLeService.initialize()) {
+                Log.e(TAG, "Unable to initialize BluetoothLeService.");
+                callback.onAttachFailed();
+                return;
+            }
+            localBinder.registerListener(listener, handler);
+            if (!bluetoothLeService.acquire(address, attachTime)) {
+                Log.e(TAG, "Unable to connect " + address + ".");
+                localBinder.unregisterListener(listener);
+                callback.onAttachFailed();
+                return;
+            }
+            binder = localBinder;
+            service = bluetoothLeService;
+            callback.onAttached(bluetoothLeService);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            binder = null;
+            service = null;
+        }
+    };
+
+    /**
+     * @param listener receives the service's events, on {@code handler}'s thread or on
+     *                 the GATT thread when it is null
+     */
+    public BleServiceClient(Context context, String address, GattListener listener,
+                            Handler handler, Callback callback) {
+        this.context = context;
+        this.address = address;
+        this.listener = listener;
+        this.handler = handler;
+        this.callback = callback;
+    }
+
+    public void attach() {
+        if (bound) {
+            return;
+        }
+        attachTime = Metrics.now();
+        bound = context.bindService(new Intent(context, BluetoothLeService.class),
+                serviceConnection, Context.BIND_AUTO_CREATE);
+        if (!bound) {
+            Log.e(TAG, "Unable to bind BluetoothLeService.");
+            callback.onAttachFailed();
+        }
+    }
+
+    /** Lets go of the device, the service drops it after its idle timeout. */
+    public void detach() {
+        if (!bound) {
+            return;
+        }
+        if (service != null) {
+            binder.unregisterListener(listener);
+            service.release(address);
+            binder = null;
+            service = null;
+        }
+        context.unbindService(serviceConnection);
+        bound = false;
+    }
+
+    /** Null until attached. */
+    public BluetoothLeService getService() {
+        return service;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+}
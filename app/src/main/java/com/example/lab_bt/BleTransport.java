@@ -0,0 +1,277 @@
+package com.example.lab_bt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/** {@link Link}s over Android's GATT client. */
+public class BleTransport implements LinkTransport {
+    private static final String TAG = BleTransport.class.getName();
+
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final int MAX_MTU = 517;
+
+    private final Context context;
+    private final BluetoothAdapter adapter;
+
+    public BleTransport(Context context, BluetoothAdapter adapter) {
+        this.context = context;
+        this.adapter = adapter;
+    }
+
+    @Override
+    public Link connect(String address, boolean autoConnect, Link.Callback callback) {
+        BluetoothDevice device = adapter.getRemoteDevice(address);
+        if (device == null) {
+            return null;
+        }
+        BleLink link = new BleLink(address, callback);
+        BluetoothGatt gatt = device.connectGatt(context, autoConnect, link.gattCallback);
+        if (gatt == null) {
+            return null;
+        }
+        link.setGatt(gatt);
+        return link;
+    }
+
+    private static class BleLink implements Link {
+        private final String address;
+        private final Link.Callback callback;
+        private final Map<UUID, BluetoothGattCharacteristic> handles = new HashMap<>();
+        private volatile BluetoothGatt gatt;
+        // GATT answers one request at a time, this is the token of the last one issued.
+        private volatile int token;
+
+        private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+                setGatt(gatt);
+                if (newState == BluetoothProfile.STATE_CONNECTED) {
+                    callback.onConnected(BleLink.this);
+                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    callback.onDisconnected(BleLink.this, status);
+                }
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    setHandles(gatt);
+                }
+                callback.onServicesDiscovered(BleLink.this, status);
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt,
+                                                BluetoothGattCharacteristic characteristic) {
+                byte[] value = characteristic.getValue();
+                if (value != null) {
+                    callback.onCharacteristicChanged(BleLink.this, characteristic.getUuid(),
+                            value);
+                }
+            }
+
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt,
+                                             BluetoothGattCharacteristic characteristic,
+                                             int status) {
+                callback.onCharacteristicRead(BleLink.this, characteristic.getUuid(),
+                        characteristic.getValue(), status, token);
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt,
+                                              BluetoothGattCharacteristic characteristic,
+                                              int status) {
+                callback.onCharacteristicWrite(BleLink.this, characteristic.getUuid(), status,
+                        token);
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                          int status) {
+                callback.onNotificationChanged(BleLink.this,
+                        descriptor.getCharacteristic().getUuid(), status, token);
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                callback.onMtuChanged(BleLink.this, mtu, status, token);
+            }
+        };
+
+        BleLink(String address, Link.Callback callback) {
+            this.address = address;
+            this.callback = callback;
+        }
+
+        void setGatt(BluetoothGatt gatt) {
+            this.gatt = gatt;
+        }
+
+        private synchronized void setHandles(BluetoothGatt gatt) {
+            handles.clear();
+            for (BluetoothGattService service : gatt.getServices()) {
+                for (BluetoothGattCharacteristic c : service.getCharacteristics()) {
+                    if (!handles.containsKey(c.getUuid())) {
+                        handles.put(c.getUuid(), c);
+                    }
+                }
+            }
+        }
+
+        private synchronized BluetoothGattCharacteristic resolve(UUID charUuid) {
+            return handles.get(charUuid);
+        }
+
+        // The answer can arrive before the request returns, so the token is set first.
+        private int swapToken(int token) {
+            int previous = this.token;
+            this.token = token;
+            return previous;
+        }
+
+        // A request the stack refused gets no answer, an older one still may.
+        private boolean restoreUnless(boolean issued, int previous) {
+            if (!issued) {
+                token = previous;
+            }
+            return issued;
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return gatt.discoverServices();
+        }
+
+        @Override
+        public synchronized Collection<UUID> getCharacteristics() {
+            return new ArrayList<>(handles.keySet());
+        }
+
+        @Override
+        public UUID getServiceUuid(UUID charUuid) {
+            BluetoothGattCharacteristic characteristic = resolve(charUuid);
+            return characteristic == null ? null : characteristic.getService().getUuid();
+        }
+
+        @Override
+        public int getProperties(UUID charUuid) {
+            BluetoothGattCharacteristic characteristic = resolve(charUuid);
+            return characteristic == null ? -1 : characteristic.getProperties();
+        }
+
+        @Override
+        public boolean read(UUID charUuid, int token) {
+            BluetoothGattCharacteristic characteristic = resolve(charUuid);
+            if (characteristic == null) {
+                return false;
+            }
+            int previous = swapToken(token);
+            return restoreUnless(gatt.readCharacteristic(characteristic), previous);
+        }
+
+        @Override
+        public boolean write(UUID charUuid, byte[] value, int writeType, int token) {
+            BluetoothGattCharacteristic characteristic = resolve(charUuid);
+            if (characteristic == null) {
+                return false;
+            }
+            if (writeType != 0) {
+                characteristic.setWriteType(writeType);
+            }
+            characteristic.setValue(value);
+            int previous = swapToken(token);
+            return restoreUnless(gatt.writeCharacteristic(characteristic), previous);
+        }
+
+        @Override
+        public boolean setNotification(UUID charUuid, boolean enable, int token) {
+            BluetoothGattCharacteristic characteristic = resolve(charUuid);
+            if (characteristic == null
+                    || !gatt.setCharacteristicNotification(characteristic, enable)) {
+                return false;
+            }
+            BluetoothGattDescriptor descriptor =
+                    characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+            if (descriptor == null) {
+                Log.w(TAG, "No client configuration for " + charUuid + " on " + address + ".");
+                return false;
+            }
+            descriptor.setValue(enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                    : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            int previous = swapToken(token);
+            return restoreUnless(gatt.writeDescriptor(descriptor), previous);
+        }
+
+        @Override
+        public int getMaxMtu() {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? MAX_MTU
+                    : ThroughputProfile.DEFAULT_MTU;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu, int token) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                return false;
+            }
+            int previous = swapToken(token);
+            return restoreUnless(gatt.requestMtu(mtu), previous);
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                // Older stacks only know the balanced interval.
+                return priority == CONNECTION_PRIORITY_BALANCED;
+            }
+            return gatt.requestConnectionPriority(priority);
+        }
+
+        /** Drops the stack's own attribute cache through the hidden BluetoothGatt.refresh(). */
+        @Override
+        public boolean refresh() {
+            try {
+                Method refresh = gatt.getClass().getMethod("refresh");
+                return (Boolean) refresh.invoke(gatt);
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to refresh GATT cache.", e);
+                return false;
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            gatt.disconnect();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                handles.clear();
+            }
+            gatt.close();
+        }
+    }
+}
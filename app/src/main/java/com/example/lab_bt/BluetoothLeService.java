@@ -1,19 +1,34 @@
 package com.example.lab_bt;
 
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 
 public class BluetoothLeService extends Service {
@@ -31,70 +46,429 @@ public class BluetoothLeService extends Service {
     public static final String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
 
-    private BluetoothAdapter bluetoothAdapter;
-    private BluetoothGatt bluetoothGatt;
+    public static final int DEFAULT_MAX_CONCURRENT_CONNECTS = 3;
+
+    public static final int STREAM_CAPACITY = 1024;
+
+    /** How long a device no screen holds stays connected, in milliseconds. */
+    public static final long DEFAULT_IDLE_TIMEOUT = 120000;
+    /** Idle timeout that keeps released devices connected until disconnected. */
+    public static final long IDLE_TIMEOUT_NEVER = -1;
+
+    private static final int NOTIFICATION_ID = 1;
+
+    private static final long BACKOFF_BASE = 500;
+    private static final long BACKOFF_MAX = 30000;
+    // Devices seen this recently are reconnected directly instead of with autoConnect.
+    private static final long RECENTLY_SEEN = 60000;
+
+    private static final UUID HM10_SERVICE = UUID.fromString(GattAttribute.HM10_SERVICE);
+    private static final UUID HM10_CHARACTERISTIC =
+            UUID.fromString(GattAttribute.HM10_CHARACTERISTIC);
+
+    private LinkTransport transport;
+
+    // Every callback, timeout and state change of the service runs on this thread.
+    private HandlerThread gattThread;
+    private Handler handler;
+    private Link.Callback linkDispatcher;
+
+    private final Map<String, DeviceConnection> connections = new HashMap<>();
+    private final ArrayDeque<DeviceConnection> connectQueue = new ArrayDeque<>();
+    private int connectingCount;
+    private int maxConcurrentConnects = DEFAULT_MAX_CONCURRENT_CONNECTS;
+    private long writeDebounce = WriteCoalescer.DEFAULT_DEBOUNCE;
+    private ThroughputProfile defaultProfile = ThroughputProfile.BALANCED;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    // Devices shown in the foreground notification, 0 while the service is not started.
+    private int foregroundCount;
+    private final Random random = new Random();
+
+    private final GattEventBus eventBus = new GattEventBus();
+    private GattListener broadcastListener;
+
+    private GattCache gattCache;
+    private EventLog eventLog;
+    private AuthorizationStore authorizationStore;
+
+    private final DeviceStateCache.Listener stateListener = new DeviceStateCache.Listener() {
+        @Override
+        public void onLedStateChanged(String address, int led, boolean pending) {
+            eventBus.postLedState(address, led, pending);
+        }
+
+        @Override
+        public void onPendingTimeout(String address) {
+            Log.w(TAG, "LED command to " + address + " unanswered, querying state.");
+            sendCommand(address, FrameCodec.CMD_QUERY, null);
+        }
+    };
+    private DeviceStateCache stateCache;
 
     private final Binder binder = new LocalBinder();
 
     public BluetoothLeService() {
     }
 
-    private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        gattThread = new HandlerThread("GattThread", Process.THREAD_PRIORITY_FOREGROUND);
+        gattThread.start();
+        handler = new Handler(gattThread.getLooper());
+        linkDispatcher = new HandlerLinkCallback(new HandlerScheduler(handler), linkCallback);
+        stateCache = new DeviceStateCache(handler, stateListener);
+        authorizationStore = AuthorizationStore.getInstance(this);
+        gattCache = new GattCache(this);
+        try {
+            eventLog = new EventLog(new File(getFilesDir(), "events"));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the event log.", e);
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // The links die with the process, a restarted service would have nothing to keep.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        disconnectAll();
+        gattThread.quitSafely();
+        if (eventLog != null) {
+            eventLog.close();
+        }
+    }
+
+    /** Null when the log could not be opened. */
+    public EventLog getEventLog() {
+        return eventLog;
+    }
+
+    private void logEvent(DeviceConnection connection, int type, byte[] payload, int length) {
+        if (eventLog != null) {
+            eventLog.append(System.currentTimeMillis(), connection.getPackedAddress(), type,
+                    payload, 0, length);
+        }
+    }
+
+    private final Link.Callback linkCallback = new Link.Callback() {
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICE_DISCOVERED);
-                Log.i(TAG, "GATT services discovered.");
+        public void onServicesDiscovered(Link link, int status) {
+            DeviceConnection connection = getConnection(link);
+            if (connection == null) {
+                return;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "GATT service discovery failed on " + connection.getAddress() + ".");
+                link.disconnect();
+                return;
+            }
+
+            Log.i(TAG, "GATT services discovered on " + connection.getAddress() + ".");
+            boolean hasHm10 = link.getProperties(HM10_CHARACTERISTIC) >= 0;
+            if (!hasHm10 && connection.isLayoutCached()) {
+                // The cache promised this device, the stack's own cache is probably stale.
+                Log.w(TAG, "Cached layout of " + connection.getAddress() + " not found, "
+                        + "rediscovering.");
+                gattCache.invalidate(connection.getAddress());
+                connection.setLayoutCached(false);
+                link.refresh();
+                link.discoverServices();
+                return;
+            }
+            if (!gattCache.update(connection.getAddress(), link)) {
+                Log.i(TAG, "GATT layout of " + connection.getAddress() + " updated.");
+            }
+
+            if (hasHm10) {
+                // Ahead of writes held while the link was down, or their answers are lost.
+                connection.getQueue().submitFirst(
+                        GattOperation.setNotification(HM10_CHARACTERISTIC, true, null));
+            }
+            connection.getQueue().attach(link);
+            applyProfile(connection);
+            synchronized (BluetoothLeService.this) {
+                connection.setState(DeviceConnection.State.READY);
+                connection.markReady(SystemClock.elapsedRealtime());
+            }
+            long now = Metrics.now();
+            connection.markDiscovered(now);
+            connection.markAttachReady(now);
+            if (connection.getReconnectCount() > 0) {
+                Log.i(TAG, connection.getAddress() + " ready " + connection.getLastReconnectTime()
+                        + " ms after losing the link.");
             }
+            eventBus.postServicesDiscovered(connection.getAddress());
+            // Whatever happened while the link was down, the board knows best.
+            sendCommand(connection.getAddress(), FrameCodec.CMD_QUERY, null);
+        }
+
+        @Override
+        public void onConnected(Link link) {
+            DeviceConnection connection = getConnection(link);
+            if (connection == null) {
+                return;
+            }
+            Log.i(TAG, "GATT server " + connection.getAddress() + " connected.");
+            connection.markConnected(Metrics.now());
+            releaseConnectSlot(connection);
+            synchronized (BluetoothLeService.this) {
+                connection.setState(DeviceConnection.State.DISCOVERING);
+                connection.setLastSeenTime(SystemClock.elapsedRealtime());
+            }
+            logEvent(connection, EventLog.TYPE_CONNECTED, null, 0);
+            eventBus.postConnectionState(connection.getAddress(),
+                    BluetoothProfile.STATE_CONNECTED);
+            link.discoverServices();
+        }
+
+        @Override
+        public void onDisconnected(Link link, int status) {
+            DeviceConnection connection = getConnection(link);
+            if (connection == null) {
+                return;
+            }
+            Log.i(TAG, "GATT server " + connection.getAddress() + " disconnected, status "
+                    + status + ".");
+            synchronized (BluetoothLeService.this) {
+                if (connection.getState() != DeviceConnection.State.CONNECTING) {
+                    connection.setLastSeenTime(SystemClock.elapsedRealtime());
+                }
+            }
+            connection.getMetrics().recordDisconnected();
+            releaseConnectSlot(connection);
+            closeConnection(connection);
+            stateCache.onDisconnected(connection.getAddress());
+            logEvent(connection, EventLog.TYPE_DISCONNECTED, new byte[]{(byte) status}, 1);
+            eventBus.postConnectionState(connection.getAddress(),
+                    BluetoothProfile.STATE_DISCONNECTED);
+            scheduleReconnect(connection);
+        }
+
+        @Override
+        public void onCharacteristicChanged(Link link, UUID charUuid, byte[] value) {
+            postData(link, value, true);
         }
 
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.i(TAG, "GATT server connected.");
-                broadcastUpdate(ACTION_GATT_CONNECTED);
-                Log.i(TAG, "Start discovering GATT services.");
-                gatt.discoverServices();
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.i(TAG, "GATT server disconnected.");
-                broadcastUpdate(ACTION_GATT_DISCONNECTED);
+        public void onCharacteristicRead(Link link, UUID charUuid, byte[] value, int status,
+                                         int token) {
+            if (status == BluetoothGatt.GATT_SUCCESS && value != null) {
+                Log.i(TAG, "GATT characteristic " + charUuid + " read, " + value.length
+                        + " bytes.");
+                postData(link, value, false);
             }
+            completeOperation(link, GattOperation.Type.READ, status, token);
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void onCharacteristicWrite(Link link, UUID charUuid, int status, int token) {
+            completeOperation(link, GattOperation.Type.WRITE, status, token);
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
+        public void onNotificationChanged(Link link, UUID charUuid, int status, int token) {
+            completeOperation(link, GattOperation.Type.SET_NOTIFICATION, status, token);
+        }
+
+        @Override
+        public void onMtuChanged(Link link, int mtu, int status, int token) {
+            DeviceConnection connection = getConnection(link);
+            if (connection == null) {
+                return;
+            }
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.i(TAG, "GATT characteristic read: " + characteristic.getStringValue(0));
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                connection.setMtu(mtu);
+                Log.i(TAG, "MTU of " + connection.getAddress() + " is " + mtu + ".");
             }
+            completeOperation(link, GattOperation.Type.REQUEST_MTU, status, token);
         }
     };
 
-    void broadcastUpdate(String action) {
-        Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    // Callbacks of a link that was already replaced are dropped. The first ones may
+    // arrive before connect() has stored the link.
+    private synchronized DeviceConnection getConnection(Link link) {
+        DeviceConnection connection = connections.get(link.getAddress());
+        if (connection == null) {
+            return null;
+        }
+        Link current = connection.getLink();
+        return current == null || current == link ? connection : null;
+    }
+
+    public synchronized DeviceConnection getConnection(String address) {
+        return connections.get(address);
+    }
+
+    private void completeOperation(Link link, GattOperation.Type type, int status,
+                                   int token) {
+        DeviceConnection connection = getConnection(link);
+        if (connection == null) {
+            return;
+        }
+        long latency = type == GattOperation.Type.WRITE
+                ? connection.consumeFirstWrite(SystemClock.elapsedRealtime()) : -1;
+        if (latency >= 0 && status == BluetoothGatt.GATT_SUCCESS) {
+            connection.getMetrics().recordFirstWrite(latency * 1000,
+                    connection.isLayoutCached());
+            Log.i(TAG, "First write to " + connection.getAddress() + " " + latency
+                    + " ms after connect, layout cached: " + connection.isLayoutCached());
+        } else if (latency >= 0 && connection.isLayoutCached()) {
+            // It was queued on the strength of the cached layout, which may be stale.
+            Log.w(TAG, "Early write to " + connection.getAddress() + " failed, dropping "
+                    + "its cached layout.");
+            gattCache.invalidate(connection.getAddress());
+            connection.setLayoutCached(false);
+        }
+        connection.getQueue().onComplete(type, status, token);
+    }
+
+    private void postData(Link link, byte[] value, boolean notification) {
+        DeviceConnection connection = getConnection(link);
+        if (connection == null) {
+            return;
+        }
+        if (notification) {
+            connection.getMetrics().recordNotification(value.length, Metrics.now());
+        }
+        logEvent(connection, EventLog.TYPE_NOTIFICATION, value, value.length);
+        connection.getFrameDecoder().feed(value, 0, value.length);
+        NotificationRingBuffer streamBuffer = connection.getStreamBuffer();
+        if (streamBuffer != null) {
+            if (value.length > streamBuffer.getSlotSize()) {
+                connection.getMetrics().recordStreamLoss(false);
+            }
+            if (!streamBuffer.offer(SystemClock.elapsedRealtimeNanos(), value, value.length)) {
+                connection.getMetrics().recordStreamLoss(true);
+            }
+        } else {
+            eventBus.postData(connection.getAddress(), value, value.length);
+        }
+    }
+
+    // Frames the service itself cares about, listeners still get the raw notifications.
+    private void processFrame(DeviceConnection connection, int command, int sequence,
+                              byte[] payload, int length) {
+        switch (command) {
+            case FrameCodec.EVT_ACK:
+                if (length >= 1) {
+                    if (payload[0] != FrameCodec.ACK_OK) {
+                        Log.w(TAG, "Command " + sequence + " to " + connection.getAddress()
+                                + " failed with " + payload[0] + ".");
+                    }
+                    stateCache.onAck(connection.getAddress(), sequence, payload[0]);
+                }
+                break;
+            case FrameCodec.EVT_LED_STATE:
+                if (length >= 1) {
+                    int led = payload[0] != 0 ? DeviceStateCache.LED_ON : DeviceStateCache.LED_OFF;
+                    logEvent(connection, EventLog.TYPE_LED_STATE, payload, 1);
+                    stateCache.onLedState(connection.getAddress(), led);
+                }
+                break;
+            case FrameCodec.EVT_AUTH:
+                // The payload is the token the board will ask for next time.
+                authorizationStore.grant(connection.getPackedAddress(),
+                        Arrays.copyOf(payload, length), System.currentTimeMillis(),
+                        AuthorizationStore.NEVER);
+                Log.d(TAG, connection.getAddress() + " authorized.");
+                eventBus.postAuthorization(connection.getAddress(), true);
+                break;
+            case FrameCodec.EVT_READY:
+                eventBus.postAuthorization(connection.getAddress(),
+                        authorizationStore.isAuthorized(connection.getPackedAddress(),
+                                System.currentTimeMillis()));
+                break;
+            default:
+                break;
+        }
     }
 
-    void broadcastUpdate(String action, BluetoothGattCharacteristic characteristic) {
-        Intent intent = new Intent(action);
+    /**
+     * Republishes events as the {@code ACTION_*} broadcasts for receivers that have
+     * not moved to {@link GattListener} yet.
+     */
+    public synchronized void setLegacyBroadcastsEnabled(boolean enabled) {
+        if (enabled && broadcastListener == null) {
+            broadcastListener = new BroadcastGattListener(this);
+            eventBus.register(broadcastListener, handler);
+        } else if (!enabled && broadcastListener != null) {
+            eventBus.unregister(broadcastListener);
+            broadcastListener = null;
+        }
+    }
 
-        String value = characteristic.getStringValue(0);
-        intent.putExtra(EXTRA_DATA, value);
+    /**
+     * How long coalesced commands such as {@link #setLed} wait for a newer value
+     * before they are written, 0 writes as soon as the link is free.
+     */
+    public void setWriteDebounce(long debounce) {
+        List<DeviceConnection> current;
+        synchronized (this) {
+            writeDebounce = debounce;
+            current = new ArrayList<>(connections.values());
+        }
+        for (DeviceConnection connection : current) {
+            for (WriteCoalescer coalescer : connection.getCoalescers()) {
+                coalescer.setDebounce(debounce);
+            }
+        }
+    }
 
-        sendBroadcast(intent);
+    /** Profile for devices connected from now on. */
+    public synchronized void setDefaultThroughputProfile(ThroughputProfile profile) {
+        defaultProfile = profile;
+    }
+
+    /** Switches a device's profile, a ready connection renegotiates right away. */
+    public boolean setThroughputProfile(String address, ThroughputProfile profile) {
+        DeviceConnection connection = getConnection(address);
+        if (connection == null) {
+            return false;
+        }
+        connection.setProfile(profile);
+        if (connection.getState() == DeviceConnection.State.READY) {
+            applyProfile(connection);
+        }
+        return true;
+    }
+
+    private void applyProfile(DeviceConnection connection) {
+        Link link = connection.getLink();
+        if (link == null) {
+            return;
+        }
+        ThroughputProfile profile = connection.getProfile();
+        if (!link.requestConnectionPriority(profile.getConnectionPriority())) {
+            Log.w(TAG, "Unable to set connection priority of " + connection.getAddress() + ".");
+        }
+        int mtu = Math.min(profile.getMtu(), link.getMaxMtu());
+        if (mtu > connection.getMtu()) {
+            connection.getQueue().submit(GattOperation.requestMtu(mtu, null));
+        }
+    }
+
+    /** Metrics of the coalescer behind {@link #setLed}, null for unknown devices. */
+    public WriteCoalescer getCommandCoalescer(String address) {
+        DeviceConnection connection = getConnection(address);
+        return connection == null ? null : connection.getCoalescer(HM10_CHARACTERISTIC);
+    }
+
+    /** Limits how many devices may be in the connecting state at the same time. */
+    public void setMaxConcurrentConnects(int maxConcurrentConnects) {
+        synchronized (this) {
+            this.maxConcurrentConnects = Math.max(1, maxConcurrentConnects);
+        }
+        startPendingConnects();
     }
 
     public boolean connect(final String address) {
-        if (bluetoothAdapter == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized.");
+        if (transport == null) {
+            Log.w(TAG, "Transport not initialized.");
             return false;
         }
         if (!BluetoothAdapter.checkBluetoothAddress(address)) {
@@ -102,49 +476,319 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
-        if (bluetoothGatt != null) {
-            Log.w(TAG, "GATT server already connected.");
-            return true;
+        synchronized (this) {
+            DeviceConnection connection = connections.get(address);
+            if (connection == null) {
+                connection = createConnection(address);
+                connections.put(address, connection);
+            }
+            if (connection.getState() == DeviceConnection.State.BACKOFF) {
+                // An explicit request skips the rest of the backoff delay.
+                handler.removeCallbacks(connection.getReconnectTask());
+            } else if (connection.getState() != DeviceConnection.State.IDLE) {
+                Log.w(TAG, "GATT server " + address + " already connected.");
+                return true;
+            }
+            connection.setState(DeviceConnection.State.CONNECTING);
+            connectQueue.add(connection);
         }
+        updateForeground();
+        startPendingConnects();
+        return true;
+    }
 
-        final BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.e(TAG, "Unable to find the device.");
+    /**
+     * Connects the device, or keeps it connected, on behalf of a screen. Pair every call
+     * with {@link #release}; the device is dropped once no screen has held it for the
+     * idle timeout, so a screen reopened within that time finds it ready.
+     *
+     * @param attachTime when the screen started attaching, as from {@link Metrics#now}
+     */
+    public boolean acquire(String address, long attachTime) {
+        if (!connect(address)) {
             return false;
         }
-
-        bluetoothGatt = device.connectGatt(this, true, gattCallback);
+        DeviceConnection connection;
+        boolean warm;
+        synchronized (this) {
+            connection = connections.get(address);
+            if (connection == null) {
+                return false;
+            }
+            warm = connection.acquire(attachTime);
+        }
+        handler.removeCallbacks(connection.getIdleTask());
+        if (warm) {
+            connection.getMetrics().recordAttach(Metrics.now() - attachTime, true);
+        }
         return true;
     }
 
+    /** Gives up a device taken with {@link #acquire}, starting its idle timeout. */
+    public void release(String address) {
+        DeviceConnection connection;
+        long timeout;
+        synchronized (this) {
+            connection = connections.get(address);
+            if (connection == null || !connection.release()) {
+                return;
+            }
+            timeout = idleTimeout;
+        }
+        if (timeout >= 0) {
+            handler.postDelayed(connection.getIdleTask(), timeout);
+        }
+    }
+
+    /**
+     * Applies to devices released from now on; 0 drops them right away and
+     * {@link #IDLE_TIMEOUT_NEVER} keeps them until {@link #disconnect}.
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    // Started and in the foreground while any device is wanted, so the links outlive
+    // the screens using them. Stops itself with the last one, bound clients keep it
+    // alive until they unbind.
+    private synchronized void updateForeground() {
+        int count = connections.size();
+        if (count == foregroundCount) {
+            return;
+        }
+        if (count == 0) {
+            stopForeground(true);
+            stopSelf();
+        } else {
+            if (foregroundCount == 0) {
+                startService(new Intent(this, BluetoothLeService.class));
+            }
+            Intent open = new Intent(this, DeviceScanActivity.class);
+            startForeground(NOTIFICATION_ID, new NotificationCompat.Builder(this)
+                    .setSmallIcon(R.mipmap.ic_launcher)
+                    .setContentTitle(getString(R.string.app_name))
+                    .setContentText(getString(R.string.format_devices_connected, count))
+                    .setContentIntent(PendingIntent.getActivity(this, 0, open, 0))
+                    .setOngoing(true)
+                    .build());
+        }
+        foregroundCount = count;
+    }
+
+    public void connect(Collection<String> addresses) {
+        for (String address : addresses) {
+            connect(address);
+        }
+    }
+
+    private DeviceConnection createConnection(String address) {
+        final DeviceConnection connection = new DeviceConnection(address, handler);
+        connection.setProfile(defaultProfile);
+        connection.setFrameDecoder(new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(int command, int sequence, byte[] payload, int length) {
+                processFrame(connection, command, sequence, payload, length);
+            }
+        }));
+        WriteCoalescer coalescer = new WriteCoalescer(handler, connection.getQueue(),
+                new WriteCoalescer.Sender() {
+                    @Override
+                    public GattOperation createWrite(byte[] value,
+                                                     GattOperation.Callback callback) {
+                        return writeHm10(connection, value, callback);
+                    }
+                });
+        coalescer.setDebounce(writeDebounce);
+        connection.putCoalescer(HM10_CHARACTERISTIC, coalescer);
+        connection.setIdleTask(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BluetoothLeService.this) {
+                    if (connection.getClientCount() > 0
+                            || connections.get(connection.getAddress()) != connection) {
+                        return;
+                    }
+                }
+                Log.i(TAG, connection.getAddress() + " idle, disconnecting.");
+                disconnect(connection.getAddress());
+            }
+        });
+        connection.setReconnectTask(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BluetoothLeService.this) {
+                    if (connection.getState() != DeviceConnection.State.BACKOFF
+                            || connections.get(connection.getAddress()) != connection) {
+                        return;
+                    }
+                    connection.setState(DeviceConnection.State.CONNECTING);
+                    connectQueue.add(connection);
+                }
+                startPendingConnects();
+            }
+        });
+        return connection;
+    }
+
+    private void startPendingConnects() {
+        while (true) {
+            DeviceConnection connection;
+            boolean autoConnect;
+            synchronized (this) {
+                if (connectingCount >= maxConcurrentConnects || connectQueue.isEmpty()) {
+                    return;
+                }
+                connection = connectQueue.poll();
+                long lastSeen = connection.getLastSeenTime();
+                autoConnect = lastSeen != 0
+                        && SystemClock.elapsedRealtime() - lastSeen > RECENTLY_SEEN;
+                // A background autoConnect may take minutes, it must not block a slot.
+                if (!autoConnect) {
+                    connection.setHoldingConnectSlot(true);
+                    connectingCount++;
+                }
+            }
+
+            connection.markConnectStarted(SystemClock.elapsedRealtime(),
+                    gattCache.isKnown(connection.getAddress()));
+            Link link = transport.connect(connection.getAddress(), autoConnect, linkDispatcher);
+            if (link == null) {
+                Log.e(TAG, "Unable to connect " + connection.getAddress() + ".");
+                releaseConnectSlot(connection);
+                scheduleReconnect(connection);
+                continue;
+            }
+            synchronized (this) {
+                connection.setLink(link);
+            }
+        }
+    }
+
+    private void releaseConnectSlot(DeviceConnection connection) {
+        synchronized (this) {
+            if (!connection.isHoldingConnectSlot()) {
+                return;
+            }
+            connection.setHoldingConnectSlot(false);
+            connectingCount--;
+        }
+        startPendingConnects();
+    }
+
+    /**
+     * Retries a device that is still wanted after a jittered exponential delay.
+     * Devices removed with {@link #disconnect(String)} are left alone.
+     */
+    private void scheduleReconnect(DeviceConnection connection) {
+        long delay;
+        synchronized (this) {
+            if (connections.get(connection.getAddress()) != connection) {
+                return;
+            }
+            connection.markDisconnected(SystemClock.elapsedRealtime());
+            connection.setState(DeviceConnection.State.BACKOFF);
+            int attempt = Math.min(connection.nextBackoffAttempt(), 16);
+            long ceiling = Math.min(BACKOFF_MAX, BACKOFF_BASE << attempt);
+            delay = ceiling / 2 + (long) (random.nextDouble() * (ceiling / 2));
+        }
+        Log.i(TAG, "Reconnecting " + connection.getAddress() + " in " + delay + " ms.");
+        handler.postDelayed(connection.getReconnectTask(), delay);
+    }
+
+    private void closeConnection(DeviceConnection connection) {
+        Link link;
+        synchronized (this) {
+            connectQueue.remove(connection);
+            link = connection.getLink();
+            connection.setLink(null);
+            connection.setMtu(ThroughputProfile.DEFAULT_MTU);
+            connection.setState(DeviceConnection.State.IDLE);
+        }
+        for (WriteCoalescer coalescer : connection.getCoalescers()) {
+            coalescer.cancel();
+        }
+        connection.getQueue().detach();
+        if (link != null) {
+            link.close();
+        }
+        connection.getFrameDecoder().reset();
+    }
+
+    /**
+     * Replaces the Bluetooth transport, for instance with the tests' LoopbackTransport
+     * to run against simulated devices. Only takes effect for connections made after.
+     */
+    public synchronized void setTransport(LinkTransport transport) {
+        this.transport = transport;
+    }
+
     public boolean initialize() {
+        synchronized (this) {
+            if (transport != null) {
+                return true;
+            }
+        }
         BluetoothManager manager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
         if (manager == null) {
             Log.e(TAG, "Unable to initialize BluetoothManager.");
             return false;
         }
 
-        bluetoothAdapter = manager.getAdapter();
-        if (bluetoothAdapter == null) {
+        BluetoothAdapter adapter = manager.getAdapter();
+        if (adapter == null) {
             Log.e(TAG, "Unable to get a BluetoothAdapter.");
             return false;
         }
 
+        setTransport(new BleTransport(this, adapter));
         return true;
     }
 
-    public BluetoothGattCharacteristic getCharacteristic(UUID serviceUuid, UUID charUuid) {
-        BluetoothGattService service = bluetoothGatt.getService(serviceUuid);
-        if (service == null) {
-            Log.w(TAG, String.format("Service %s not found.", serviceUuid.toString()));
-            return null;
+    /** Whether the device's last discovery found the characteristic in that service. */
+    public boolean hasCharacteristic(String address, UUID serviceUuid, UUID charUuid) {
+        DeviceConnection connection = getConnection(address);
+        Link link = connection == null ? null : connection.getLink();
+        return link != null && serviceUuid.equals(link.getServiceUuid(charUuid));
+    }
+
+    /**
+     * Builds a write to the HM-10 characteristic. While a device with a cached layout is
+     * still connecting the write is queued unresolved and goes out right after discovery.
+     */
+    private GattOperation writeHm10(DeviceConnection connection, byte[] frame,
+                                    GattOperation.Callback callback) {
+        Link link = connection.getLink();
+        int properties = link == null ? -1 : link.getProperties(HM10_CHARACTERISTIC);
+        if (properties < 0) {
+            DeviceConnection.State state = connection.getState();
+            if ((state != DeviceConnection.State.CONNECTING
+                    && state != DeviceConnection.State.DISCOVERING)
+                    || !gattCache.hasCharacteristic(connection.getAddress(), HM10_SERVICE,
+                    HM10_CHARACTERISTIC)) {
+                return null;
+            }
         }
+        GattOperation operation = GattOperation.write(HM10_CHARACTERISTIC, frame, callback);
 
-        return service.getCharacteristic(charUuid);
+        // The HM-10 is a serial bridge, a frame split over several writes arrives intact.
+        operation.setChunkSize(connection.getMaxWriteSize());
+        // Before discovery the properties are unknown, only acknowledged writes are safe.
+        boolean withoutResponse = connection.getProfile().isWriteWithoutResponse()
+                && FrameCodec.isIdempotent(FrameCodec.commandOf(frame))
+                && properties >= 0
+                && (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+        return operation.setWriteType(withoutResponse
+                ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
     }
 
-    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        return bluetoothGatt.readCharacteristic(characteristic);
+    public boolean readCharacteristic(String address, UUID charUuid) {
+        DeviceConnection connection = getConnection(address);
+        if (connection == null || connection.getState() == DeviceConnection.State.IDLE) {
+            return false;
+        }
+        connection.getQueue().submit(GattOperation.read(charUuid, null));
+        return true;
     }
 
     @Override
@@ -152,31 +796,246 @@ public class BluetoothLeService extends Service {
         return binder;
     }
 
-    @Override
-    public boolean onUnbind(Intent intent) {
-        disconnect();
-        return super.onUnbind(intent);
+    public void disconnect(String address) {
+        DeviceConnection connection;
+        synchronized (this) {
+            connection = connections.remove(address);
+            if (connection == null) {
+                return;
+            }
+        }
+        handler.removeCallbacks(connection.getReconnectTask());
+        handler.removeCallbacks(connection.getIdleTask());
+        closeConnection(connection);
+        releaseConnectSlot(connection);
+        updateForeground();
     }
 
-    private void disconnect() {
-        if (bluetoothGatt != null) {
-            bluetoothGatt.close();
+    public void disconnectAll() {
+        List<String> addresses;
+        synchronized (this) {
+            addresses = new ArrayList<>(connections.keySet());
+        }
+        for (String address : addresses) {
+            disconnect(address);
         }
-        bluetoothGatt = null;
     }
 
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        bluetoothGatt.writeCharacteristic(characteristic);
+    public boolean writeCharacteristic(String address, UUID charUuid, byte[] value,
+                                       GattOperation.Callback callback) {
+        DeviceConnection connection = getConnection(address);
+        if (connection == null || connection.getState() == DeviceConnection.State.IDLE) {
+            return false;
+        }
+        connection.getQueue().submit(GattOperation.write(charUuid, value, callback)
+                .setChunkSize(connection.getMaxWriteSize()));
+        return true;
     }
 
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
-                                              boolean enable) {
-        bluetoothGatt.setCharacteristicNotification(characteristic, enable);
+    /** Sends a {@link FrameCodec} command to the HM-10 characteristic of one device. */
+    public boolean sendCommand(String address, int command, GattOperation.Callback callback) {
+        DeviceConnection connection = getConnection(address);
+        if (connection == null) {
+            return false;
+        }
+        byte[] frame = FrameCodec.encode(command, connection.nextSequence());
+        GattOperation operation = writeHm10(connection, frame, callback);
+        if (operation == null) {
+            return false;
+        }
+        logEvent(connection, EventLog.TYPE_COMMAND, frame, frame.length);
+        connection.getQueue().submit(operation);
+        return true;
+    }
+
+    /**
+     * Switches the LED. The cached state shows the new value at once as pending and
+     * falls back to the old one if the board does not acknowledge it. Rapid changes
+     * are coalesced, only the last one within the debounce window is written and the
+     * others complete as {@link GattOperation#STATUS_SUPERSEDED} with a null operation.
+     */
+    public boolean setLed(final String address, boolean on,
+                          final GattOperation.Callback callback) {
+        DeviceConnection connection = getConnection(address);
+        if (connection == null || connection.getState() == DeviceConnection.State.IDLE
+                || connection.getState() == DeviceConnection.State.BACKOFF) {
+            return false;
+        }
+        final int sequence = connection.nextSequence();
+        byte[] frame = FrameCodec.encode(on ? FrameCodec.CMD_LED_ON : FrameCodec.CMD_LED_OFF,
+                sequence);
+        // Pending first, so the superseded value's callback no longer matches it.
+        stateCache.setPending(address, on ? DeviceStateCache.LED_ON : DeviceStateCache.LED_OFF,
+                sequence);
+        logEvent(connection, EventLog.TYPE_COMMAND, frame, frame.length);
+        connection.getCoalescer(HM10_CHARACTERISTIC).submit(frame,
+                new GattOperation.Callback() {
+                    @Override
+                    public void onComplete(GattOperation operation, int status) {
+                        if (status != BluetoothGatt.GATT_SUCCESS) {
+                            stateCache.onWriteFailed(address, sequence);
+                        }
+                        if (callback != null) {
+                            callback.onComplete(operation, status);
+                        }
+                    }
+                });
+        return true;
+    }
+
+    /** One of the {@code DeviceStateCache.LED_*} values, pending commands included. */
+    public int getLedState(String address) {
+        return stateCache.getLed(address);
+    }
+
+    public boolean isLedPending(String address) {
+        return stateCache.isPending(address);
+    }
+
+    /**
+     * Sends the command to every ready device of the group, returns how many of them
+     * it was queued on.
+     */
+    public int sendCommand(Collection<String> addresses, int command,
+                           GattOperation.Callback callback) {
+        int sent = 0;
+        for (String address : addresses) {
+            if (sendCommand(address, command, callback)) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Writes the same command frame to every device of the set. Each device has its
+     * own queue so the writes proceed in parallel; a duplicate address is sent once,
+     * and a batch write still waiting in a device's queue is replaced by the newer one.
+     * The callback runs once every device has completed, failed or been superseded.
+     */
+    public BatchResult sendBatch(Collection<String> addresses, int command, byte[] payload,
+                                 BatchResult.Callback callback) {
+        Set<String> targets = new LinkedHashSet<>(addresses);
+        final BatchResult result = new BatchResult(targets.size(), callback);
+        for (final String address : targets) {
+            DeviceConnection connection = getConnection(address);
+            GattOperation operation = null;
+            if (connection != null) {
+                byte[] frame = FrameCodec.encode(command, connection.nextSequence(), payload);
+                operation = writeHm10(connection, frame, new GattOperation.Callback() {
+                    @Override
+                    public void onComplete(GattOperation operation, int status) {
+                        result.complete(address, status);
+                    }
+                });
+            }
+            if (operation == null) {
+                result.complete(address, GattOperation.STATUS_NOT_CONNECTED);
+                continue;
+            }
+            logEvent(connection, EventLog.TYPE_COMMAND, operation.getValue(),
+                    operation.getValue().length);
+            connection.getQueue().submit(operation.setCoalescing(true));
+        }
+        if (targets.isEmpty() && callback != null) {
+            callback.onComplete(result);
+        }
+        return result;
+    }
+
+    /**
+     * Puts the device into streaming mode: the board sends samples continuously and
+     * every notification is copied into a ring buffer instead of going to listeners.
+     * Drain it with {@link #drainStream}.
+     */
+    public boolean startStreaming(String address, int interval) {
+        DeviceConnection connection = getConnection(address);
+        if (connection == null) {
+            return false;
+        }
+        if (connection.getStreamBuffer() == null) {
+            connection.setStreamBuffer(new NotificationRingBuffer(STREAM_CAPACITY,
+                    getMaxNotificationSize(connection)));
+        }
+        byte[] payload = {(byte) interval, (byte) (interval >> 8)};
+        GattOperation operation = writeHm10(connection,
+                FrameCodec.encode(FrameCodec.CMD_STREAM_START, connection.nextSequence(),
+                        payload), null);
+        if (operation == null) {
+            connection.setStreamBuffer(null);
+            return false;
+        }
+        connection.getQueue().submit(operation);
+        return true;
+    }
+
+    // The board fills notifications up to the MTU, and the profile may still raise it.
+    private static int getMaxNotificationSize(DeviceConnection connection) {
+        Link link = connection.getLink();
+        int size = connection.getMaxWriteSize();
+        if (link != null) {
+            int mtu = Math.min(connection.getProfile().getMtu(), link.getMaxMtu());
+            size = Math.max(size, mtu - ThroughputProfile.ATT_OVERHEAD);
+        }
+        return size;
+    }
+
+    /** Leaves streaming mode, whatever is still buffered is discarded. */
+    public boolean stopStreaming(String address) {
+        DeviceConnection connection = getConnection(address);
+        if (connection == null || connection.getStreamBuffer() == null) {
+            return false;
+        }
+        connection.setStreamBuffer(null);
+        GattOperation operation = writeHm10(connection,
+                FrameCodec.encode(FrameCodec.CMD_STREAM_STOP, connection.nextSequence()), null);
+        if (operation != null) {
+            connection.getQueue().submit(operation);
+        }
+        return true;
+    }
+
+    /**
+     * Hands up to {@code max} buffered notifications to the consumer. Must always be
+     * called from the same thread.
+     */
+    public int drainStream(String address, NotificationRingBuffer.Consumer consumer, int max) {
+        DeviceConnection connection = getConnection(address);
+        NotificationRingBuffer streamBuffer =
+                connection == null ? null : connection.getStreamBuffer();
+        return streamBuffer == null ? 0 : streamBuffer.drain(consumer, max);
+    }
+
+    public boolean setCharacteristicNotification(String address, UUID charUuid,
+                                                 boolean enable) {
+        DeviceConnection connection = getConnection(address);
+        if (connection == null || connection.getLink() == null) {
+            return false;
+        }
+        enableNotification(connection, charUuid, enable);
+        return true;
+    }
+
+    private void enableNotification(DeviceConnection connection, UUID charUuid,
+                                    boolean enable) {
+        connection.getQueue().submit(GattOperation.setNotification(charUuid, enable, null));
     }
 
     public class LocalBinder extends Binder {
         public BluetoothLeService getService() {
             return BluetoothLeService.this;
         }
+
+        /**
+         * Delivers events on the handler's thread, or directly on the GATT callback
+         * thread when the handler is null.
+         */
+        public void registerListener(GattListener listener, Handler handler) {
+            eventBus.register(listener, handler);
+        }
+
+        public void unregisterListener(GattListener listener) {
+            eventBus.unregister(listener);
+        }
     }
 }
@@ -0,0 +1,48 @@
+package com.example.lab_bt;
+
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Compatibility adapter that republishes bus events as the old
+ * {@code BluetoothLeService.ACTION_*} broadcasts.
+ */
+public class BroadcastGattListener implements GattListener {
+    private final Context context;
+
+    public BroadcastGattListener(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public void onConnectionStateChanged(String address, int state) {
+        if (state == BluetoothProfile.STATE_CONNECTED) {
+            context.sendBroadcast(new Intent(BluetoothLeService.ACTION_GATT_CONNECTED));
+        } else if (state == BluetoothProfile.STATE_DISCONNECTED) {
+            context.sendBroadcast(new Intent(BluetoothLeService.ACTION_GATT_DISCONNECTED));
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(String address) {
+        context.sendBroadcast(new Intent(BluetoothLeService.ACTION_GATT_SERVICE_DISCOVERED));
+    }
+
+    @Override
+    public void onDataAvailable(String address, byte[] data, int length) {
+        Intent intent = new Intent(BluetoothLeService.ACTION_DATA_AVAILABLE);
+        intent.putExtra(BluetoothLeService.EXTRA_DATA, new String(data, 0, length));
+        context.sendBroadcast(intent);
+    }
+
+    @Override
+    public void onLedStateChanged(String address, int led, boolean pending) {
+        // There never was a broadcast for this.
+    }
+
+    @Override
+    public void onAuthorizationChanged(String address, boolean authorized) {
+        // Nor for this.
+    }
+}
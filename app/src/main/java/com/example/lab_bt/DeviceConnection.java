@@ -0,0 +1,303 @@
+package com.example.lab_bt;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Per-device state held by {@link BluetoothLeService}: the {@link Link}, its own
+ * operation queue and the reconnect bookkeeping.
+ *
+ * <pre>
+ * IDLE -> CONNECTING -> DISCOVERING -> READY
+ *              ^                          |
+ *              +-------- BACKOFF <--------+ (link lost or connect failed)
+ * </pre>
+ */
+public class DeviceConnection {
+    public enum State {
+        IDLE,
+        CONNECTING,
+        DISCOVERING,
+        READY,
+        BACKOFF
+    }
+
+    private final String address;
+    private final long packedAddress;
+    private final GattOperationQueue queue;
+    private final DeviceMetrics metrics;
+
+    private Link link;
+    private volatile State state = State.IDLE;
+    private int sequence;
+
+    private volatile NotificationRingBuffer streamBuffer;
+    private FrameDecoder frameDecoder;
+    private volatile ThroughputProfile profile = ThroughputProfile.BALANCED;
+    private volatile int mtu = ThroughputProfile.DEFAULT_MTU;
+    private final Map<UUID, WriteCoalescer> coalescers = new HashMap<>();
+
+    private boolean holdingConnectSlot;
+    private Runnable reconnectTask;
+    private int backoffAttempt;
+    private long lastSeenTime;
+    private long disconnectTime;
+
+    private int clientCount;
+    private Runnable idleTask;
+    private long attachStartMicros;
+
+    private long connectStartTime;
+    private boolean layoutCached;
+    private boolean firstWritePending;
+    private long connectStartMicros;
+    private long connectedMicros;
+
+    private int reconnectCount;
+    private long lastReconnectTime;
+
+    DeviceConnection(String address, Handler handler) {
+        this.address = address;
+        this.packedAddress = MacAddress.pack(address);
+        this.metrics = Metrics.getInstance().get(packedAddress);
+        this.queue = new GattOperationQueue(new HandlerScheduler(handler));
+        queue.setMetrics(metrics);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public long getPackedAddress() {
+        return packedAddress;
+    }
+
+    public DeviceMetrics getMetrics() {
+        return metrics;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    GattOperationQueue getQueue() {
+        return queue;
+    }
+
+    Link getLink() {
+        return link;
+    }
+
+    void setLink(Link link) {
+        this.link = link;
+    }
+
+    /** Starts timing connect-to-first-write for this connection attempt. */
+    void markConnectStarted(long time, boolean layoutCached) {
+        connectStartTime = time;
+        this.layoutCached = layoutCached;
+        firstWritePending = true;
+        connectStartMicros = Metrics.now();
+    }
+
+    /** Records the connect time, {@code time} in microseconds as from {@link Metrics#now}. */
+    void markConnected(long time) {
+        connectedMicros = time;
+        metrics.recordConnected(time - connectStartMicros, time);
+    }
+
+    /** Records the time from the link coming up to the services being usable. */
+    void markDiscovered(long time) {
+        metrics.recordDiscovery(time - connectedMicros);
+    }
+
+    /**
+     * Returns the connect-to-first-write latency the first time a write completes
+     * after a connect, -1 afterwards.
+     */
+    long consumeFirstWrite(long time) {
+        if (!firstWritePending) {
+            return -1;
+        }
+        firstWritePending = false;
+        return time - connectStartTime;
+    }
+
+    boolean isLayoutCached() {
+        return layoutCached;
+    }
+
+    void setLayoutCached(boolean layoutCached) {
+        this.layoutCached = layoutCached;
+    }
+
+    /** Non-null while the device is in streaming mode. */
+    public NotificationRingBuffer getStreamBuffer() {
+        return streamBuffer;
+    }
+
+    void setStreamBuffer(NotificationRingBuffer streamBuffer) {
+        this.streamBuffer = streamBuffer;
+    }
+
+    boolean isHoldingConnectSlot() {
+        return holdingConnectSlot;
+    }
+
+    void setHoldingConnectSlot(boolean holdingConnectSlot) {
+        this.holdingConnectSlot = holdingConnectSlot;
+    }
+
+    Runnable getReconnectTask() {
+        return reconnectTask;
+    }
+
+    void setReconnectTask(Runnable reconnectTask) {
+        this.reconnectTask = reconnectTask;
+    }
+
+    /** Screens currently holding the device, guarded by the service. */
+    int getClientCount() {
+        return clientCount;
+    }
+
+    /**
+     * A screen takes the device. Returns true if it was ready already, otherwise the
+     * attach is timed from {@code attachTime} until discovery completes.
+     */
+    boolean acquire(long attachTime) {
+        clientCount++;
+        if (state == State.READY) {
+            return true;
+        }
+        markAttachStarted(attachTime);
+        return false;
+    }
+
+    /** A screen gives the device up, returns true if it was the last one holding it. */
+    boolean release() {
+        if (clientCount == 0) {
+            return false;
+        }
+        clientCount--;
+        return clientCount == 0;
+    }
+
+    Runnable getIdleTask() {
+        return idleTask;
+    }
+
+    void setIdleTask(Runnable idleTask) {
+        this.idleTask = idleTask;
+    }
+
+    // A screen asked for the device before it was ready, discovery will record it.
+    private void markAttachStarted(long time) {
+        if (attachStartMicros == 0) {
+            attachStartMicros = time;
+        }
+    }
+
+    /** Records a cold attach if one is waiting for this discovery. */
+    void markAttachReady(long time) {
+        if (attachStartMicros != 0) {
+            metrics.recordAttach(time - attachStartMicros, false);
+            attachStartMicros = 0;
+        }
+    }
+
+    int nextBackoffAttempt() {
+        return backoffAttempt++;
+    }
+
+    long getLastSeenTime() {
+        return lastSeenTime;
+    }
+
+    void setLastSeenTime(long lastSeenTime) {
+        this.lastSeenTime = lastSeenTime;
+    }
+
+    /** Remembers when the link went down, the first loss of a reconnect cycle wins. */
+    void markDisconnected(long time) {
+        if (disconnectTime == 0) {
+            disconnectTime = time;
+        }
+    }
+
+    /** Ends a reconnect cycle once the device is usable again. */
+    void markReady(long time) {
+        backoffAttempt = 0;
+        if (disconnectTime != 0) {
+            lastReconnectTime = time - disconnectTime;
+            reconnectCount++;
+            metrics.recordReconnect(lastReconnectTime * 1000);
+            disconnectTime = 0;
+        }
+    }
+
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /** Time from losing the link to being ready again, for the last reconnect. */
+    public long getLastReconnectTime() {
+        return lastReconnectTime;
+    }
+
+    public ThroughputProfile getProfile() {
+        return profile;
+    }
+
+    void setProfile(ThroughputProfile profile) {
+        this.profile = profile;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    /** Largest value a single write can carry at the current MTU. */
+    int getMaxWriteSize() {
+        return mtu - ThroughputProfile.ATT_OVERHEAD;
+    }
+
+    /** Decodes notifications for the service itself, GATT callback thread only. */
+    FrameDecoder getFrameDecoder() {
+        return frameDecoder;
+    }
+
+    void setFrameDecoder(FrameDecoder frameDecoder) {
+        this.frameDecoder = frameDecoder;
+    }
+
+    synchronized WriteCoalescer getCoalescer(UUID charUuid) {
+        return coalescers.get(charUuid);
+    }
+
+    synchronized void putCoalescer(UUID charUuid, WriteCoalescer coalescer) {
+        coalescers.put(charUuid, coalescer);
+    }
+
+    synchronized Collection<WriteCoalescer> getCoalescers() {
+        return new ArrayList<>(coalescers.values());
+    }
+
+    synchronized int nextSequence() {
+        sequence = (sequence + 1) & 0xFF;
+        return sequence;
+    }
+}
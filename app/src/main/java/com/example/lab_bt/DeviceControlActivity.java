@@ -1,20 +1,15 @@
 package com.example.lab_bt;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothSocket;
-import android.content.BroadcastReceiver;
-import android.content.ComponentName;
-import android.content.Context;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothProfile;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.ServiceConnection;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.IBinder;
+import android.os.Handler;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.Menu;
@@ -22,15 +17,12 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.Switch;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DeviceControlActivity extends AppCompatActivity {
     private static final String TAG = DeviceControlActivity.class.getName();
@@ -38,8 +30,6 @@ public class DeviceControlActivity extends AppCompatActivity {
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
 
-    private static final UUID serviceUuid = UUID.fromString(GattAttribute.HM10_SERVICE);
-    private static final UUID charUuid = UUID.fromString(GattAttribute.HM10_CHARACTERISTIC);
     private static final int REQUEST_CONNECT = 1;
 
     private String deviceAddress;
@@ -48,75 +38,145 @@ public class DeviceControlActivity extends AppCompatActivity {
     private TextView ledState;
     private Switch ledSwitch;
 
+    private BleServiceClient client;
     private BluetoothLeService bluetoothLeService;
-    private BluetoothGattCharacteristic characteristic;
 
-    private SharedPreferences settings;
-    private boolean authorized;
+    private final Handler handler = new Handler();
 
-    private final ServiceConnection serviceConnection = new ServiceConnection() {
+    private AuthorizationStore authorizationStore;
+
+    // Written by the listener on the GATT thread, shown by uiUpdate on the UI thread.
+    private volatile int connectionText;
+    private volatile int led = DeviceStateCache.LED_UNKNOWN;
+    private volatile boolean ledPending;
+    private volatile boolean switchEnabled;
+    private final AtomicBoolean uiUpdatePending = new AtomicBoolean();
+
+    // What the views show right now, only touched on the UI thread.
+    private int shownConnectionText;
+    private int shownLed = DeviceStateCache.LED_UNKNOWN;
+    private boolean shownLedPending;
+    private boolean shownSwitchEnabled;
+
+    private final GattOperation.Callback writeCallback = new GattOperation.Callback() {
         @Override
-        public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
-            bluetoothLeService = ((BluetoothLeService.LocalBinder)iBinder).getService();
-            if (!bluetoothLeService.initialize()) {
-                Log.e(TAG, "Unable to initialize BluetoothLeService.");
-                finish();
+        public void onComplete(GattOperation operation, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS
+                    && status != GattOperation.STATUS_SUPERSEDED) {
+                Log.w(TAG, "Write failed with status " + status + ".");
             }
-            bluetoothLeService.connect(deviceAddress);
         }
+    };
 
+    private final BleServiceClient.Callback clientCallback = new BleServiceClient.Callback() {
         @Override
-        public void onServiceDisconnected(ComponentName componentName) {
-            bluetoothLeService = null;
+        public void onAttached(BluetoothLeService service) {
+            bluetoothLeService = service;
+            led = service.getLedState(deviceAddress);
+            ledPending = service.isLedPending(deviceAddress);
+            // A device kept by the service is already past the events that report it.
+            DeviceConnection connection = service.getConnection(deviceAddress);
+            DeviceConnection.State state = connection == null ? DeviceConnection.State.IDLE
+                    : connection.getState();
+            if (connectionText == 0 && (state == DeviceConnection.State.DISCOVERING
+                    || state == DeviceConnection.State.READY)) {
+                connectionText = R.string.connected;
+            }
+            if (state == DeviceConnection.State.READY && authorizationStore.isAuthorized(
+                    connection.getPackedAddress(), System.currentTimeMillis())) {
+                switchEnabled = true;
+            }
+            scheduleUiUpdate();
+        }
+
+        @Override
+        public void onAttachFailed() {
+            finish();
         }
     };
 
-    private final BroadcastReceiver gattUpdateReceiver = new BroadcastReceiver() {
+    private final GattListener gattListener = new GattListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            switch (action) {
-                case BluetoothLeService.ACTION_GATT_CONNECTED:
-                    updateConnectionState(R.string.connected);
-                    Log.i(TAG, "Bluetooth device connected.");
-                    break;
-                case BluetoothLeService.ACTION_GATT_DISCONNECTED:
-                    updateConnectionState(R.string.disconnected);
-                    Log.i(TAG, "Bluetooth device disconnected.");
-                    break;
-                case BluetoothLeService.ACTION_GATT_SERVICE_DISCOVERED:
-                    characteristic = bluetoothLeService.getCharacteristic(serviceUuid, charUuid);
-                    if (characteristic != null) {
-                        bluetoothLeService.setCharacteristicNotification(characteristic, true);
-                    }
-                    break;
-                case BluetoothLeService.ACTION_DATA_AVAILABLE:
-                    String data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                    processData(data);
-                    Log.i(TAG, "Data read: " + data);
-                    break;
-                default:
-                    break;
+        public void onConnectionStateChanged(String address, int state) {
+            if (!address.equals(deviceAddress)) {
+                return;
+            }
+            if (state == BluetoothProfile.STATE_CONNECTED) {
+                connectionText = R.string.connected;
+                Log.i(TAG, "Bluetooth device connected.");
+            } else if (state == BluetoothProfile.STATE_DISCONNECTED) {
+                connectionText = R.string.disconnected;
+                Log.i(TAG, "Bluetooth device disconnected.");
             }
+            scheduleUiUpdate();
         }
-    };
 
-    private void updateConnectionState(final int resourceId) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                connectionState.setText(resourceId);
+        @Override
+        public void onServicesDiscovered(String address) {
+        }
+
+        @Override
+        public void onDataAvailable(String address, byte[] data, int length) {
+            // Frames are handled by the service, what matters arrives decoded.
+        }
+
+        @Override
+        public void onLedStateChanged(String address, int led, boolean pending) {
+            if (address.equals(deviceAddress)) {
+                DeviceControlActivity.this.led = led;
+                ledPending = pending;
+                scheduleUiUpdate();
             }
-        });
+        }
+
+        @Override
+        public void onAuthorizationChanged(String address, boolean authorized) {
+            if (address.equals(deviceAddress)) {
+                switchEnabled = authorized;
+                scheduleUiUpdate();
+            }
+        }
+    };
+
+    // However many events arrive before the UI thread gets to it, it renders once.
+    private void scheduleUiUpdate() {
+        if (uiUpdatePending.compareAndSet(false, true)) {
+            handler.post(uiUpdate);
+        }
     }
 
-    private void updateLedState(final int resourceId) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                ledState.setText(resourceId);
+    private final Runnable uiUpdate = new Runnable() {
+        @Override
+        public void run() {
+            uiUpdatePending.set(false);
+            int currentConnectionText = connectionText;
+            if (currentConnectionText != 0 && currentConnectionText != shownConnectionText) {
+                connectionState.setText(currentConnectionText);
+                shownConnectionText = currentConnectionText;
             }
-        });
+            int currentLed = led;
+            boolean currentPending = ledPending;
+            if (currentLed != shownLed || currentPending != shownLedPending) {
+                showLedState(currentLed, currentPending);
+                shownLed = currentLed;
+                shownLedPending = currentPending;
+            }
+            boolean currentEnabled = switchEnabled;
+            if (currentEnabled != shownSwitchEnabled) {
+                ledSwitch.setEnabled(currentEnabled);
+                shownSwitchEnabled = currentEnabled;
+            }
+        }
+    };
+
+    private void showLedState(int led, boolean pending) {
+        if (led == DeviceStateCache.LED_UNKNOWN) {
+            ledState.setText(R.string.default_led_state);
+            return;
+        }
+        String text = getString(led == DeviceStateCache.LED_ON ? R.string.on : R.string.off);
+        ledState.setText(pending ? getString(R.string.format_pending, text) : text);
+        ledSwitch.setChecked(led == DeviceStateCache.LED_ON);
     }
 
     @Override
@@ -135,36 +195,38 @@ public class DeviceControlActivity extends AppCompatActivity {
 
         initLedSwitch();
 
-        settings = getPreferences(MODE_PRIVATE);
-        authorized = settings.getBoolean(deviceAddress, false);
+        authorizationStore = AuthorizationStore.getInstance(this);
+        migrateSettings();
 
-        Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
-        bindService(gattServiceIntent, serviceConnection, BIND_AUTO_CREATE);
-    }
-
-    @Override
-    protected void onResume() {
-        super.onResume();
-        registerReceiver(gattUpdateReceiver, makeGattUpdateIntentFilter());
-        if (bluetoothLeService != null) {
-            if (!bluetoothLeService.connect(deviceAddress)) {
-                Log.w(TAG, "Fail to connect bluetooth device.");
-            }
-        }
+        // Called on the GATT thread, the listener only records and schedules.
+        client = new BleServiceClient(this, deviceAddress, gattListener, null, clientCallback);
+        client.attach();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        unregisterReceiver(gattUpdateReceiver);
-        if (giveKey != null)
-            giveKey.abort();
+        if (keyHandOff != null) {
+            keyHandOff.cancel();
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        unbindService(serviceConnection);
+        handler.removeCallbacks(uiUpdate);
+        if (bluetoothLeService != null) {
+            WriteCoalescer coalescer = bluetoothLeService.getCommandCoalescer(deviceAddress);
+            if (coalescer != null) {
+                Log.i(TAG, coalescer.getSentCount() + " LED writes sent, "
+                        + coalescer.getSavedCount() + " saved, "
+                        + coalescer.getAverageCompletionTime()
+                        + " ms average from tap to write completion.");
+            }
+            bluetoothLeService = null;
+        }
+        // The device stays connected for a while, a recreated screen picks it up.
+        client.detach();
     }
 
     @Override
@@ -182,121 +244,114 @@ public class DeviceControlActivity extends AppCompatActivity {
             startActivityForResult(intent, REQUEST_CONNECT);
             return true;
         }
+        if (id == R.id.action_metrics) {
+            showMetrics();
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
 
-    private GiveKey giveKey;
+    private void showMetrics() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_metrics)
+                .setMessage(Metrics.dump(Metrics.getInstance().get(deviceAddress)))
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton(R.string.action_export_metrics,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                exportMetrics();
+                            }
+                        })
+                .show();
+    }
+
+    // JSON of every device, for whatever the user shares it with.
+    private void exportMetrics() {
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("application/json");
+        intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.action_metrics));
+        intent.putExtra(Intent.EXTRA_TEXT, Metrics.getInstance().toJson());
+        startActivity(Intent.createChooser(intent, getString(R.string.action_export_metrics)));
+    }
+
+    private KeyHandOff keyHandOff;
+
+    private final KeyHandOff.Callback keyHandOffCallback = new KeyHandOff.Callback() {
+        @Override
+        public void onComplete(KeyHandOff handOff, int result) {
+            if (handOff == keyHandOff) {
+                keyHandOff = null;
+            }
+            if (result == KeyHandOff.RESULT_OK) {
+                Toast.makeText(DeviceControlActivity.this, R.string.key_handed_off,
+                        Toast.LENGTH_SHORT).show();
+            } else if (result != KeyHandOff.RESULT_CANCELLED) {
+                Log.w(TAG, "Key hand-off failed with " + result + ".");
+                Toast.makeText(DeviceControlActivity.this, R.string.key_hand_off_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
+    };
+
+    // Authorizations used to be booleans in this activity's preferences.
+    private void migrateSettings() {
+        SharedPreferences settings = getPreferences(MODE_PRIVATE);
+        Map<String, ?> legacy = settings.getAll();
+        if (legacy.isEmpty()) {
+            return;
+        }
+        List<KeyExchangeHandler.Key> keys = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : legacy.entrySet()) {
+            if (Boolean.TRUE.equals(entry.getValue())) {
+                keys.add(new KeyExchangeHandler.Key(MacAddress.pack(entry.getKey()),
+                        new byte[0], AuthorizationStore.NEVER));
+            }
+        }
+        authorizationStore.importKeys(keys, System.currentTimeMillis());
+        settings.edit().clear().apply();
+    }
+
+    // This device plus every other one authorized on this phone, handed over in one session.
+    private List<KeyExchangeHandler.Key> collectKeys() {
+        List<KeyExchangeHandler.Key> keys =
+                authorizationStore.exportKeys(System.currentTimeMillis());
+        long address = MacAddress.pack(deviceAddress);
+        if (!authorizationStore.isAuthorized(address, System.currentTimeMillis())) {
+            keys.add(new KeyExchangeHandler.Key(address, new byte[0], AuthorizationStore.NEVER));
+        }
+        return keys;
+    }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == REQUEST_CONNECT) {
             if (resultCode == Activity.RESULT_OK) {
-                giveKey = new GiveKey(data);
-                giveKey.execute();
+                if (keyHandOff != null) {
+                    keyHandOff.cancel();
+                }
+                String address = data.getStringExtra(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
+                keyHandOff = new KeyHandOff(
+                        new RfcommTransport(BluetoothAdapter.getDefaultAdapter()), address,
+                        collectKeys(), handler, keyHandOffCallback);
+                keyHandOff.start();
             }
         }
     }
 
-    private void processData(String data) {
-        if (data.equals("On")) {
-            updateLedState(R.string.on);
-            ledSwitch.setChecked(true);
-
-        } else if (data.equals("Off")) {
-            updateLedState(R.string.off);
-            ledSwitch.setChecked(false);
-
-        } else if (data.equals("Auth")) {
-            authorized = true;
-            settings.edit().putBoolean(deviceAddress, true).apply();
-            ledSwitch.setEnabled(true);
-            Log.d(TAG, "Authorized.");
-        } else if (data.equals("Ready")) {
-            ledSwitch.setEnabled(authorized);
-        }
-    }
-
     private void initLedSwitch() {
         ledSwitch = (Switch) findViewById(R.id.led_switch);
         ledSwitch.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
                 Switch ledSwitch = (Switch) view;
-                if (ledSwitch.isChecked()) {
-                    characteristic.setValue("On");
-                } else {
-                    characteristic.setValue("Off");
+                if (bluetoothLeService == null || !bluetoothLeService.setLed(deviceAddress,
+                        ledSwitch.isChecked(), writeCallback)) {
+                    Log.w(TAG, "Device not ready.");
+                    ledSwitch.setChecked(!ledSwitch.isChecked());
                 }
-                bluetoothLeService.writeCharacteristic(characteristic);
             }
         });
     }
-
-    private IntentFilter makeGattUpdateIntentFilter() {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        filter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        filter.addAction(BluetoothLeService.ACTION_GATT_SERVICE_DISCOVERED);
-        filter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return filter;
-    }
-
-    private class GiveKey extends AsyncTask<Void, Void, Void> {
-        private String address;
-        private BluetoothDevice device;
-        private BluetoothSocket socket;
-
-        private GiveKey(Intent data) {
-            address = data.getStringExtra(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
-        }
-
-        @Override
-        protected Void doInBackground(Void... voids) {
-            device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-            try {
-                socket = device.createRfcommSocketToServiceRecord(App.MY_UUID_SECURE);
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.d(TAG, "Socket create failed.");
-                return null;
-            }
-
-            try {
-                socket.connect();
-                OutputStream outputStream = socket.getOutputStream();
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream));
-
-                InputStream inputStream = socket.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-
-                writer.write(deviceAddress);
-                writer.newLine();
-                writer.flush();
-
-                String response = reader.readLine();
-                Log.d(TAG, "Server response: " + response);
-                if (response.equals("GET")) {
-                    writer.write("DONE");
-                    writer.newLine();
-                    writer.flush();
-                }
-                while (socket.isConnected());
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.d(TAG, "Lost connection.");
-            } finally {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            return null;
-        }
-
-        private void abort() {
-            Log.d(TAG, "ABORT!!");
-        }
-    }
-}
\ No newline at end of file
+}
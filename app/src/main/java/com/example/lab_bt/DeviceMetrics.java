@@ -0,0 +1,193 @@
+package com.example.lab_bt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of one device, all in microseconds. Hold on to the
+ * instance from {@link Metrics#get} instead of looking it up per event, recording on
+ * it never allocates.
+ */
+public class DeviceMetrics {
+    private final long address;
+
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LatencyHistogram discoveryTime = new LatencyHistogram();
+    private final LatencyHistogram writeRoundTrip = new LatencyHistogram();
+    private final LatencyHistogram notificationInterval = new LatencyHistogram();
+    private final LatencyHistogram scanToConnect = new LatencyHistogram();
+    private final LatencyHistogram keyExchange = new LatencyHistogram();
+    private final LatencyHistogram warmAttach = new LatencyHistogram();
+    private final LatencyHistogram coldAttach = new LatencyHistogram();
+    private final LatencyHistogram reconnectTime = new LatencyHistogram();
+    private final LatencyHistogram cachedFirstWrite = new LatencyHistogram();
+    private final LatencyHistogram uncachedFirstWrite = new LatencyHistogram();
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong streamDropped = new AtomicLong();
+    private final AtomicLong streamTruncated = new AtomicLong();
+
+    private volatile long lastNotificationTime;
+    private volatile long scanTime;
+
+    DeviceMetrics(long address) {
+        this.address = address;
+    }
+
+    public long getAddress() {
+        return address;
+    }
+
+    /** {@code time} in microseconds of elapsed realtime, as for every method here. */
+    public void recordConnected(long duration, long time) {
+        connects.incrementAndGet();
+        connectTime.record(duration);
+        long scanned = scanTime;
+        if (scanned != 0) {
+            scanToConnect.record(time - scanned);
+            scanTime = 0;
+        }
+    }
+
+    public void recordDisconnected() {
+        disconnects.incrementAndGet();
+    }
+
+    public void recordDiscovery(long duration) {
+        discoveryTime.record(duration);
+    }
+
+    public void recordWrite(long roundTrip, boolean success) {
+        writes.incrementAndGet();
+        if (success) {
+            writeRoundTrip.record(roundTrip);
+        } else {
+            writeFailures.incrementAndGet();
+        }
+    }
+
+    /** Called from the GATT callback thread only. */
+    public void recordNotification(int length, long time) {
+        notifications.incrementAndGet();
+        bytesReceived.addAndGet(length);
+        long last = lastNotificationTime;
+        if (last != 0) {
+            notificationInterval.record(time - last);
+        }
+        lastNotificationTime = time;
+    }
+
+    /**
+     * A notification in streaming mode that did not make it into the ring buffer
+     * whole: dropped because the consumer fell behind, or cut down to the slot size.
+     */
+    public void recordStreamLoss(boolean dropped) {
+        (dropped ? streamDropped : streamTruncated).incrementAndGet();
+    }
+
+    /** The device was first seen by a scan, the next connect measures from here. */
+    public void recordScanned(long time) {
+        scanTime = time;
+    }
+
+    public void recordKeyExchange(long duration) {
+        keyExchange.record(duration);
+    }
+
+    /**
+     * From a screen asking for the device to the device being usable. Warm when the
+     * service still held the link, cold when it had to connect and discover first.
+     */
+    public void recordAttach(long duration, boolean warm) {
+        (warm ? warmAttach : coldAttach).record(duration);
+    }
+
+    /** From losing the link to the device being ready again. */
+    public void recordReconnect(long duration) {
+        reconnectTime.record(duration);
+    }
+
+    /**
+     * From starting a connect to the first write succeeding, cached when the device's
+     * layout was known and the write could be queued before discovery.
+     */
+    public void recordFirstWrite(long duration, boolean cached) {
+        (cached ? cachedFirstWrite : uncachedFirstWrite).record(duration);
+    }
+
+    public LatencyHistogram getConnectTime() {
+        return connectTime;
+    }
+
+    public LatencyHistogram getDiscoveryTime() {
+        return discoveryTime;
+    }
+
+    public LatencyHistogram getWriteRoundTrip() {
+        return writeRoundTrip;
+    }
+
+    public LatencyHistogram getNotificationInterval() {
+        return notificationInterval;
+    }
+
+    public LatencyHistogram getScanToConnect() {
+        return scanToConnect;
+    }
+
+    public LatencyHistogram getKeyExchange() {
+        return keyExchange;
+    }
+
+    public LatencyHistogram getWarmAttach() {
+        return warmAttach;
+    }
+
+    public LatencyHistogram getColdAttach() {
+        return coldAttach;
+    }
+
+    public LatencyHistogram getReconnectTime() {
+        return reconnectTime;
+    }
+
+    public LatencyHistogram getFirstWrite(boolean cached) {
+        return cached ? cachedFirstWrite : uncachedFirstWrite;
+    }
+
+    public long getConnects() {
+        return connects.get();
+    }
+
+    public long getDisconnects() {
+        return disconnects.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getWriteFailures() {
+        return writeFailures.get();
+    }
+
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getStreamDropped() {
+        return streamDropped.get();
+    }
+
+    public long getStreamTruncated() {
+        return streamTruncated.get();
+    }
+}
@@ -4,12 +4,11 @@ import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -19,33 +18,53 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
+import android.widget.CompoundButton;
 import android.widget.ListView;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DeviceScanActivity extends AppCompatActivity {
     private static final String TAG = DeviceScanActivity.class.getName();
-    private static final long SCAN_PERIOD = 10000;
+    // The list is refreshed at most this often however fast advertisements arrive.
+    private static final long UI_UPDATE_INTERVAL = 250;
+    private static final long STALE_TIMEOUT = 30000;
+    // Anything weaker is too far away to connect to reliably.
+    private static final int DISPLAY_MIN_RSSI = -95;
+    private static final String AUTO_CONNECT_NAME = "DSSCSA_8";
+    // Candidates get this long to show up before the nearest one is picked.
+    private static final long AUTO_CONNECT_SETTLE = 1500;
     private static final int REQUEST_ENABLE_BT = 1;
 
-    private boolean isScanning;
     private Handler handler;
+    private ScanScheduler scanScheduler;
 
     private ListView scanList;
     private DeviceListAdapter deviceListAdapter;
 
+    private final ScanIndex scanIndex = new ScanIndex();
+    private final AtomicBoolean uiUpdatePending = new AtomicBoolean();
+    private final AtomicBoolean autoConnectPending = new AtomicBoolean();
+
+    private final ScanFilter displayFilter = new ScanFilter.Builder()
+            .setMinRssi(DISPLAY_MIN_RSSI)
+            .build();
+    private final ScanFilter autoConnectFilter = new ScanFilter.Builder()
+            .setMinRssi(DISPLAY_MIN_RSSI)
+            .setName(AUTO_CONNECT_NAME)
+            .build();
+    // Only touched from the scan callback.
+    private final AdvertisementData advertisement = new AdvertisementData();
+
     private Switch autoConnectSwitch;
-    private AcceptThread acceptThread;
+    // Mirrors the switch for the scan callback, which must not touch views.
+    private volatile boolean autoConnectEnabled;
+    // Set when the user stops scanning or leaves, a pending auto-connect then does nothing.
+    private volatile boolean autoConnectCancelled;
+    private KeyExchangeServer keyExchangeServer;
 
     private BluetoothAdapter bluetoothAdapter;
 
@@ -53,21 +72,57 @@ public class DeviceScanActivity extends AppCompatActivity {
             new BluetoothAdapter.LeScanCallback() {
                 @Override
                 public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-                    deviceListAdapter.addDevice(device);
-                    if (autoConnectSwitch.isChecked() && device.getName().equals("DSSCSA_8")) {
-                        scanLeDevice(false);
-                        connectDevice(device);
+                    String address = device.getAddress();
+                    if (!displayFilter.matches(address, rssi, scanRecord, advertisement)) {
+                        return;
+                    }
+                    boolean autoConnect = autoConnectEnabled
+                            && autoConnectFilter.matches(address, rssi, scanRecord, advertisement);
+                    boolean added = scanIndex.update(device, rssi, scanRecord,
+                            SystemClock.elapsedRealtime(), autoConnect);
+                    if (added && autoConnect) {
+                        // Manual picks wait for a person, only auto-connects are timed.
+                        Metrics.getInstance().get(address).recordScanned(Metrics.now());
+                    }
+                    if (added) {
+                        // Without auto-connect every new device in the list is worth scanning for.
+                        scanScheduler.onDiscovered(address, autoConnect || !autoConnectEnabled);
+                    }
+                    if (autoConnect && autoConnectPending.compareAndSet(false, true)) {
+                        handler.postDelayed(autoConnectTask, AUTO_CONNECT_SETTLE);
+                    }
+                    if (uiUpdatePending.compareAndSet(false, true)) {
+                        handler.postDelayed(uiUpdate, UI_UPDATE_INTERVAL);
                     }
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            deviceListAdapter.addDevice(device);
-                            deviceListAdapter.notifyDataSetChanged();
-                        }
-                    });
                 }
             };
 
+    private final Runnable autoConnectTask = new Runnable() {
+        @Override
+        public void run() {
+            autoConnectPending.set(false);
+            long now = SystemClock.elapsedRealtime();
+            ScanIndex.Entry nearest = scanIndex.nearestEligible(now - AUTO_CONNECT_SETTLE);
+            // The scheduler may have stopped on its own once the board showed up, that is fine.
+            if (nearest == null || autoConnectCancelled) {
+                return;
+            }
+            Log.i(TAG, "Auto-connecting to " + nearest.getDevice().getAddress()
+                    + " at " + nearest.getSmoothedRssi() + " dBm.");
+            scanLeDevice(false);
+            connectDevice(nearest.getDevice());
+        }
+    };
+
+    private final Runnable uiUpdate = new Runnable() {
+        @Override
+        public void run() {
+            uiUpdatePending.set(false);
+            scanIndex.evictOlderThan(SystemClock.elapsedRealtime() - STALE_TIMEOUT);
+            deviceListAdapter.update();
+        }
+    };
+
     private final AdapterView.OnItemClickListener itemClickListener =
             new AdapterView.OnItemClickListener() {
                 @Override
@@ -97,10 +152,34 @@ public class DeviceScanActivity extends AppCompatActivity {
         setContentView(R.layout.activity_device_scan);
 
         handler = new Handler();
+        scanScheduler = new ScanScheduler(handler, new ScanScheduler.Radio() {
+            @Override
+            public boolean startScan() {
+                return bluetoothAdapter.startLeScan(leScanCallback);
+            }
+
+            @Override
+            public void stopScan() {
+                bluetoothAdapter.stopLeScan(leScanCallback);
+            }
+        });
+        scanScheduler.setListener(new ScanScheduler.Listener() {
+            @Override
+            public void onAllFound() {
+                invalidateOptionsMenu();
+            }
+        });
         scanList = (ListView) findViewById(R.id.scan_list);
         deviceListAdapter = new DeviceListAdapter();
 
         autoConnectSwitch = (Switch) findViewById(R.id.auto_connect_switch);
+        autoConnectEnabled = autoConnectSwitch.isChecked();
+        autoConnectSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                autoConnectEnabled = isChecked;
+            }
+        });
 
         if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
             Toast.makeText(this, R.string.bluetooth_le_not_supported, Toast.LENGTH_SHORT).show();
@@ -118,6 +197,8 @@ public class DeviceScanActivity extends AppCompatActivity {
             Toast.makeText(this, R.string.bluetooth_not_supported, Toast.LENGTH_SHORT).show();
             finish();
         }
+        keyExchangeServer = new KeyExchangeServer(new RfcommTransport(bluetoothAdapter),
+                AuthorizationStore.getInstance(this));
     }
 
     @Override
@@ -138,27 +219,34 @@ public class DeviceScanActivity extends AppCompatActivity {
         super.onPause();
 
         scanLeDevice(false);
-        deviceListAdapter.clear();
-        if (acceptThread != null)
-            acceptThread.cancel();
+        handler.removeCallbacks(uiUpdate);
+        uiUpdatePending.set(false);
+        scanIndex.clear();
+        deviceListAdapter.update();
+        keyExchangeServer.stop();
     }
 
     private void scanLeDevice(boolean enable) {
         if (enable) {
-            handler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    scanLeDevice(false);
-                }
-            }, SCAN_PERIOD);
-
-            isScanning = true;
-            bluetoothAdapter.startLeScan(leScanCallback);
+            // Once every board this phone is authorized for has shown up, scanning stops.
+            scanScheduler.clearWanted();
+            for (KeyExchangeHandler.Key key : AuthorizationStore.getInstance(this)
+                    .exportKeys(System.currentTimeMillis())) {
+                scanScheduler.addWanted(MacAddress.unpack(key.address));
+            }
+            autoConnectCancelled = false;
+            scanScheduler.start();
             Log.i(TAG, "Start LE scan.");
         } else {
-            isScanning = false;
-            bluetoothAdapter.stopLeScan(leScanCallback);
-            Log.i(TAG, "Stop LE scan.");
+            autoConnectCancelled = true;
+            handler.removeCallbacks(autoConnectTask);
+            autoConnectPending.set(false);
+            if (scanScheduler.isRunning()) {
+                scanScheduler.stop();
+                Log.i(TAG, "Stop LE scan, radio on " + scanScheduler.getRadioOnTime()
+                        + " ms, duty cycle " + scanScheduler.getDutyCycle() + ", average discovery "
+                        + scanScheduler.getAverageDiscoveryLatency() + " ms.");
+            }
         }
         invalidateOptionsMenu();
     }
@@ -176,11 +264,9 @@ public class DeviceScanActivity extends AppCompatActivity {
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_main, menu);
-        if (isScanning) {
-            menu.findItem(R.id.action_scan).setVisible(false);
-        } else {
-            menu.findItem(R.id.action_scan).setVisible(true);
-        }
+        boolean scanning = scanScheduler.isRunning();
+        menu.findItem(R.id.action_scan).setVisible(!scanning);
+        menu.findItem(R.id.action_stop).setVisible(scanning);
         return true;
     }
 
@@ -191,129 +277,44 @@ public class DeviceScanActivity extends AppCompatActivity {
         if (id == R.id.action_scan) {
             scanLeDevice(true);
             return true;
+        } else if (id == R.id.action_stop) {
+            scanLeDevice(false);
+            return true;
         } else if (id == R.id.action_receive_key) {
-            if (acceptThread == null) {
-                acceptThread = new AcceptThread();
-                acceptThread.start();
-            }
+            keyExchangeServer.start();
             return true;
         }
 
         return super.onOptionsItemSelected(item);
     }
 
-    private class AcceptThread extends Thread {
-        private final BluetoothServerSocket mmServerSocket;
-        private BluetoothSocket socket = null;
-
-        public AcceptThread() {
-            BluetoothServerSocket tmp = null;
-            try {
-                Log.d(TAG, "Listening socket...");
-                tmp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(App.NAME, App.MY_UUID_SECURE);
-            } catch (IOException e) { e.printStackTrace(); }
-            mmServerSocket = tmp;
-        }
-
-        public void run() {
-            // Keep listening until exception occurs or a socket is returned
-            while (true) {
-                try {
-                    socket = mmServerSocket.accept();
-                    Log.d(TAG, "Socket accepted!");
-                } catch (IOException e) {
-                    return;
-                }
-                // If a connection was accepted
-                if (socket != null) {
-                    // Do work to manage the connection (in a separate thread)
-                    try {
-                        mmServerSocket.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    break;
-                }
-            }
-
-            try {
-                InputStream inputStream = socket.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-
-                OutputStream outputStream = socket.getOutputStream();
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream));
-
-                String token = reader.readLine();
-                Log.d(TAG, "Token: " + token);
-
-                writer.write("GET");
-                writer.newLine();
-                writer.flush();
-
-                String response = reader.readLine();
-                Log.d(TAG, "Client response: " + response);
-                if (response.equals("DONE")) {
-                    // todo: add token
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    if (socket != null) {
-                        socket.close();
-                        Log.d(TAG, "Socket closed after reading.");
-                    }
-                } catch (IOException e) { e.printStackTrace(); }
-            }
-        }
-
-        /** Will cancel the listening socket, and cause the thread to finish */
-        public void cancel() {
-            try {
-                if (mmServerSocket != null)
-                    mmServerSocket.close();
-                Log.d(TAG, "Server socket closed on cancel.");
-            } catch (IOException e) { e.printStackTrace(); }
-
-            try {
-                if (socket != null) {
-                    socket.close();
-                    Log.d(TAG, "Socket closed on cancel.");
-                }
-            } catch (IOException e) { e.printStackTrace(); }
-        }
-    }
-
     private class DeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> bluetoothDevices = new ArrayList<>();
+        private ArrayList<ScanIndex.Entry> entries = new ArrayList<>();
         private LayoutInflater inflater;
+        private final AdvertisementData advertisement = new AdvertisementData();
 
         public DeviceListAdapter() {
             inflater = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if (!bluetoothDevices.contains(device)) {
-                bluetoothDevices.add(device);
-            }
+        /** Reloads the list from the scan index nearest first, UI thread only. */
+        public void update() {
+            scanIndex.snapshotByProximity(entries);
+            notifyDataSetChanged();
         }
 
         public BluetoothDevice getDevice(int position) {
-            return bluetoothDevices.get(position);
-        }
-
-        public void clear() {
-            bluetoothDevices.clear();
+            return entries.get(position).getDevice();
         }
 
         @Override
         public int getCount() {
-            return bluetoothDevices.size();
+            return entries.size();
         }
 
         @Override
         public Object getItem(int i) {
-            return bluetoothDevices.get(i);
+            return entries.get(i);
         }
 
         @Override
@@ -330,19 +331,28 @@ public class DeviceScanActivity extends AppCompatActivity {
                 viewHolder = new DeviceViewHolder();
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (DeviceViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = getDevice(i);
+            ScanIndex.Entry entry = entries.get(i);
+            BluetoothDevice device = entry.getDevice();
             String deviceName = device.getName();
+            if (deviceName == null) {
+                // The system only caches names it has resolved, the advertisement may have one.
+                advertisement.parse(entry.getScanRecord());
+                deviceName = advertisement.getLocalName();
+            }
             if (deviceName != null && deviceName.length() > 0) {
                 viewHolder.deviceName.setText(deviceName);
             } else {
                 viewHolder.deviceName.setText(R.string.unknown_device);
             }
             viewHolder.deviceAddress.setText(device.getAddress());
+            viewHolder.deviceRssi.setText(getString(R.string.format_rssi,
+                    Math.round(entry.getSmoothedRssi())));
 
             return view;
         }
@@ -350,6 +360,7 @@ public class DeviceScanActivity extends AppCompatActivity {
         private class DeviceViewHolder {
             private TextView deviceName;
             private TextView deviceAddress;
+            private TextView deviceRssi;
         }
     }
 }
@@ -0,0 +1,193 @@
+package com.example.lab_bt;
+
+import android.os.Handler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Last known LED state of every device the service has talked to, kept across
+ * reconnects so a screen can show it before the radio answers. A command makes its
+ * value pending right away; the board's ACK confirms it, a failed write, a negative
+ * ACK or {@link #PENDING_TIMEOUT} without an answer rolls back to the confirmed one.
+ */
+public class DeviceStateCache {
+    public static final int LED_UNKNOWN = -1;
+    public static final int LED_OFF = 0;
+    public static final int LED_ON = 1;
+
+    public static final long PENDING_TIMEOUT = 3000;
+
+    /** Called with the cache's lock released. */
+    public interface Listener {
+        void onLedStateChanged(String address, int led, boolean pending);
+
+        /** A pending value was rolled back because the board never answered. */
+        void onPendingTimeout(String address);
+    }
+
+    private class Entry implements Runnable {
+        private final String address;
+        private int confirmed = LED_UNKNOWN;
+        private long confirmedTime;
+        private int pending = LED_UNKNOWN;
+        private int pendingSequence = -1;
+
+        private Entry(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public void run() {
+            timeout(address);
+        }
+    }
+
+    private final Handler handler;
+    private final Listener listener;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public DeviceStateCache(Handler handler, Listener listener) {
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    private Entry getEntry(String address) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            entry = new Entry(address);
+            entries.put(address, entry);
+        }
+        return entry;
+    }
+
+    /** The pending value if there is one, otherwise the last confirmed one. */
+    public synchronized int getLed(String address) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            return LED_UNKNOWN;
+        }
+        return entry.pending != LED_UNKNOWN ? entry.pending : entry.confirmed;
+    }
+
+    public synchronized boolean isPending(String address) {
+        Entry entry = entries.get(address);
+        return entry != null && entry.pending != LED_UNKNOWN;
+    }
+
+    /** Wall-clock time of the last confirmation, 0 if there was none. */
+    public synchronized long getConfirmedTime(String address) {
+        Entry entry = entries.get(address);
+        return entry == null ? 0 : entry.confirmedTime;
+    }
+
+    /** The command frame with this sequence number asks the board for {@code led}. */
+    public void setPending(String address, int led, int sequence) {
+        synchronized (this) {
+            Entry entry = getEntry(address);
+            entry.pending = led;
+            entry.pendingSequence = sequence;
+            handler.removeCallbacks(entry);
+            handler.postDelayed(entry, PENDING_TIMEOUT);
+        }
+        listener.onLedStateChanged(address, led, true);
+    }
+
+    public void onAck(String address, int sequence, int status) {
+        Entry entry;
+        int led;
+        synchronized (this) {
+            entry = entries.get(address);
+            if (entry == null || entry.pending == LED_UNKNOWN
+                    || entry.pendingSequence != sequence) {
+                return;
+            }
+            if (status != FrameCodec.ACK_OK) {
+                led = LED_UNKNOWN;
+            } else {
+                led = entry.pending;
+                confirm(entry, led);
+            }
+        }
+        if (led == LED_UNKNOWN) {
+            rollback(entry, sequence);
+        } else {
+            listener.onLedStateChanged(address, led, false);
+        }
+    }
+
+    /** The board reported its state, which always wins over what was cached. */
+    public void onLedState(String address, int led) {
+        boolean pending;
+        synchronized (this) {
+            Entry entry = getEntry(address);
+            entry.confirmed = led;
+            entry.confirmedTime = System.currentTimeMillis();
+            if (entry.pending == led) {
+                confirm(entry, led);
+            }
+            pending = entry.pending != LED_UNKNOWN;
+            if (pending) {
+                led = entry.pending;
+            }
+        }
+        listener.onLedStateChanged(address, led, pending);
+    }
+
+    /** Gives up on the pending value. Runs on the handler, visible for tests. */
+    void timeout(String address) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(address);
+        }
+        if (entry != null && rollback(entry, -1)) {
+            listener.onPendingTimeout(address);
+        }
+    }
+
+    public void onWriteFailed(String address, int sequence) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(address);
+        }
+        if (entry != null) {
+            rollback(entry, sequence);
+        }
+    }
+
+    /** The link is gone, nothing that is pending will be answered any more. */
+    public void onDisconnected(String address) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(address);
+        }
+        if (entry != null) {
+            rollback(entry, -1);
+        }
+    }
+
+    private void confirm(Entry entry, int led) {
+        entry.confirmed = led;
+        entry.confirmedTime = System.currentTimeMillis();
+        entry.pending = LED_UNKNOWN;
+        entry.pendingSequence = -1;
+        handler.removeCallbacks(entry);
+    }
+
+    // A sequence of -1 rolls back whatever is pending.
+    private boolean rollback(Entry entry, int sequence) {
+        int led;
+        synchronized (this) {
+            if (entry.pending == LED_UNKNOWN
+                    || (sequence != -1 && entry.pendingSequence != sequence)) {
+                return false;
+            }
+            entry.pending = LED_UNKNOWN;
+            entry.pendingSequence = -1;
+            handler.removeCallbacks(entry);
+            led = entry.confirmed;
+        }
+        listener.onLedStateChanged(entry.address, led, false);
+        return true;
+    }
+}
@@ -0,0 +1,387 @@
+package com.example.lab_bt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Append-only device event log in memory-mapped segment files. A segment starts with a
+ * time index, the lowest and highest timestamp of every block of {@link #BLOCK_RECORDS}
+ * records, followed by the records. Every record has the same 40-byte layout:
+ *
+ * <pre>
+ * 0  sequence number, counting up from 1 across segments and restarts
+ *    (0 marks the unused tail of a segment)
+ * 8  timestamp, ms since epoch as passed to {@link #append}
+ * 16 device address packed by {@link MacAddress}
+ * 24 type
+ * 26 payload length
+ * 27 reserved
+ * 28 payload, up to 12 bytes, longer payloads are truncated
+ * </pre>
+ *
+ * The wall clock may jump in either direction, so time-window queries skip the blocks
+ * whose range misses the window rather than bisect; sequence queries bisect. An append
+ * is a handful of stores into the mapped buffer. The next segment is created and mapped
+ * on a background thread as soon as the current one is opened, and a full segment is
+ * flushed there too, so the caller never waits on file I/O. Should the next segment not
+ * be ready when the current one fills up, records are dropped until it is.
+ */
+public class EventLog {
+    private static final String TAG = EventLog.class.getName();
+
+    public static final int TYPE_CONNECTED = 1;
+    public static final int TYPE_DISCONNECTED = 2;
+    public static final int TYPE_COMMAND = 3;
+    public static final int TYPE_NOTIFICATION = 4;
+    /** Payload: the confirmed LED state, 0 or 1. */
+    public static final int TYPE_LED_STATE = 5;
+
+    /** Matches every device in {@link #query}. */
+    public static final long ANY_ADDRESS = -1;
+
+    public static final int RECORD_SIZE = 40;
+    public static final int MAX_PAYLOAD = 12;
+
+    private static final int SEGMENT_RECORDS = 32768;
+    private static final int BLOCK_RECORDS = 64;
+    // Lowest and highest timestamp per block.
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int INDEX_SIZE = SEGMENT_RECORDS / BLOCK_RECORDS * INDEX_ENTRY_SIZE;
+    private static final int SEGMENT_SIZE = INDEX_SIZE + SEGMENT_RECORDS * RECORD_SIZE;
+    private static final int MAX_SEGMENTS = 32;
+    private static final String SUFFIX = ".seg";
+
+    public interface Visitor {
+        /** {@code payload} is reused for the next record. */
+        void onEvent(long sequence, long timestamp, long address, int type, byte[] payload,
+                     int length);
+    }
+
+    private final File directory;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private MappedByteBuffer segment;
+    private long segmentNumber;
+    // Records in the current segment.
+    private int records;
+    private long nextSequence = 1;
+    private Future<MappedByteBuffer> nextSegment;
+    private long appendedCount;
+    private long droppedCount;
+
+    public EventLog(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        openLatest();
+        prepareNextSegment();
+    }
+
+    public synchronized void append(long timestamp, long address, int type,
+                                    byte[] payload, int offset, int length) {
+        if (segment == null) {
+            return;
+        }
+        if (records == SEGMENT_RECORDS && !rotate()) {
+            droppedCount++;
+            return;
+        }
+
+        int index = records / BLOCK_RECORDS * INDEX_ENTRY_SIZE;
+        if (records % BLOCK_RECORDS == 0) {
+            segment.putLong(index, timestamp);
+            segment.putLong(index + 8, timestamp);
+        } else if (timestamp < segment.getLong(index)) {
+            segment.putLong(index, timestamp);
+        } else if (timestamp > segment.getLong(index + 8)) {
+            segment.putLong(index + 8, timestamp);
+        }
+        int stored = Math.min(length, MAX_PAYLOAD);
+        int base = offset(records);
+        segment.putLong(base + 8, timestamp);
+        segment.putLong(base + 16, address);
+        segment.putShort(base + 24, (short) type);
+        segment.put(base + 26, (byte) stored);
+        for (int i = 0; i < stored; i++) {
+            segment.put(base + 28 + i, payload[offset + i]);
+        }
+        // Written last, a non-zero sequence number is what makes the record visible.
+        segment.putLong(base, nextSequence++);
+        records++;
+        appendedCount++;
+    }
+
+    public void append(long timestamp, long address, int type) {
+        append(timestamp, address, type, null, 0, 0);
+    }
+
+    public synchronized long getAppendedCount() {
+        return appendedCount;
+    }
+
+    /** Records lost because the next segment was not ready in time. */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /** Sequence number of the next record, a query from here sees only newer ones. */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Visits, in the order they were appended, every record of the device (or
+     * {@link #ANY_ADDRESS}) with {@code from <= timestamp < to}.
+     */
+    public int query(long address, long from, long to, Visitor visitor) throws IOException {
+        return query(address, 0, Long.MAX_VALUE, from, to, visitor);
+    }
+
+    /**
+     * Visits, oldest first, every record of the device (or {@link #ANY_ADDRESS}) with
+     * {@code from <= sequence < to}.
+     */
+    public int querySequence(long address, long from, long to, Visitor visitor)
+            throws IOException {
+        return query(address, from, to, Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
+    private int query(long address, long fromSequence, long toSequence, long fromTime,
+                      long toTime, Visitor visitor) throws IOException {
+        File[] files = listSegments();
+        byte[] payload = new byte[MAX_PAYLOAD];
+        int count = 0;
+        for (File file : files) {
+            int found = scan(file, address, fromSequence, toSequence, fromTime, toTime,
+                    visitor, payload);
+            if (found < 0) {
+                break;
+            }
+            count += found;
+        }
+        return count;
+    }
+
+    public synchronized void close() {
+        if (segment != null) {
+            segment.force();
+            segment = null;
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Returns -1 when the segment starts at or after {@code toSequence}, later ones are
+     * skipped.
+     */
+    private int scan(File file, long address, long fromSequence, long toSequence,
+                     long fromTime, long toTime, Visitor visitor, byte[] payload)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() != SEGMENT_SIZE) {
+                // Still being created.
+                return 0;
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    SEGMENT_SIZE);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.getLong(offset(0)) >= toSequence) {
+                // Segments are numbered in sequence order, later ones start even later.
+                return -1;
+            }
+            int count = 0;
+            int record = firstRecord(buffer, SEGMENT_RECORDS, fromSequence);
+            while (record < SEGMENT_RECORDS) {
+                int blockEnd = (record / BLOCK_RECORDS + 1) * BLOCK_RECORDS;
+                int index = record / BLOCK_RECORDS * INDEX_ENTRY_SIZE;
+                if (buffer.getLong(offset(record)) == 0) {
+                    break;
+                }
+                if (buffer.getLong(index + 8) < fromTime || buffer.getLong(index) >= toTime) {
+                    record = blockEnd;
+                    continue;
+                }
+                for (; record < blockEnd; record++) {
+                    int base = offset(record);
+                    long sequence = buffer.getLong(base);
+                    if (sequence == 0 || sequence >= toSequence) {
+                        return count;
+                    }
+                    long timestamp = buffer.getLong(base + 8);
+                    long recordAddress = buffer.getLong(base + 16);
+                    if (timestamp < fromTime || timestamp >= toTime
+                            || (address != ANY_ADDRESS && recordAddress != address)) {
+                        continue;
+                    }
+                    int length = buffer.get(base + 26);
+                    for (int i = 0; i < length; i++) {
+                        payload[i] = buffer.get(base + 28 + i);
+                    }
+                    visitor.onEvent(sequence, timestamp, recordAddress,
+                            buffer.getShort(base + 24), payload, length);
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int offset(int record) {
+        return INDEX_SIZE + record * RECORD_SIZE;
+    }
+
+    /**
+     * Index of the first record with a sequence number of at least {@code from}, the
+     * unused tail reads as zero.
+     */
+    private static int firstRecord(MappedByteBuffer buffer, int end, long from) {
+        int low = 0;
+        int high = end;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            long sequence = buffer.getLong(offset(middle));
+            if (sequence != 0 && sequence < from) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Continues in the newest segment holding records; a newer one that was only
+    // prepared stays empty and becomes the next segment again.
+    private void openLatest() throws IOException {
+        // Segments of another size were written with an older record layout.
+        for (File file : listSegments()) {
+            if (file.length() != SEGMENT_SIZE && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+        File[] files = listSegments();
+        for (int i = files.length - 1; i >= 0; i--) {
+            MappedByteBuffer buffer = map(files[i]);
+            int used = firstRecord(buffer, SEGMENT_RECORDS, Long.MAX_VALUE);
+            if (used > 0 || i == 0) {
+                segmentNumber = number(files[i]);
+                segment = buffer;
+                records = used;
+                if (used > 0) {
+                    nextSequence = buffer.getLong(offset(used - 1)) + 1;
+                }
+                return;
+            }
+        }
+        segment = map(new File(directory, name(segmentNumber)));
+        records = 0;
+    }
+
+    // Never waits: the full segment is flushed on the executor, and an unfinished next
+    // segment fails the append.
+    private boolean rotate() {
+        if (!nextSegment.isDone()) {
+            return false;
+        }
+        MappedByteBuffer next = null;
+        try {
+            next = nextSegment.get();
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to open the next event log segment.", e);
+        }
+        if (next == null) {
+            // Try again in the background, records are dropped meanwhile.
+            prepareNextSegment();
+            return false;
+        }
+        final MappedByteBuffer full = segment;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                full.force();
+            }
+        });
+        segment = next;
+        segmentNumber++;
+        records = 0;
+        prepareNextSegment();
+        return true;
+    }
+
+    /** Whether a full segment would be replaced without dropping records, for tests. */
+    synchronized boolean isNextSegmentReady() {
+        return nextSegment.isDone();
+    }
+
+    private void prepareNextSegment() {
+        final File file = new File(directory, name(segmentNumber + 1));
+        nextSegment = executor.submit(new Callable<MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer call() throws IOException {
+                deleteOldSegments();
+                return map(file);
+            }
+        });
+    }
+
+    private void deleteOldSegments() {
+        File[] files = listSegments();
+        for (int i = 0; i < files.length - MAX_SEGMENTS + 1; i++) {
+            if (!files[i].delete()) {
+                Log.w(TAG, "Unable to delete " + files[i]);
+            }
+        }
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(SEGMENT_SIZE);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    SEGMENT_SIZE);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            return buffer;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File[] listSegments() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        files = Arrays.copyOf(files, count);
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static String name(long number) {
+        return String.format("%019d%s", number, SUFFIX);
+    }
+
+    private static long number(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+}
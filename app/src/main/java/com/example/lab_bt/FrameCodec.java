@@ -0,0 +1,111 @@
+package com.example.lab_bt;
+
+/**
+ * Wire format shared with {@code arduino/BT/BT.ino}:
+ *
+ * <pre>
+ * +------+-----+-----+-----+-------------+-------+
+ * | 0xA5 | LEN | CMD | SEQ | PAYLOAD ... | CRC-8 |
+ * +------+-----+-----+-----+-------------+-------+
+ * </pre>
+ *
+ * LEN is the payload length, CRC-8 (polynomial 0x07) covers LEN through the last
+ * payload byte. Every command frame is answered with an {@link #EVT_ACK} carrying the
+ * same sequence number.
+ */
+public final class FrameCodec {
+    public static final int SOF = 0xA5;
+    public static final int HEADER_SIZE = 4;
+    public static final int OVERHEAD = HEADER_SIZE + 1;
+    public static final int MAX_PAYLOAD = 32;
+    public static final int MAX_FRAME = MAX_PAYLOAD + OVERHEAD;
+
+    public static final int CMD_LED_ON = 0x01;
+    public static final int CMD_LED_OFF = 0x02;
+    public static final int CMD_QUERY = 0x03;
+    /** Payload: sample interval in milliseconds, 16-bit little endian, 0 for flat out. */
+    public static final int CMD_STREAM_START = 0x04;
+    public static final int CMD_STREAM_STOP = 0x05;
+
+    public static final int EVT_ACK = 0x80;
+    public static final int EVT_LED_STATE = 0x81;
+    /** The board's operator granted access. Payload: optional token, up to MAX_PAYLOAD. */
+    public static final int EVT_AUTH = 0x82;
+    /** The board is listening, no payload. Authorized phones may send commands. */
+    public static final int EVT_READY = 0x83;
+    /** Payload: board millis() as 32-bit and A0 reading as 16-bit, both little endian. */
+    public static final int EVT_SAMPLE = 0x84;
+
+    public static final int ACK_OK = 0x00;
+    public static final int ACK_UNKNOWN_COMMAND = 0x01;
+
+    private static final byte[] CRC_TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC_TABLE[i] = (byte) crc;
+        }
+    }
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Whether sending the command twice does no harm, such commands may go out
+     * without a link-layer acknowledgement.
+     */
+    public static boolean isIdempotent(int command) {
+        return command == CMD_LED_ON || command == CMD_LED_OFF || command == CMD_QUERY
+                || command == CMD_STREAM_STOP;
+    }
+
+    /** The command of an encoded frame. */
+    public static int commandOf(byte[] frame) {
+        return frame[2] & 0xFF;
+    }
+
+    public static int crc8(int crc, int b) {
+        return CRC_TABLE[(crc ^ b) & 0xFF] & 0xFF;
+    }
+
+    /**
+     * Writes a frame into {@code out} starting at {@code offset} and returns its length.
+     */
+    public static int encode(int command, int sequence, byte[] payload, int payloadOffset,
+                             int payloadLength, byte[] out, int offset) {
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload too long: " + payloadLength);
+        }
+
+        out[offset] = (byte) SOF;
+        out[offset + 1] = (byte) payloadLength;
+        out[offset + 2] = (byte) command;
+        out[offset + 3] = (byte) sequence;
+        if (payloadLength > 0) {
+            System.arraycopy(payload, payloadOffset, out, offset + HEADER_SIZE, payloadLength);
+        }
+
+        int crc = 0;
+        int end = offset + HEADER_SIZE + payloadLength;
+        for (int i = offset + 1; i < end; i++) {
+            crc = crc8(crc, out[i]);
+        }
+        out[end] = (byte) crc;
+        return payloadLength + OVERHEAD;
+    }
+
+    public static byte[] encode(int command, int sequence, byte[] payload) {
+        int length = payload == null ? 0 : payload.length;
+        byte[] frame = new byte[length + OVERHEAD];
+        encode(command, sequence, payload, 0, length, frame, 0);
+        return frame;
+    }
+
+    public static byte[] encode(int command, int sequence) {
+        return encode(command, sequence, null);
+    }
+}
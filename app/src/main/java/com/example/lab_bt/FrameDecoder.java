@@ -0,0 +1,101 @@
+package com.example.lab_bt;
+
+/**
+ * Incremental {@link FrameCodec} decoder. Notifications can split a frame or carry
+ * several of them, so bytes are fed as they arrive and complete frames are handed to
+ * the listener from a single reused buffer. Corrupt input is skipped until the next
+ * start-of-frame byte: the raw bytes of a candidate frame are kept until its CRC is
+ * checked, and when it fails, decoding starts over from the byte after the false
+ * start. A stray 0xA5 or a lost fragment therefore costs no more than the bytes up to
+ * the next real frame, though that frame is held back until the false candidate's
+ * claimed length has arrived.
+ */
+public class FrameDecoder {
+    public interface Listener {
+        /** {@code payload} is reused for the next frame. */
+        void onFrame(int command, int sequence, byte[] payload, int length);
+    }
+
+    private final Listener listener;
+    private final byte[] payload = new byte[FrameCodec.MAX_PAYLOAD];
+    // Raw bytes from a start-of-frame byte on, never more than one frame.
+    private final byte[] buffer = new byte[FrameCodec.MAX_FRAME];
+    private int size;
+
+    private long frameCount;
+    private long errorCount;
+
+    public FrameDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void feed(byte[] data, int offset, int count) {
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            if (size == 0 && (data[i] & 0xFF) != FrameCodec.SOF) {
+                continue;
+            }
+            buffer[size++] = data[i];
+            decode();
+        }
+    }
+
+    // Leaves the buffer empty or holding the start of a frame that is not complete yet.
+    private void decode() {
+        while (size > 0) {
+            if ((buffer[0] & 0xFF) != FrameCodec.SOF) {
+                int start = 1;
+                while (start < size && (buffer[start] & 0xFF) != FrameCodec.SOF) {
+                    start++;
+                }
+                drop(start);
+                continue;
+            }
+            if (size < 2) {
+                return;
+            }
+            int length = buffer[1] & 0xFF;
+            if (length > FrameCodec.MAX_PAYLOAD) {
+                errorCount++;
+                drop(1);
+                continue;
+            }
+            int frameSize = length + FrameCodec.OVERHEAD;
+            if (size < frameSize) {
+                return;
+            }
+            int crc = 0;
+            for (int i = 1; i < frameSize - 1; i++) {
+                crc = FrameCodec.crc8(crc, buffer[i]);
+            }
+            if (crc != (buffer[frameSize - 1] & 0xFF)) {
+                errorCount++;
+                drop(1);
+                continue;
+            }
+            int command = buffer[2] & 0xFF;
+            int sequence = buffer[3] & 0xFF;
+            System.arraycopy(buffer, FrameCodec.HEADER_SIZE, payload, 0, length);
+            drop(frameSize);
+            frameCount++;
+            listener.onFrame(command, sequence, payload, length);
+        }
+    }
+
+    private void drop(int count) {
+        size -= count;
+        System.arraycopy(buffer, count, buffer, 0, size);
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+}
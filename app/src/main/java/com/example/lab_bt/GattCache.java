@@ -0,0 +1,80 @@
+package com.example.lab_bt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Remembers the service layout discovered on each device across sessions. Android
+ * still needs a discovery round before it hands out characteristics, but a device
+ * with a known layout can take writes while it is connecting, they go out as soon as
+ * discovery finishes.
+ */
+public class GattCache {
+    private static final String TAG = GattCache.class.getName();
+    private static final String PREFERENCES = "gatt_cache";
+
+    private final SharedPreferences preferences;
+    private final Map<String, Set<String>> layouts = new HashMap<>();
+
+    public GattCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static String key(UUID serviceUuid, UUID charUuid) {
+        return serviceUuid + "/" + charUuid;
+    }
+
+    private Set<String> getLayout(String address) {
+        Set<String> layout = layouts.get(address);
+        if (layout == null) {
+            layout = preferences.getStringSet(address, Collections.<String>emptySet());
+            layouts.put(address, layout);
+        }
+        return layout;
+    }
+
+    public synchronized boolean isKnown(String address) {
+        return !getLayout(address).isEmpty();
+    }
+
+    public synchronized boolean hasCharacteristic(String address, UUID serviceUuid,
+                                                  UUID charUuid) {
+        return getLayout(address).contains(key(serviceUuid, charUuid));
+    }
+
+    /**
+     * Stores the freshly discovered layout. Returns false when it differs from what
+     * was cached for the device.
+     */
+    public synchronized boolean update(String address, Link link) {
+        Set<String> layout = new HashSet<>();
+        for (UUID charUuid : link.getCharacteristics()) {
+            layout.add(key(link.getServiceUuid(charUuid), charUuid));
+        }
+
+        Set<String> cached = getLayout(address);
+        if (layout.equals(cached)) {
+            return true;
+        }
+        if (!cached.isEmpty()) {
+            Log.w(TAG, "GATT layout of " + address + " changed.");
+        }
+        layouts.put(address, layout);
+        preferences.edit().putStringSet(address, layout).apply();
+        return cached.isEmpty();
+    }
+
+    /** Forgets the device's layout, its next connect waits for discovery again. */
+    public synchronized void invalidate(String address) {
+        layouts.remove(address);
+        preferences.edit().remove(address).apply();
+    }
+}
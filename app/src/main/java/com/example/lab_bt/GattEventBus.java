@@ -0,0 +1,221 @@
+package com.example.lab_bt;
+
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches GATT events to in-process listeners. Listeners registered without a
+ * handler are called directly on the GATT callback thread with the characteristic's
+ * own buffer. Listeners registered with a handler get the payload copied into one of
+ * a few preallocated slots and delivered through pooled messages, so the data path
+ * does not allocate per notification.
+ */
+public class GattEventBus {
+    private static final String TAG = GattEventBus.class.getName();
+
+    private static final int SLOT_COUNT = 16;
+    private static final int SLOT_SIZE = 64;
+
+    private static final int MSG_CONNECTION_STATE = 1;
+    private static final int MSG_SERVICES_DISCOVERED = 2;
+    private static final int MSG_DATA = 3;
+    private static final int MSG_LED_STATE = 4;
+    private static final int MSG_AUTHORIZATION = 5;
+
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    public synchronized void register(GattListener listener, Handler handler) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                return;
+            }
+        }
+        Subscription[] updated = new Subscription[subscriptions.length + 1];
+        System.arraycopy(subscriptions, 0, updated, 0, subscriptions.length);
+        updated[subscriptions.length] = new Subscription(listener, handler);
+        subscriptions = updated;
+    }
+
+    public synchronized void unregister(GattListener listener) {
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i].listener == listener) {
+                Subscription[] updated = new Subscription[subscriptions.length - 1];
+                System.arraycopy(subscriptions, 0, updated, 0, i);
+                System.arraycopy(subscriptions, i + 1, updated, i, updated.length - i);
+                subscriptions[i].close();
+                subscriptions = updated;
+                return;
+            }
+        }
+    }
+
+    public void postConnectionState(String address, int state) {
+        for (Subscription subscription : subscriptions) {
+            subscription.connectionState(address, state);
+        }
+    }
+
+    public void postServicesDiscovered(String address) {
+        for (Subscription subscription : subscriptions) {
+            subscription.servicesDiscovered(address);
+        }
+    }
+
+    public void postData(String address, byte[] data, int length) {
+        for (Subscription subscription : subscriptions) {
+            subscription.data(address, data, length);
+        }
+    }
+
+    public void postLedState(String address, int led, boolean pending) {
+        for (Subscription subscription : subscriptions) {
+            subscription.ledState(address, led, pending);
+        }
+    }
+
+    public void postAuthorization(String address, boolean authorized) {
+        for (Subscription subscription : subscriptions) {
+            subscription.authorization(address, authorized);
+        }
+    }
+
+    /** Number of notifications dropped because a subscriber fell behind. */
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (Subscription subscription : subscriptions) {
+            dropped += subscription.dropped.get();
+        }
+        return dropped;
+    }
+
+    private static class Subscription implements Handler.Callback {
+        private final GattListener listener;
+        private final Handler handler;
+
+        private final byte[][] slots;
+        private final AtomicIntegerArray busy;
+        private final AtomicLong dropped = new AtomicLong();
+        private int nextSlot;
+        private volatile boolean closed;
+
+        private Subscription(GattListener listener, Handler handler) {
+            this.listener = listener;
+            this.handler = handler == null ? null : new Handler(handler.getLooper(), this);
+            if (handler == null) {
+                slots = null;
+                busy = null;
+            } else {
+                slots = new byte[SLOT_COUNT][SLOT_SIZE];
+                busy = new AtomicIntegerArray(SLOT_COUNT);
+            }
+        }
+
+        private void connectionState(String address, int state) {
+            if (handler == null) {
+                listener.onConnectionStateChanged(address, state);
+            } else {
+                Message.obtain(handler, MSG_CONNECTION_STATE, state, 0, address).sendToTarget();
+            }
+        }
+
+        private void servicesDiscovered(String address) {
+            if (handler == null) {
+                listener.onServicesDiscovered(address);
+            } else {
+                Message.obtain(handler, MSG_SERVICES_DISCOVERED, address).sendToTarget();
+            }
+        }
+
+        private void ledState(String address, int led, boolean pending) {
+            if (handler == null) {
+                listener.onLedStateChanged(address, led, pending);
+            } else {
+                Message.obtain(handler, MSG_LED_STATE, led, pending ? 1 : 0, address)
+                        .sendToTarget();
+            }
+        }
+
+        private void authorization(String address, boolean authorized) {
+            if (handler == null) {
+                listener.onAuthorizationChanged(address, authorized);
+            } else {
+                Message.obtain(handler, MSG_AUTHORIZATION, authorized ? 1 : 0, 0, address)
+                        .sendToTarget();
+            }
+        }
+
+        private void data(String address, byte[] data, int length) {
+            if (handler == null) {
+                listener.onDataAvailable(address, data, length);
+                return;
+            }
+
+            int slot = claimSlot();
+            if (slot < 0) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (slots[slot].length < length) {
+                slots[slot] = new byte[length];
+            }
+            System.arraycopy(data, 0, slots[slot], 0, length);
+            Message.obtain(handler, MSG_DATA, slot, length, address).sendToTarget();
+        }
+
+        // Only the GATT callback thread produces, so nextSlot needs no synchronization.
+        private int claimSlot() {
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                int slot = (nextSlot + i) % SLOT_COUNT;
+                if (busy.compareAndSet(slot, 0, 1)) {
+                    nextSlot = (slot + 1) % SLOT_COUNT;
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private void close() {
+            closed = true;
+            if (handler != null) {
+                handler.removeCallbacksAndMessages(null);
+            }
+        }
+
+        @Override
+        public boolean handleMessage(Message message) {
+            if (closed) {
+                return true;
+            }
+            String address = (String) message.obj;
+            switch (message.what) {
+                case MSG_CONNECTION_STATE:
+                    listener.onConnectionStateChanged(address, message.arg1);
+                    break;
+                case MSG_SERVICES_DISCOVERED:
+                    listener.onServicesDiscovered(address);
+                    break;
+                case MSG_DATA:
+                    try {
+                        listener.onDataAvailable(address, slots[message.arg1], message.arg2);
+                    } finally {
+                        busy.set(message.arg1, 0);
+                    }
+                    break;
+                case MSG_LED_STATE:
+                    listener.onLedStateChanged(address, message.arg1, message.arg2 != 0);
+                    break;
+                case MSG_AUTHORIZATION:
+                    listener.onAuthorizationChanged(address, message.arg1 != 0);
+                    break;
+                default:
+                    Log.w(TAG, "Unknown message " + message.what + ".");
+                    break;
+            }
+            return true;
+        }
+    }
+}
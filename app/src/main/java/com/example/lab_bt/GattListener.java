@@ -0,0 +1,29 @@
+package com.example.lab_bt;
+
+/**
+ * In-process subscriber for {@link BluetoothLeService} events, registered through
+ * {@link BluetoothLeService.LocalBinder}.
+ */
+public interface GattListener {
+    void onConnectionStateChanged(String address, int state);
+
+    void onServicesDiscovered(String address);
+
+    /**
+     * The buffer is only valid for the duration of the call, copy whatever has to
+     * be kept.
+     */
+    void onDataAvailable(String address, byte[] data, int length);
+
+    /**
+     * The cached LED state changed, {@code pending} while a command has not been
+     * confirmed by the board yet. See {@link DeviceStateCache}.
+     */
+    void onLedStateChanged(String address, int led, boolean pending);
+
+    /**
+     * Whether the board accepts this phone, sent when the board grants access and
+     * whenever it reports ready.
+     */
+    void onAuthorizationChanged(String address, boolean authorized);
+}
@@ -0,0 +1,200 @@
+package com.example.lab_bt;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A single request queued on a {@link GattOperationQueue}. The characteristic is
+ * named by UUID and only looked up on the {@link Link} when the operation is issued,
+ * so writes can be queued before discovery has finished. The value to write is held
+ * by the operation itself, queued writes never overwrite each other.
+ */
+public class GattOperation {
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_REJECTED = -2;
+    public static final int STATUS_CANCELLED = -3;
+    public static final int STATUS_SUPERSEDED = -4;
+    public static final int STATUS_NOT_CONNECTED = -5;
+
+    public static final long DEFAULT_TIMEOUT = 2000;
+    public static final int DEFAULT_RETRIES = 2;
+
+    public enum Type {
+        READ,
+        WRITE,
+        SET_NOTIFICATION,
+        REQUEST_MTU
+    }
+
+    public interface Callback {
+        void onComplete(GattOperation operation, int status);
+    }
+
+    private final Type type;
+    private final UUID charUuid;
+    private final byte[] value;
+    private final Callback callback;
+
+    private long timeout = DEFAULT_TIMEOUT;
+    private int retries = DEFAULT_RETRIES;
+    private boolean coalescing;
+    private int writeType;
+    private boolean enable;
+    private int chunkSize;
+    private int offset;
+    private int mtu;
+    private int attempts;
+    private long submitTime;
+
+    private GattOperation(Type type, UUID charUuid, byte[] value, Callback callback) {
+        this.type = type;
+        this.charUuid = charUuid;
+        this.value = value;
+        this.callback = callback;
+    }
+
+    public static GattOperation read(UUID charUuid, Callback callback) {
+        return new GattOperation(Type.READ, charUuid, null, callback);
+    }
+
+    public static GattOperation write(UUID charUuid, byte[] value, Callback callback) {
+        return new GattOperation(Type.WRITE, charUuid, value, callback);
+    }
+
+    /** Turns notifications on or off, on the peripheral as well. */
+    public static GattOperation setNotification(UUID charUuid, boolean enable,
+                                                Callback callback) {
+        GattOperation operation = new GattOperation(Type.SET_NOTIFICATION, charUuid, null,
+                callback);
+        operation.enable = enable;
+        return operation;
+    }
+
+    /** Completes once the MTU exchange is over, see {@link Link#getMaxMtu}. */
+    public static GattOperation requestMtu(int mtu, Callback callback) {
+        GattOperation operation = new GattOperation(Type.REQUEST_MTU, null, null, callback);
+        operation.mtu = mtu;
+        return operation;
+    }
+
+    public GattOperation setTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public GattOperation setRetries(int retries) {
+        this.retries = retries;
+        return this;
+    }
+
+    /**
+     * A coalescing write replaces a coalescing write to the same characteristic that
+     * is still waiting in the queue, the replaced one completes as superseded.
+     */
+    public GattOperation setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+        return this;
+    }
+
+    /**
+     * One of the {@code BluetoothGattCharacteristic.WRITE_TYPE_*} values, 0 leaves the
+     * characteristic's own write type alone.
+     */
+    public GattOperation setWriteType(int writeType) {
+        this.writeType = writeType;
+        return this;
+    }
+
+    /**
+     * Splits a longer value into writes of at most this many bytes, issued back to
+     * back; the callback only runs once the last one completed or one failed for good.
+     */
+    public GattOperation setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    boolean supersedes(GattOperation other) {
+        return coalescing && other.coalescing && type == other.type
+                && (charUuid == null ? other.charUuid == null : charUuid.equals(other.charUuid));
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public UUID getCharUuid() {
+        return charUuid;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    /** The requested MTU, the one the link settled on comes with onMtuChanged. */
+    public int getMtu() {
+        return mtu;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getSubmitTime() {
+        return submitTime;
+    }
+
+    void setSubmitTime(long submitTime) {
+        this.submitTime = submitTime;
+    }
+
+    boolean canRetry() {
+        return attempts <= retries;
+    }
+
+    /** Moves on to the next chunk of a chunked write, false once all went out. */
+    boolean nextChunk() {
+        if (chunkSize <= 0 || value == null || offset + chunkSize >= value.length) {
+            return false;
+        }
+        offset += chunkSize;
+        attempts = 0;
+        return true;
+    }
+
+    /** Issues the next attempt, its outcome will carry {@code token}. */
+    boolean execute(Link link, int token) {
+        attempts++;
+        switch (type) {
+            case READ:
+                return link.read(charUuid, token);
+            case WRITE:
+                if (chunkSize > 0 && value.length > chunkSize) {
+                    int end = Math.min(offset + chunkSize, value.length);
+                    return link.write(charUuid, Arrays.copyOfRange(value, offset, end),
+                            writeType, token);
+                }
+                return link.write(charUuid, value, writeType, token);
+            case SET_NOTIFICATION:
+                return link.setNotification(charUuid, enable, token);
+            case REQUEST_MTU:
+                return link.requestMtu(mtu, token);
+            default:
+                return false;
+        }
+    }
+
+    void complete(int status) {
+        if (callback != null) {
+            callback.onComplete(this, status);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.lab_bt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Android only allows one outstanding GATT request per connection, anything issued
+ * while another one is in flight is rejected. This queue keeps exactly one operation
+ * in flight and issues the next one straight from the completion callback, so
+ * back-to-back submissions go out without waiting for another thread.
+ */
+public class GattOperationQueue {
+    private static final String TAG = GattOperationQueue.class.getName();
+    private static final long RETRY_DELAY = 50;
+
+    private final Scheduler scheduler;
+    private final ArrayDeque<GattOperation> pending = new ArrayDeque<>();
+
+    private Link link;
+    private GattOperation current;
+    private DeviceMetrics metrics;
+    private long issueTime;
+    // Token of the attempt in flight; answers carrying any other one are stale.
+    private int token;
+    private boolean awaiting;
+
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            timeout();
+        }
+    };
+
+    private final Runnable nextRunnable = new Runnable() {
+        @Override
+        public void run() {
+            next();
+        }
+    };
+
+    /** Every request goes out on the scheduler's thread, and timeouts run there. */
+    public GattOperationQueue(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /** Write round trips are recorded here, per issued write including every chunk. */
+    public synchronized void setMetrics(DeviceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void attach(Link link) {
+        synchronized (this) {
+            this.link = link;
+        }
+        schedule();
+    }
+
+    /** Drops the connection and fails everything that is still queued. */
+    public void detach() {
+        ArrayDeque<GattOperation> dropped;
+        synchronized (this) {
+            link = null;
+            awaiting = false;
+            scheduler.removeCallbacks(timeoutRunnable);
+            scheduler.removeCallbacks(nextRunnable);
+            dropped = new ArrayDeque<>(pending);
+            if (current != null) {
+                dropped.addFirst(current);
+                current = null;
+            }
+            pending.clear();
+        }
+        for (GattOperation operation : dropped) {
+            operation.complete(GattOperation.STATUS_CANCELLED);
+        }
+    }
+
+    public void submit(GattOperation operation) {
+        GattOperation superseded = null;
+        synchronized (this) {
+            operation.setSubmitTime(SystemClock.elapsedRealtime());
+            if (operation.isCoalescing()) {
+                superseded = replacePending(operation);
+            }
+            if (superseded == null) {
+                pending.add(operation);
+            }
+        }
+        if (superseded != null) {
+            superseded.complete(GattOperation.STATUS_SUPERSEDED);
+        }
+        schedule();
+    }
+
+    /**
+     * Queues the operation ahead of everything that is still waiting, such as writes
+     * held while the link was down. Never coalesces.
+     */
+    public void submitFirst(GattOperation operation) {
+        synchronized (this) {
+            operation.setSubmitTime(SystemClock.elapsedRealtime());
+            pending.addFirst(operation);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduler.isCurrentThread()) {
+            next();
+        } else {
+            // Only the scheduler's thread talks to the link, callers elsewhere never wait on it.
+            scheduler.post(nextRunnable);
+        }
+    }
+
+    // Rotates the queue once so the replacement keeps the superseded operation's place.
+    private GattOperation replacePending(GattOperation operation) {
+        GattOperation superseded = null;
+        for (int i = pending.size(); i > 0; i--) {
+            GattOperation queued = pending.poll();
+            if (superseded == null && operation.supersedes(queued)) {
+                superseded = queued;
+                queued = operation;
+            }
+            pending.add(queued);
+        }
+        return superseded;
+    }
+
+    public synchronized int size() {
+        return pending.size() + (current == null ? 0 : 1);
+    }
+
+    /**
+     * Called from the GATT callback with the outcome of an attempt. Answers to attempts
+     * that already timed out or were replaced by a retry are dropped.
+     */
+    public void onComplete(GattOperation.Type type, int status, int token) {
+        GattOperation operation;
+        synchronized (this) {
+            operation = current;
+            if (operation == null || !awaiting || token != this.token
+                    || operation.getType() != type) {
+                Log.w(TAG, "Stale " + type + " completion dropped.");
+                return;
+            }
+            awaiting = false;
+            scheduler.removeCallbacks(timeoutRunnable);
+            recordWrite(operation, status == Link.STATUS_SUCCESS);
+        }
+        if (status != Link.STATUS_SUCCESS) {
+            retry(operation, status);
+        } else if (!operation.nextChunk()) {
+            finish(operation, status);
+        } else if (!issue(operation)) {
+            finish(operation, GattOperation.STATUS_REJECTED);
+        }
+    }
+
+    /** Gives up on the attempt in flight. Runs on the scheduler, visible for tests. */
+    void timeout() {
+        GattOperation operation;
+        synchronized (this) {
+            operation = current;
+            if (operation == null || !awaiting) {
+                return;
+            }
+            awaiting = false;
+            recordWrite(operation, false);
+        }
+        Log.w(TAG, "GATT operation " + operation.getType() + " timed out.");
+        retry(operation, GattOperation.STATUS_TIMEOUT);
+    }
+
+    private void retry(GattOperation operation, int status) {
+        if (!operation.canRetry() || !issue(operation)) {
+            finish(operation, status);
+        }
+    }
+
+    private void finish(GattOperation operation, int status) {
+        synchronized (this) {
+            if (current != operation) {
+                // Detached meanwhile, which already completed it.
+                return;
+            }
+            current = null;
+        }
+        operation.complete(status);
+        next();
+    }
+
+    private void next() {
+        while (true) {
+            GattOperation operation;
+            synchronized (this) {
+                if (current != null || link == null || pending.isEmpty()) {
+                    return;
+                }
+                operation = pending.poll();
+                current = operation;
+            }
+            if (issue(operation)) {
+                return;
+            }
+            synchronized (this) {
+                if (current != operation) {
+                    return;
+                }
+                current = null;
+                if (operation.canRetry()) {
+                    // The stack is still busy with something we did not issue ourselves.
+                    pending.addFirst(operation);
+                    scheduler.postDelayed(nextRunnable, RETRY_DELAY);
+                    return;
+                }
+            }
+            Log.w(TAG, "GATT operation " + operation.getType() + " rejected.");
+            operation.complete(GattOperation.STATUS_REJECTED);
+        }
+    }
+
+    private void recordWrite(GattOperation operation, boolean success) {
+        if (metrics != null && operation.getType() == GattOperation.Type.WRITE) {
+            metrics.recordWrite(Metrics.now() - issueTime, success);
+        }
+    }
+
+    // Never called with the lock held, a link may answer before execute() returns.
+    private boolean issue(GattOperation operation) {
+        Link target;
+        int attempt;
+        synchronized (this) {
+            if (current != operation || link == null) {
+                return false;
+            }
+            target = link;
+            attempt = ++token;
+            awaiting = true;
+            issueTime = Metrics.now();
+            scheduler.postDelayed(timeoutRunnable, operation.getTimeout());
+        }
+        if (operation.execute(target, attempt)) {
+            return true;
+        }
+        synchronized (this) {
+            if (token == attempt) {
+                awaiting = false;
+                scheduler.removeCallbacks(timeoutRunnable);
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.lab_bt;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Moves {@link Link} callbacks from whatever thread the transport uses, a binder
+ * thread for BLE, onto a scheduler's thread, in order. In the service that is the GATT
+ * handler thread. Events travel in recycled holders that run themselves, and a handler
+ * posts them in pooled messages, so a steady stream of notifications does not allocate.
+ */
+class HandlerLinkCallback implements Link.Callback {
+    private static final String TAG = HandlerLinkCallback.class.getName();
+
+    private static final int MSG_CONNECTED = 1;
+    private static final int MSG_DISCONNECTED = 2;
+    private static final int MSG_SERVICES_DISCOVERED = 3;
+    private static final int MSG_READ = 4;
+    private static final int MSG_WRITE = 5;
+    private static final int MSG_CHANGED = 6;
+    private static final int MSG_NOTIFICATION_CHANGED = 7;
+    private static final int MSG_MTU_CHANGED = 8;
+
+    private static final int MAX_POOLED = 32;
+
+    private class Event implements Runnable {
+        int what;
+        int arg1;
+        int arg2;
+        Link link;
+        UUID charUuid;
+        byte[] value;
+        int token;
+
+        @Override
+        public void run() {
+            int what = this.what;
+            int arg1 = this.arg1;
+            int arg2 = this.arg2;
+            Link link = this.link;
+            UUID charUuid = this.charUuid;
+            byte[] value = this.value;
+            int token = this.token;
+            recycle(this);
+            dispatch(what, arg1, arg2, link, charUuid, value, token);
+        }
+    }
+
+    private final Link.Callback target;
+    private final Scheduler scheduler;
+    private final ArrayDeque<Event> pool = new ArrayDeque<>();
+
+    HandlerLinkCallback(Scheduler scheduler, Link.Callback target) {
+        this.target = target;
+        this.scheduler = scheduler;
+    }
+
+    private Event obtain() {
+        Event event;
+        synchronized (pool) {
+            event = pool.poll();
+        }
+        return event == null ? new Event() : event;
+    }
+
+    private void recycle(Event event) {
+        event.link = null;
+        event.charUuid = null;
+        event.value = null;
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED) {
+                pool.add(event);
+            }
+        }
+    }
+
+    private void send(int what, int arg1, int arg2, Link link, UUID charUuid, byte[] value,
+                      int token) {
+        Event event = obtain();
+        event.what = what;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.link = link;
+        event.charUuid = charUuid;
+        event.value = value;
+        event.token = token;
+        scheduler.post(event);
+    }
+
+    private void send(int what, int arg1, Link link) {
+        send(what, arg1, 0, link, null, null, 0);
+    }
+
+    @Override
+    public void onConnected(Link link) {
+        send(MSG_CONNECTED, 0, link);
+    }
+
+    @Override
+    public void onDisconnected(Link link, int status) {
+        send(MSG_DISCONNECTED, status, link);
+    }
+
+    @Override
+    public void onServicesDiscovered(Link link, int status) {
+        send(MSG_SERVICES_DISCOVERED, status, link);
+    }
+
+    @Override
+    public void onCharacteristicRead(Link link, UUID charUuid, byte[] value, int status,
+                                     int token) {
+        send(MSG_READ, status, 0, link, charUuid, value, token);
+    }
+
+    @Override
+    public void onCharacteristicWrite(Link link, UUID charUuid, int status, int token) {
+        send(MSG_WRITE, status, 0, link, charUuid, null, token);
+    }
+
+    /** The value must not be reused by the transport, BLE hands out a new array each time. */
+    @Override
+    public void onCharacteristicChanged(Link link, UUID charUuid, byte[] value) {
+        send(MSG_CHANGED, 0, 0, link, charUuid, value, 0);
+    }
+
+    @Override
+    public void onNotificationChanged(Link link, UUID charUuid, int status, int token) {
+        send(MSG_NOTIFICATION_CHANGED, status, 0, link, charUuid, null, token);
+    }
+
+    @Override
+    public void onMtuChanged(Link link, int mtu, int status, int token) {
+        send(MSG_MTU_CHANGED, mtu, status, link, null, null, token);
+    }
+
+    private void dispatch(int what, int arg1, int arg2, Link link, UUID charUuid,
+                          byte[] value, int token) {
+        switch (what) {
+            case MSG_CONNECTED:
+                target.onConnected(link);
+                break;
+            case MSG_DISCONNECTED:
+                target.onDisconnected(link, arg1);
+                break;
+            case MSG_SERVICES_DISCOVERED:
+                target.onServicesDiscovered(link, arg1);
+                break;
+            case MSG_READ:
+                target.onCharacteristicRead(link, charUuid, value, arg1, token);
+                break;
+            case MSG_WRITE:
+                target.onCharacteristicWrite(link, charUuid, arg1, token);
+                break;
+            case MSG_CHANGED:
+                target.onCharacteristicChanged(link, charUuid, value);
+                break;
+            case MSG_NOTIFICATION_CHANGED:
+                target.onNotificationChanged(link, charUuid, arg1, token);
+                break;
+            case MSG_MTU_CHANGED:
+                target.onMtuChanged(link, arg1, arg2, token);
+                break;
+            default:
+                Log.w(TAG, "Unknown message " + what + ".");
+                break;
+        }
+    }
+}
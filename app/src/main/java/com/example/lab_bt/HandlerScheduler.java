@@ -0,0 +1,33 @@
+package com.example.lab_bt;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/** A {@link Scheduler} on a handler's looper thread. */
+public class HandlerScheduler implements Scheduler {
+    private final Handler handler;
+
+    public HandlerScheduler(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+        return Looper.myLooper() == handler.getLooper();
+    }
+
+    @Override
+    public void post(Runnable task) {
+        handler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay) {
+        handler.postDelayed(task, delay);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+}
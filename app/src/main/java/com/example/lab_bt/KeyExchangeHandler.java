@@ -0,0 +1,285 @@
+package com.example.lab_bt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Both sides of the key hand-off. Every message is framed as
+ *
+ * <pre>
+ * TYPE | LENGTH (u16) | PAYLOAD | CRC32 over TYPE..PAYLOAD (u32)
+ * </pre>
+ *
+ * all big endian. The client opens with HELLO carrying the version range it speaks,
+ * the server answers HELLO_ACK with the version it picked. The client then streams
+ * any number of KEYS messages and DONE without waiting, the server stores them and
+ * answers ACK with the number of keys taken, so a whole set moves in one round trip
+ * after the hello. Either side may send ERROR instead and hang up.
+ *
+ * A key in a KEYS payload, after a u16 count, is the 48-bit address, the expiry as
+ * u64 milliseconds since the epoch (0 for never), a u8 token length and the token.
+ * Instances keep no state, one can serve any number of connections at once.
+ */
+public class KeyExchangeHandler {
+    public static final int MIN_VERSION = 1;
+    public static final int VERSION = 1;
+
+    public static final int MSG_HELLO = 0x01;
+    public static final int MSG_HELLO_ACK = 0x02;
+    public static final int MSG_KEYS = 0x03;
+    public static final int MSG_DONE = 0x04;
+    public static final int MSG_ACK = 0x05;
+    public static final int MSG_ERROR = 0x7F;
+
+    public static final int ERROR_VERSION = 1;
+    public static final int ERROR_MALFORMED = 2;
+
+    public static final int MAX_PAYLOAD = 4096;
+    public static final int MAX_TOKEN = 32;
+    // Stops a broken client from making us buffer keys forever.
+    public static final int MAX_SESSION_KEYS = 65535;
+
+    private static final int HEADER = 3;
+    private static final int KEY_HEADER = 6 + 8 + 1;
+
+    public static class Key {
+        public final long address;
+        public final byte[] token;
+        public final long expiry;
+
+        public Key(long address, byte[] token, long expiry) {
+            this.address = address;
+            this.token = token;
+            this.expiry = expiry;
+        }
+    }
+
+    /** Thrown by the client when the server answered with ERROR. */
+    public static class RefusedException extends ProtocolException {
+        private final int error;
+
+        public RefusedException(int error) {
+            super("Refused with error " + error + ".");
+            this.error = error;
+        }
+
+        public int getError() {
+            return error;
+        }
+    }
+
+    private static class Message {
+        private final byte[] payload = new byte[MAX_PAYLOAD];
+        private int type;
+        private int length;
+        private int position;
+
+        private int readU8() {
+            return payload[position++] & 0xFF;
+        }
+
+        private long read(int bytes) {
+            long value = 0;
+            for (int i = 0; i < bytes; i++) {
+                value = (value << 8) | (payload[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        private void write(long value, int bytes) {
+            for (int i = bytes - 1; i >= 0; i--) {
+                payload[length++] = (byte) (value >>> (i * 8));
+            }
+        }
+    }
+
+    /**
+     * Server side, runs the session up to the client's DONE and returns the keys it
+     * sent. Answer with {@link #acknowledge} once they are stored.
+     */
+    public List<Key> receive(InputStream inputStream, OutputStream outputStream)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        Message message = new Message();
+
+        read(in, message);
+        if (message.type != MSG_HELLO || message.length != 2) {
+            throw fail(out, ERROR_MALFORMED, "Expected HELLO.");
+        }
+        int clientMin = message.readU8();
+        int clientMax = message.readU8();
+        int version = Math.min(clientMax, VERSION);
+        if (version < Math.max(clientMin, MIN_VERSION)) {
+            throw fail(out, ERROR_VERSION, "No common version with " + clientMin + ".."
+                    + clientMax + ".");
+        }
+        message.length = 0;
+        message.write(version, 1);
+        write(out, MSG_HELLO_ACK, message);
+
+        List<Key> keys = new ArrayList<>();
+        while (true) {
+            read(in, message);
+            if (message.type == MSG_DONE) {
+                return keys;
+            }
+            if (message.type != MSG_KEYS || !parseKeys(message, keys)) {
+                throw fail(out, ERROR_MALFORMED, "Bad message " + message.type + ".");
+            }
+        }
+    }
+
+    private static boolean parseKeys(Message message, List<Key> keys) {
+        if (message.length < 2) {
+            return false;
+        }
+        int count = (int) message.read(2);
+        if (keys.size() + count > MAX_SESSION_KEYS) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (message.position + KEY_HEADER > message.length) {
+                return false;
+            }
+            long address = message.read(6);
+            long expiry = message.read(8);
+            int tokenLength = message.readU8();
+            if (tokenLength > MAX_TOKEN || message.position + tokenLength > message.length) {
+                return false;
+            }
+            byte[] token = new byte[tokenLength];
+            System.arraycopy(message.payload, message.position, token, 0, tokenLength);
+            message.position += tokenLength;
+            keys.add(new Key(address, token, expiry));
+        }
+        return message.position == message.length;
+    }
+
+    /** Tells the client how many of its keys were stored. */
+    public void acknowledge(OutputStream outputStream, int stored) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        Message message = new Message();
+        message.write(stored, 4);
+        write(out, MSG_ACK, message);
+    }
+
+    /**
+     * Client side, sends all keys in one session and returns how many the server
+     * stored. A server error surfaces as {@link RefusedException}.
+     */
+    public int send(InputStream inputStream, OutputStream outputStream, List<Key> keys)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        Message message = new Message();
+
+        message.write(MIN_VERSION, 1);
+        message.write(VERSION, 1);
+        write(out, MSG_HELLO, message);
+
+        expect(in, message, MSG_HELLO_ACK, 1);
+        int version = message.readU8();
+        if (version < MIN_VERSION || version > VERSION) {
+            throw new ProtocolException("Server picked unknown version " + version + ".");
+        }
+
+        int index = 0;
+        while (index < keys.size()) {
+            message.length = 2;
+            int count = 0;
+            while (index < keys.size()) {
+                Key key = keys.get(index);
+                if (key.token.length > MAX_TOKEN) {
+                    throw new IllegalArgumentException("Token longer than " + MAX_TOKEN + ".");
+                }
+                if (message.length + KEY_HEADER + key.token.length > MAX_PAYLOAD) {
+                    break;
+                }
+                message.write(key.address, 6);
+                message.write(key.expiry, 8);
+                message.write(key.token.length, 1);
+                System.arraycopy(key.token, 0, message.payload, message.length, key.token.length);
+                message.length += key.token.length;
+                index++;
+                count++;
+            }
+            message.payload[0] = (byte) (count >>> 8);
+            message.payload[1] = (byte) count;
+            writeUnflushed(out, MSG_KEYS, message);
+        }
+        message.length = 0;
+        write(out, MSG_DONE, message);
+
+        expect(in, message, MSG_ACK, 4);
+        return (int) message.read(4);
+    }
+
+    private static void expect(DataInputStream in, Message message, int type, int length)
+            throws IOException {
+        read(in, message);
+        if (message.type == MSG_ERROR && message.length == 1) {
+            throw new RefusedException(message.readU8());
+        }
+        if (message.type != type || message.length != length) {
+            throw new ProtocolException("Unexpected message " + message.type + ".");
+        }
+    }
+
+    private static void read(DataInputStream in, Message message) throws IOException {
+        message.type = in.readUnsignedByte();
+        message.length = in.readUnsignedShort();
+        message.position = 0;
+        if (message.length > MAX_PAYLOAD) {
+            throw new ProtocolException("Message of " + message.length + " bytes.");
+        }
+        in.readFully(message.payload, 0, message.length);
+        long crc = in.readInt() & 0xFFFFFFFFL;
+        if (crc != crc(message.type, message.payload, message.length)) {
+            throw new ProtocolException("CRC mismatch.");
+        }
+    }
+
+    private static void write(DataOutputStream out, int type, Message message)
+            throws IOException {
+        writeUnflushed(out, type, message);
+        out.flush();
+    }
+
+    private static void writeUnflushed(DataOutputStream out, int type, Message message)
+            throws IOException {
+        out.writeByte(type);
+        out.writeShort(message.length);
+        out.write(message.payload, 0, message.length);
+        out.writeInt((int) crc(type, message.payload, message.length));
+    }
+
+    private static long crc(int type, byte[] payload, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(length >>> 8);
+        crc.update(length & 0xFF);
+        crc.update(payload, 0, length);
+        return crc.getValue();
+    }
+
+    private static ProtocolException fail(DataOutputStream out, int error, String reason) {
+        Message message = new Message();
+        message.write(error, 1);
+        try {
+            write(out, MSG_ERROR, message);
+        } catch (IOException e) {
+            // The client is gone anyway, report the original problem.
+        }
+        return new ProtocolException(reason);
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.lab_bt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts key hand-offs over RFCOMM, or another {@link StreamTransport}, until
+ * stopped. Each client is served by a small worker pool, the streams have no read
+ * timeout so a watchdog closes any connection that is still open after
+ * {@link #CONNECTION_TIMEOUT}, and {@link #stop} closes every one left.
+ */
+public class KeyExchangeServer {
+    private static final String TAG = KeyExchangeServer.class.getName();
+
+    public static final long CONNECTION_TIMEOUT = 10000;
+    private static final int MAX_WORKERS = 4;
+    private static final int MAX_QUEUED = 8;
+    private static final long RELISTEN_DELAY = 1000;
+
+    /** Called on a worker thread for every session that handed over keys. */
+    public interface Listener {
+        void onKeysReceived(List<KeyExchangeHandler.Key> keys);
+    }
+
+    private final StreamTransport transport;
+    private final AuthorizationStore authorizationStore;
+    private final KeyExchangeHandler protocol = new KeyExchangeHandler();
+    private Listener listener;
+
+    private ThreadPoolExecutor workers;
+    private ScheduledExecutorService watchdog;
+    private Thread acceptThread;
+    private volatile StreamTransport.Server serverSocket;
+    private volatile boolean running;
+    // Every accepted client until it is closed, queued or being served.
+    private final Set<StreamTransport.Stream> clients = new HashSet<>();
+
+    private final AtomicInteger handshakeCount = new AtomicInteger();
+    private final AtomicInteger failureCount = new AtomicInteger();
+    private final AtomicInteger rejectedCount = new AtomicInteger();
+
+    public KeyExchangeServer(StreamTransport transport, AuthorizationStore authorizationStore) {
+        this.transport = transport;
+        this.authorizationStore = authorizationStore;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        workers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED));
+        workers.allowCoreThreadTimeOut(true);
+        watchdog = Executors.newSingleThreadScheduledExecutor();
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "KeyExchangeServer");
+        acceptThread.start();
+    }
+
+    /** Stops listening and drops the clients that are still being served. */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        closeServerSocket();
+        acceptThread.interrupt();
+        workers.shutdownNow();
+        watchdog.shutdownNow();
+        // Workers blocked on a read only return once their socket is closed.
+        List<StreamTransport.Stream> open;
+        synchronized (clients) {
+            open = new ArrayList<>(clients);
+        }
+        for (StreamTransport.Stream socket : open) {
+            close(socket);
+        }
+        Log.d(TAG, "Stopped after " + handshakeCount.get() + " hand-offs, "
+                + failureCount.get() + " failed, " + rejectedCount.get() + " rejected.");
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            StreamTransport.Stream socket;
+            try {
+                if (serverSocket == null) {
+                    serverSocket = transport.listen(App.NAME, App.MY_UUID_SECURE);
+                    if (!running) {
+                        // stop() ran before there was a socket to close.
+                        closeServerSocket();
+                        return;
+                    }
+                    Log.d(TAG, "Listening socket...");
+                }
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!running) {
+                    return;
+                }
+                Log.w(TAG, "Accept failed, listening again.", e);
+                closeServerSocket();
+                SystemClock.sleep(RELISTEN_DELAY);
+                continue;
+            }
+            dispatch(socket);
+        }
+    }
+
+    private void dispatch(final StreamTransport.Stream socket) {
+        synchronized (clients) {
+            clients.add(socket);
+        }
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            Log.w(TAG, "Too many clients, dropping " + socket.getRemoteAddress() + ".");
+            close(socket);
+        }
+    }
+
+    private void serve(final StreamTransport.Stream socket) {
+        ScheduledFuture<?> timeout;
+        try {
+            timeout = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Log.w(TAG, "Key exchange timed out.");
+                    close(socket);
+                }
+            }, CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped while this client was queued.
+            close(socket);
+            return;
+        }
+
+        try {
+            long start = Metrics.now();
+            List<KeyExchangeHandler.Key> keys =
+                    protocol.receive(socket.getInputStream(), socket.getOutputStream());
+            authorizationStore.importKeys(keys, System.currentTimeMillis());
+            protocol.acknowledge(socket.getOutputStream(), keys.size());
+            handshakeCount.incrementAndGet();
+            Metrics.getInstance().get(socket.getRemoteAddress())
+                    .recordKeyExchange(Metrics.now() - start);
+            Log.d(TAG, "Received " + keys.size() + " keys.");
+
+            Listener current;
+            synchronized (this) {
+                current = listener;
+            }
+            if (current != null) {
+                current.onKeysReceived(keys);
+            }
+        } catch (IOException e) {
+            failureCount.incrementAndGet();
+            Log.w(TAG, "Key exchange failed.", e);
+        } finally {
+            timeout.cancel(false);
+            close(socket);
+        }
+    }
+
+    private void closeServerSocket() {
+        StreamTransport.Server socket = serverSocket;
+        serverSocket = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close the server socket.", e);
+            }
+        }
+    }
+
+    private void close(StreamTransport.Stream socket) {
+        synchronized (clients) {
+            clients.remove(socket);
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close socket.", e);
+        }
+    }
+
+    public int getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    public int getFailureCount() {
+        return failureCount.get();
+    }
+
+    public int getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.lab_bt;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Hands a set of keys to a {@link KeyExchangeServer} in one session, over RFCOMM or
+ * whatever {@link StreamTransport} is given. The blocking stream work runs on its own
+ * executor rather than the shared AsyncTask one; the timeout and {@link #cancel} both
+ * close the stream, which is the only way to unblock it.
+ */
+public class KeyHandOff {
+    private static final String TAG = KeyHandOff.class.getName();
+
+    public static final int RESULT_OK = 0;
+    public static final int RESULT_REFUSED = 1;
+    public static final int RESULT_FAILED = 2;
+    public static final int RESULT_TIMEOUT = 3;
+    public static final int RESULT_CANCELLED = 4;
+
+    public static final long DEFAULT_TIMEOUT = 15000;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /** Called once on the handler's thread. */
+    public interface Callback {
+        void onComplete(KeyHandOff handOff, int result);
+    }
+
+    private final StreamTransport transport;
+    private final String address;
+    private final List<KeyExchangeHandler.Key> keys;
+    private final Handler handler;
+    private final Callback callback;
+    private final KeyExchangeHandler protocol = new KeyExchangeHandler();
+
+    private StreamTransport.Stream stream;
+    // Set when the hand-off is aborted from outside, wins over whatever the worker saw.
+    private int abortResult = -1;
+    private boolean done;
+    private int result = -1;
+    private volatile int storedCount;
+
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            timeout();
+        }
+    };
+
+    public KeyHandOff(StreamTransport transport, String address,
+                      List<KeyExchangeHandler.Key> keys, Handler handler, Callback callback) {
+        this.transport = transport;
+        this.address = address;
+        this.keys = keys;
+        this.handler = handler;
+        this.callback = callback;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /** How many keys the server stored, valid once the callback ran. */
+    public int getStoredCount() {
+        return storedCount;
+    }
+
+    /** One of the {@code RESULT_*} values once the exchange ended, -1 before. */
+    public synchronized int getResult() {
+        return result;
+    }
+
+    public void start() {
+        start(DEFAULT_TIMEOUT);
+    }
+
+    public void start(long timeout) {
+        handler.postDelayed(timeoutRunnable, timeout);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                finish(exchange());
+            }
+        });
+    }
+
+    public void cancel() {
+        abort(RESULT_CANCELLED);
+    }
+
+    /** Runs on the handler, visible for tests. */
+    void timeout() {
+        Log.w(TAG, "Key hand-off timed out.");
+        abort(RESULT_TIMEOUT);
+    }
+
+    private void abort(int result) {
+        StreamTransport.Stream current;
+        synchronized (this) {
+            if (abortResult != -1 || done) {
+                return;
+            }
+            abortResult = result;
+            current = stream;
+        }
+        if (current != null) {
+            close(current);
+        }
+    }
+
+    private int exchange() {
+        StreamTransport.Stream current;
+        try {
+            current = transport.open(address, App.MY_UUID_SECURE);
+        } catch (IOException e) {
+            Log.w(TAG, "Socket create failed.", e);
+            return RESULT_FAILED;
+        }
+        synchronized (this) {
+            if (abortResult != -1) {
+                close(current);
+                return abortResult;
+            }
+            stream = current;
+        }
+
+        try {
+            long start = Metrics.now();
+            current.connect();
+            storedCount = protocol.send(current.getInputStream(), current.getOutputStream(), keys);
+            Metrics.getInstance().get(address)
+                    .recordKeyExchange(Metrics.now() - start);
+            return storedCount == keys.size() ? RESULT_OK : RESULT_REFUSED;
+        } catch (KeyExchangeHandler.RefusedException e) {
+            Log.w(TAG, "Server refused the keys.", e);
+            return RESULT_REFUSED;
+        } catch (IOException e) {
+            Log.d(TAG, "Lost connection.", e);
+            return RESULT_FAILED;
+        } finally {
+            close(current);
+        }
+    }
+
+    private void finish(int exchanged) {
+        final int outcome;
+        synchronized (this) {
+            done = true;
+            // Keys the server already acknowledged count even if the abort came late.
+            outcome = abortResult != -1 && exchanged != RESULT_OK ? abortResult : exchanged;
+            result = outcome;
+        }
+        handler.removeCallbacks(timeoutRunnable);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onComplete(KeyHandOff.this, outcome);
+            }
+        });
+    }
+
+    private static void close(StreamTransport.Stream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close socket.", e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.lab_bt;
+
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * One connection to a GATT peripheral, however it is reached. Characteristics are
+ * addressed by UUID; status codes, write types and properties use the values of
+ * {@code BluetoothGatt} and {@code BluetoothGattCharacteristic}, the ones a transport
+ * without Android needs are repeated below. Like GATT itself a link takes one request
+ * at a time, {@link GattOperationQueue} sees to that.
+ *
+ * <p>Every request returns false if it could not be issued, otherwise its outcome
+ * arrives at the {@link Callback} given to {@link LinkTransport#connect}, on whatever
+ * thread the transport uses. Reads, writes, notification changes and MTU requests take
+ * a token that their outcome reports back, so the answer to an attempt that was given
+ * up on can be told apart from the answer to its retry.
+ */
+public interface Link {
+    // The values of BluetoothGatt and BluetoothGattCharacteristic, spelled out so code
+    // that only talks to links builds without android.jar.
+    int STATUS_SUCCESS = 0;
+    int STATUS_FAILURE = 0x101;
+
+    int PROPERTY_READ = 0x02;
+    int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    int PROPERTY_WRITE = 0x08;
+    int PROPERTY_NOTIFY = 0x10;
+
+    int CONNECTION_PRIORITY_BALANCED = 0;
+    int CONNECTION_PRIORITY_HIGH = 1;
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    interface Callback {
+        void onConnected(Link link);
+
+        void onDisconnected(Link link, int status);
+
+        void onServicesDiscovered(Link link, int status);
+
+        void onCharacteristicRead(Link link, UUID charUuid, byte[] value, int status,
+                                  int token);
+
+        void onCharacteristicWrite(Link link, UUID charUuid, int status, int token);
+
+        void onCharacteristicChanged(Link link, UUID charUuid, byte[] value);
+
+        /** The client configuration descriptor written by {@link #setNotification}. */
+        void onNotificationChanged(Link link, UUID charUuid, int status, int token);
+
+        void onMtuChanged(Link link, int mtu, int status, int token);
+    }
+
+    String getAddress();
+
+    boolean discoverServices();
+
+    /** Characteristics found by the last discovery, empty before. */
+    Collection<UUID> getCharacteristics();
+
+    /** The service the characteristic belongs to, null if it was not discovered. */
+    UUID getServiceUuid(UUID charUuid);
+
+    /** The characteristic's property bits, -1 if it was not discovered. */
+    int getProperties(UUID charUuid);
+
+    boolean read(UUID charUuid, int token);
+
+    boolean write(UUID charUuid, byte[] value, int writeType, int token);
+
+    /** Switches notifications on the peripheral, not just locally. */
+    boolean setNotification(UUID charUuid, boolean enable, int token);
+
+    /** The highest MTU worth requesting, the default MTU if it cannot be changed. */
+    int getMaxMtu();
+
+    boolean requestMtu(int mtu, int token);
+
+    /**
+     * Takes one of the {@code CONNECTION_PRIORITY_*} values. Returns false if the
+     * priority cannot be applied; no callback follows.
+     */
+    boolean requestConnectionPriority(int priority);
+
+    /** Forgets attributes cached below the link, the next discovery starts fresh. */
+    boolean refresh();
+
+    void disconnect();
+
+    /** Releases the link, no callbacks arrive afterwards. */
+    void close();
+}
@@ -0,0 +1,15 @@
+package com.example.lab_bt;
+
+/**
+ * Where {@link Link}s come from. {@link BleTransport} reaches real devices, the
+ * LoopbackTransport of the tests and benchmarks simulated ones, and
+ * {@link BluetoothLeService} drives both the same way.
+ */
+public interface LinkTransport {
+    /**
+     * Starts connecting, {@link Link.Callback#onConnected} follows once the link is up.
+     * With {@code autoConnect} the attempt waits in the background until the device
+     * shows up. Returns null if the attempt could not even be started.
+     */
+    Link connect(String address, boolean autoConnect, Link.Callback callback);
+}
@@ -0,0 +1,44 @@
+package com.example.lab_bt;
+
+/**
+ * Packs Bluetooth addresses ("00:11:22:AA:BB:CC") into the low 48 bits of a long
+ * and back.
+ */
+public final class MacAddress {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private MacAddress() {
+    }
+
+    public static long pack(String address) {
+        if (address == null || address.length() != 17) {
+            throw new IllegalArgumentException("Invalid address: " + address);
+        }
+        long packed = 0;
+        for (int i = 0; i < 17; i += 3) {
+            packed = (packed << 8) | (digit(address, i) << 4) | digit(address, i + 1);
+        }
+        return packed;
+    }
+
+    public static String unpack(long packed) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (packed >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = HEX[b >>> 4];
+            chars[i * 3 + 1] = HEX[b & 0x0F];
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    private static long digit(String address, int index) {
+        int value = Character.digit(address.charAt(index), 16);
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid address: " + address);
+        }
+        return value;
+    }
+}
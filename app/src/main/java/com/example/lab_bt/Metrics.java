@@ -0,0 +1,147 @@
+package com.example.lab_bt;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide registry of {@link DeviceMetrics}, with a text dump for people and a
+ * JSON export for tools.
+ */
+public class Metrics {
+    private static final Metrics instance = new Metrics();
+
+    private static final String[] HISTOGRAMS = {
+            "connect_time", "discovery_time", "write_round_trip", "notification_interval",
+            "scan_to_connect", "key_exchange", "warm_attach", "cold_attach",
+            "reconnect_time", "first_write_cached", "first_write_uncached"
+    };
+
+    private static final Comparator<DeviceMetrics> ADDRESS_ORDER =
+            new Comparator<DeviceMetrics>() {
+                @Override
+                public int compare(DeviceMetrics a, DeviceMetrics b) {
+                    return a.getAddress() < b.getAddress() ? -1
+                            : (a.getAddress() == b.getAddress() ? 0 : 1);
+                }
+            };
+
+    private final ConcurrentHashMap<Long, DeviceMetrics> devices = new ConcurrentHashMap<>();
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /** Microseconds of elapsed realtime, the clock every recording uses. */
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+
+    public DeviceMetrics get(long address) {
+        DeviceMetrics metrics = devices.get(address);
+        if (metrics == null) {
+            DeviceMetrics created = new DeviceMetrics(address);
+            metrics = devices.putIfAbsent(address, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    public DeviceMetrics get(String address) {
+        return get(MacAddress.pack(address));
+    }
+
+    public List<DeviceMetrics> getAll() {
+        List<DeviceMetrics> all = new ArrayList<>(devices.values());
+        Collections.sort(all, ADDRESS_ORDER);
+        return all;
+    }
+
+    private static LatencyHistogram[] histograms(DeviceMetrics metrics) {
+        return new LatencyHistogram[]{
+                metrics.getConnectTime(), metrics.getDiscoveryTime(),
+                metrics.getWriteRoundTrip(), metrics.getNotificationInterval(),
+                metrics.getScanToConnect(), metrics.getKeyExchange(),
+                metrics.getWarmAttach(), metrics.getColdAttach(),
+                metrics.getReconnectTime(), metrics.getFirstWrite(true),
+                metrics.getFirstWrite(false)
+        };
+    }
+
+    /** Human-readable summary of one device, latencies in milliseconds. */
+    public static String dump(DeviceMetrics metrics) {
+        StringBuilder out = new StringBuilder();
+        out.append(MacAddress.unpack(metrics.getAddress())).append('\n');
+        out.append(String.format(Locale.US, "connects %d, disconnects %d%n",
+                metrics.getConnects(), metrics.getDisconnects()));
+        out.append(String.format(Locale.US, "writes %d, failed %d%n",
+                metrics.getWrites(), metrics.getWriteFailures()));
+        out.append(String.format(Locale.US, "notifications %d, %d bytes%n",
+                metrics.getNotifications(), metrics.getBytesReceived()));
+        if (metrics.getStreamDropped() != 0 || metrics.getStreamTruncated() != 0) {
+            out.append(String.format(Locale.US, "stream dropped %d, truncated %d%n",
+                    metrics.getStreamDropped(), metrics.getStreamTruncated()));
+        }
+        LatencyHistogram[] histograms = histograms(metrics);
+        for (int i = 0; i < histograms.length; i++) {
+            LatencyHistogram histogram = histograms[i];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            out.append(String.format(Locale.US,
+                    "%s: n=%d p50=%.1f p99=%.1f max=%.1f ms%n", HISTOGRAMS[i],
+                    histogram.getCount(), histogram.getPercentile(50) / 1000.0,
+                    histogram.getPercentile(99) / 1000.0, histogram.getMax() / 1000.0));
+        }
+        return out.toString();
+    }
+
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        for (DeviceMetrics metrics : getAll()) {
+            out.append(dump(metrics)).append('\n');
+        }
+        return out.toString();
+    }
+
+    /** Every device with raw counters and histogram summaries in microseconds. */
+    public String toJson() {
+        StringBuilder out = new StringBuilder("{\"devices\":[");
+        boolean first = true;
+        for (DeviceMetrics metrics : getAll()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append("{\"address\":\"").append(MacAddress.unpack(metrics.getAddress()))
+                    .append("\",\"connects\":").append(metrics.getConnects())
+                    .append(",\"disconnects\":").append(metrics.getDisconnects())
+                    .append(",\"writes\":").append(metrics.getWrites())
+                    .append(",\"write_failures\":").append(metrics.getWriteFailures())
+                    .append(",\"notifications\":").append(metrics.getNotifications())
+                    .append(",\"bytes_received\":").append(metrics.getBytesReceived())
+                    .append(",\"stream_dropped\":").append(metrics.getStreamDropped())
+                    .append(",\"stream_truncated\":").append(metrics.getStreamTruncated());
+            LatencyHistogram[] histograms = histograms(metrics);
+            for (int i = 0; i < histograms.length; i++) {
+                LatencyHistogram histogram = histograms[i];
+                out.append(",\"").append(HISTOGRAMS[i]).append("_us\":{\"count\":")
+                        .append(histogram.getCount())
+                        .append(",\"mean\":").append(histogram.getMean())
+                        .append(",\"p50\":").append(histogram.getPercentile(50))
+                        .append(",\"p90\":").append(histogram.getPercentile(90))
+                        .append(",\"p99\":").append(histogram.getPercentile(99))
+                        .append(",\"max\":").append(histogram.getMax()).append('}');
+            }
+            out.append('}');
+        }
+        return out.append("]}").toString();
+    }
+}
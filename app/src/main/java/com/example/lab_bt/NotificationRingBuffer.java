@@ -0,0 +1,99 @@
+package com.example.lab_bt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer single-consumer ring of preallocated notification slots. The GATT
+ * callback thread copies each payload in with {@link #offer}, a consumer thread takes
+ * them out in batches with {@link #drain}. Neither side locks or allocates; when the
+ * ring is full the newest payload is dropped and counted.
+ */
+public class NotificationRingBuffer {
+    public interface Consumer {
+        void onPayload(long timestamp, byte[] data, int length);
+    }
+
+    private final int mask;
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final long[] timestamps;
+
+    // Next slot the producer writes, and next slot the consumer reads.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong truncatedCount = new AtomicLong();
+
+    /** {@code capacity} is rounded up to a power of two. */
+    public NotificationRingBuffer(int capacity, int slotSize) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        slots = new byte[size][slotSize];
+        lengths = new int[size];
+        timestamps = new long[size];
+    }
+
+    public boolean offer(long timestamp, byte[] data, int length) {
+        long position = head.get();
+        if (position - tail.get() > mask) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+
+        int index = (int) (position & mask);
+        byte[] slot = slots[index];
+        if (length > slot.length) {
+            truncatedCount.incrementAndGet();
+            length = slot.length;
+        }
+        System.arraycopy(data, 0, slot, 0, length);
+        lengths[index] = length;
+        timestamps[index] = timestamp;
+        head.lazySet(position + 1);
+        return true;
+    }
+
+    /** Hands up to {@code max} payloads to the consumer and returns how many it got. */
+    public int drain(Consumer consumer, int max) {
+        long position = tail.get();
+        long available = head.get() - position;
+        int count = (int) Math.min(available, max);
+        for (int i = 0; i < count; i++) {
+            int index = (int) ((position + i) & mask);
+            consumer.onPayload(timestamps[index], slots[index], lengths[index]);
+        }
+        tail.lazySet(position + count);
+        return count;
+    }
+
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /** Longest payload stored whole. */
+    public int getSlotSize() {
+        return slots[0].length;
+    }
+
+    /** Payloads dropped because the consumer fell behind. */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /** Payloads longer than a slot, stored cut down to the slot size. */
+    public long getTruncatedCount() {
+        return truncatedCount.get();
+    }
+
+    public long getReceivedCount() {
+        return head.get() + droppedCount.get();
+    }
+}
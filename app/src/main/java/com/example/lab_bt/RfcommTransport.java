@@ -0,0 +1,77 @@
+package com.example.lab_bt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/** {@link StreamTransport} over secure RFCOMM sockets. */
+public class RfcommTransport implements StreamTransport {
+    private final BluetoothAdapter adapter;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    @Override
+    public Stream open(String address, UUID uuid) throws IOException {
+        return new RfcommStream(
+                adapter.getRemoteDevice(address).createRfcommSocketToServiceRecord(uuid));
+    }
+
+    @Override
+    public Server listen(String name, UUID uuid) throws IOException {
+        final BluetoothServerSocket serverSocket =
+                adapter.listenUsingRfcommWithServiceRecord(name, uuid);
+        return new Server() {
+            @Override
+            public Stream accept() throws IOException {
+                return new RfcommStream(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    private class RfcommStream implements Stream {
+        private final BluetoothSocket socket;
+
+        RfcommStream(BluetoothSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            // Discovery slows the connection down a lot.
+            adapter.cancelDiscovery();
+            socket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.lab_bt;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Precompiled advertisement filter. All conditions must hold; the cheap ones (RSSI,
+ * address) are checked before the scan record is parsed, and names are compared as
+ * bytes, so a rejected advertisement costs no allocation.
+ */
+public class ScanFilter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int minRssi;
+    private final long[] addresses;
+    private final byte[] name;
+    private final boolean namePrefix;
+    private final long[] serviceUuids;
+
+    private ScanFilter(Builder builder) {
+        minRssi = builder.minRssi;
+        addresses = new long[builder.addresses.size()];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = builder.addresses.get(i);
+        }
+        Arrays.sort(addresses);
+        name = builder.name == null ? null : builder.name.getBytes(UTF_8);
+        namePrefix = builder.namePrefix;
+        serviceUuids = new long[builder.serviceUuids.size() * 2];
+        for (int i = 0; i < builder.serviceUuids.size(); i++) {
+            serviceUuids[i * 2] = builder.serviceUuids.get(i).getMostSignificantBits();
+            serviceUuids[i * 2 + 1] = builder.serviceUuids.get(i).getLeastSignificantBits();
+        }
+    }
+
+    /**
+     * {@code data} is filled from {@code scanRecord} only when a condition needs it,
+     * it belongs to the caller so one instance can be reused across advertisements.
+     */
+    public boolean matches(String address, int rssi, byte[] scanRecord, AdvertisementData data) {
+        if (rssi < minRssi) {
+            return false;
+        }
+        if (addresses.length > 0
+                && Arrays.binarySearch(addresses, MacAddress.pack(address)) < 0) {
+            return false;
+        }
+        if (name == null && serviceUuids.length == 0) {
+            return true;
+        }
+
+        data.parse(scanRecord);
+        if (name != null && !(namePrefix ? data.nameStartsWith(name) : data.nameEquals(name))) {
+            return false;
+        }
+        if (serviceUuids.length == 0) {
+            return true;
+        }
+        for (int i = 0; i < serviceUuids.length; i += 2) {
+            if (data.hasServiceUuid(serviceUuids[i], serviceUuids[i + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static class Builder {
+        private int minRssi = Integer.MIN_VALUE;
+        private final List<Long> addresses = new ArrayList<>();
+        private String name;
+        private boolean namePrefix;
+        private final List<UUID> serviceUuids = new ArrayList<>();
+
+        public Builder setMinRssi(int minRssi) {
+            this.minRssi = minRssi;
+            return this;
+        }
+
+        public Builder addAddress(String address) {
+            addresses.add(MacAddress.pack(address));
+            return this;
+        }
+
+        public Builder setName(String name) {
+            this.name = name;
+            this.namePrefix = false;
+            return this;
+        }
+
+        public Builder setNamePrefix(String prefix) {
+            this.name = prefix;
+            this.namePrefix = true;
+            return this;
+        }
+
+        /** Any one of the added service UUIDs is enough to match. */
+        public Builder addServiceUuid(UUID uuid) {
+            serviceUuids.add(uuid);
+            return this;
+        }
+
+        public ScanFilter build() {
+            return new ScanFilter(this);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.lab_bt;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Address-keyed index of advertising devices. The scan callback updates it from the
+ * Bluetooth thread while the UI takes snapshots, so lookups are hash based and
+ * repeated advertisements only touch the existing entry.
+ */
+public class ScanIndex {
+    // Variance of a single RSSI reading in dB^2, a few dB of fading either way is normal.
+    private static final float MEASUREMENT_NOISE = 16f;
+    // How much the true signal may drift per second while someone walks around.
+    private static final float PROCESS_NOISE_PER_SECOND = 4f;
+
+    public static class Entry {
+        private final String address;
+        private final BluetoothDevice device;
+        private final long order;
+        private volatile int rssi;
+        private volatile long lastSeen;
+        private volatile byte[] scanRecord;
+        private volatile boolean eligible;
+
+        // One-dimensional Kalman filter over the RSSI samples, written by the scan thread only.
+        private float estimate;
+        private float variance;
+        private volatile float smoothedRssi;
+        // Copy of smoothedRssi taken under the index lock before sorting, the live value
+        // may change mid-sort.
+        private float rankedRssi;
+
+        private Entry(String address, BluetoothDevice device, long order) {
+            this.address = address;
+            this.device = device;
+            this.order = order;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public BluetoothDevice getDevice() {
+            return device;
+        }
+
+        public int getRssi() {
+            return rssi;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public byte[] getScanRecord() {
+            return scanRecord;
+        }
+
+        /** Filtered RSSI, the higher the closer. */
+        public float getSmoothedRssi() {
+            return smoothedRssi;
+        }
+
+        /** Whether an advertisement from this device has passed the caller's filter. */
+        public boolean isEligible() {
+            return eligible;
+        }
+
+        private void addSample(int sample, long now) {
+            if (variance == 0) {
+                estimate = sample;
+                variance = MEASUREMENT_NOISE;
+            } else {
+                variance += PROCESS_NOISE_PER_SECOND * (now - lastSeen) / 1000f;
+                float gain = variance / (variance + MEASUREMENT_NOISE);
+                estimate += gain * (sample - estimate);
+                variance *= 1 - gain;
+            }
+            smoothedRssi = estimate;
+        }
+    }
+
+    private static final Comparator<Entry> ARRIVAL_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Entry> PROXIMITY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int result = Float.compare(b.smoothedRssi, a.smoothedRssi);
+            return result != 0 ? result : ARRIVAL_ORDER.compare(a, b);
+        }
+    };
+
+    private static final Comparator<Entry> RANKED_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int result = Float.compare(b.rankedRssi, a.rankedRssi);
+            return result != 0 ? result : ARRIVAL_ORDER.compare(a, b);
+        }
+    };
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong arrivals = new AtomicLong();
+
+    /** Returns true when the device was not in the index yet. */
+    public boolean update(BluetoothDevice device, int rssi, byte[] scanRecord, long now) {
+        return update(device, rssi, scanRecord, now, false);
+    }
+
+    /**
+     * As {@link #update(BluetoothDevice, int, byte[], long)}, an eligible device stays
+     * eligible until it is evicted.
+     */
+    public boolean update(BluetoothDevice device, int rssi, byte[] scanRecord, long now,
+                          boolean eligible) {
+        return update(device.getAddress(), device, rssi, scanRecord, now, eligible);
+    }
+
+    // Keyed by the address passed in, so tests can index without real devices.
+    boolean update(String address, BluetoothDevice device, int rssi, byte[] scanRecord,
+                   long now, boolean eligible) {
+        Entry entry = entries.get(address);
+        boolean added = false;
+        if (entry == null) {
+            Entry created = new Entry(address, device, arrivals.getAndIncrement());
+            entry = entries.putIfAbsent(address, created);
+            if (entry == null) {
+                entry = created;
+                added = true;
+            }
+        }
+        entry.addSample(rssi, now);
+        entry.rssi = rssi;
+        entry.scanRecord = scanRecord;
+        entry.lastSeen = now;
+        if (eligible) {
+            entry.eligible = true;
+        }
+        return added;
+    }
+
+    public Entry get(String address) {
+        return entries.get(address);
+    }
+
+    /** Removes devices not heard from since {@code cutoff}, returns how many. */
+    public int evictOlderThan(long cutoff) {
+        int evicted = 0;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().lastSeen < cutoff) {
+                iterator.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /** Copies the entries into {@code out} in the order they were first seen. */
+    public void snapshot(List<Entry> out) {
+        out.clear();
+        out.addAll(entries.values());
+        Collections.sort(out, ARRIVAL_ORDER);
+    }
+
+    /**
+     * Copies the entries into {@code out}, nearest first by smoothed RSSI as it was when
+     * the snapshot was taken.
+     */
+    public synchronized void snapshotByProximity(List<Entry> out) {
+        out.clear();
+        out.addAll(entries.values());
+        for (int i = 0; i < out.size(); i++) {
+            Entry entry = out.get(i);
+            entry.rankedRssi = entry.smoothedRssi;
+        }
+        Collections.sort(out, RANKED_ORDER);
+    }
+
+    /** The eligible device with the strongest smoothed RSSI seen since {@code since}, or null. */
+    public Entry nearestEligible(long since) {
+        Entry nearest = null;
+        for (Entry entry : entries.values()) {
+            if (entry.eligible && entry.lastSeen >= since
+                    && (nearest == null || PROXIMITY_ORDER.compare(entry, nearest) < 0)) {
+                nearest = entry;
+            }
+        }
+        return nearest;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.lab_bt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Duty-cycled LE scanning. The radio scans for {@link #SCAN_WINDOW} and then idles;
+ * every window that turns up no new target doubles the idle time up to
+ * {@link #MAX_IDLE}, a new target drops it back to {@link #MIN_IDLE}. Scanning stops
+ * on its own once every wanted address has been seen.
+ */
+public class ScanScheduler {
+    private static final String TAG = ScanScheduler.class.getName();
+
+    public static final long SCAN_WINDOW = 4000;
+    public static final long MIN_IDLE = 1000;
+    // Kept below the scan list's stale timeout so quiet devices do not drop out between windows.
+    public static final long MAX_IDLE = 20000;
+
+    /** Switches the radio, called on the scheduler's handler. */
+    public interface Radio {
+        boolean startScan();
+
+        void stopScan();
+    }
+
+    public interface Listener {
+        void onAllFound();
+    }
+
+    private final Handler handler;
+    private final Radio radio;
+    private Listener listener;
+
+    private final Set<String> wanted = new HashSet<>();
+    private final Set<String> found = new HashSet<>();
+
+    private boolean running;
+    private boolean radioOn;
+    private boolean discoveredThisWindow;
+    private long idle = MIN_IDLE;
+
+    private long startTime;
+    private long windowStartTime;
+    private long radioOnTime;
+    private long runningTime;
+    private int discoveryCount;
+    private long discoveryLatencyTotal;
+    private long maxDiscoveryLatency;
+
+    private final Runnable endWindowTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                if (!running) {
+                    return;
+                }
+                stopRadio();
+                idle = discoveredThisWindow ? MIN_IDLE : Math.min(idle * 2, MAX_IDLE);
+                handler.postDelayed(startWindowTask, idle);
+            }
+        }
+    };
+
+    private final Runnable startWindowTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                if (running) {
+                    startWindow();
+                }
+            }
+        }
+    };
+
+    private final Runnable allFoundTask = new Runnable() {
+        @Override
+        public void run() {
+            finishAllFound();
+        }
+    };
+
+    public ScanScheduler(Handler handler, Radio radio) {
+        this.handler = handler;
+        this.radio = radio;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * With no wanted addresses the scheduler keeps scanning until stopped. A wanted
+     * address counts as a target whatever {@link #onDiscovered} is told.
+     */
+    public synchronized void addWanted(String address) {
+        wanted.add(address);
+    }
+
+    public synchronized void clearWanted() {
+        wanted.clear();
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /** Whether every wanted address has been seen since {@link #start}. */
+    public synchronized boolean isAllFound() {
+        return !wanted.isEmpty() && found.containsAll(wanted);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        idle = MIN_IDLE;
+        found.clear();
+        startTime = SystemClock.elapsedRealtime();
+        startWindow();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        handler.removeCallbacks(startWindowTask);
+        handler.removeCallbacks(endWindowTask);
+        handler.removeCallbacks(allFoundTask);
+        stopRadio();
+        runningTime += SystemClock.elapsedRealtime() - startTime;
+    }
+
+    /**
+     * Reports a device seen for the first time, safe to call from the scan callback.
+     * Only targets count towards shortening the idle time.
+     */
+    public synchronized void onDiscovered(String address, boolean target) {
+        if (!running || !(target || wanted.contains(address))) {
+            return;
+        }
+        discoveredThisWindow = true;
+        if (found.add(address)) {
+            long latency = SystemClock.elapsedRealtime() - startTime;
+            discoveryCount++;
+            discoveryLatencyTotal += latency;
+            maxDiscoveryLatency = Math.max(maxDiscoveryLatency, latency);
+        }
+        if (isAllFound()) {
+            handler.post(allFoundTask);
+        }
+    }
+
+    /** Stops scanning and tells the listener. Runs on the handler, visible for tests. */
+    void finishAllFound() {
+        Listener current;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            Log.i(TAG, "All " + wanted.size() + " wanted devices found.");
+            stop();
+            current = listener;
+        }
+        if (current != null) {
+            current.onAllFound();
+        }
+    }
+
+    private void startWindow() {
+        discoveredThisWindow = false;
+        if (radio.startScan()) {
+            radioOn = true;
+            windowStartTime = SystemClock.elapsedRealtime();
+        } else {
+            Log.w(TAG, "Unable to start LE scan.");
+        }
+        handler.postDelayed(endWindowTask, SCAN_WINDOW);
+    }
+
+    private void stopRadio() {
+        if (radioOn) {
+            radio.stopScan();
+            radioOn = false;
+            radioOnTime += SystemClock.elapsedRealtime() - windowStartTime;
+        }
+    }
+
+    /** Total time the radio has spent scanning, including the current window. */
+    public synchronized long getRadioOnTime() {
+        return radioOnTime + (radioOn ? SystemClock.elapsedRealtime() - windowStartTime : 0);
+    }
+
+    /** Fraction of the time since the first start that the radio was scanning. */
+    public synchronized float getDutyCycle() {
+        long total = runningTime + (running ? SystemClock.elapsedRealtime() - startTime : 0);
+        return total == 0 ? 0 : (float) getRadioOnTime() / total;
+    }
+
+    public synchronized long getIdleTime() {
+        return idle;
+    }
+
+    public synchronized int getDiscoveryCount() {
+        return discoveryCount;
+    }
+
+    /** Average time from {@link #start} until a target was first seen. */
+    public synchronized long getAverageDiscoveryLatency() {
+        return discoveryCount == 0 ? 0 : discoveryLatencyTotal / discoveryCount;
+    }
+
+    public synchronized long getMaxDiscoveryLatency() {
+        return maxDiscoveryLatency;
+    }
+}
@@ -0,0 +1,18 @@
+package com.example.lab_bt;
+
+/**
+ * The thread a component hands its work and timeouts to. The app runs everything on
+ * handlers through {@link HandlerScheduler}; code that is built without android.jar,
+ * the benchmarks and the unit tests, brings its own.
+ */
+public interface Scheduler {
+    /** Whether the caller already runs on the scheduler's thread. */
+    boolean isCurrentThread();
+
+    void post(Runnable task);
+
+    void postDelayed(Runnable task, long delay);
+
+    /** Drops every pending run of the task, posted or delayed. */
+    void removeCallbacks(Runnable task);
+}
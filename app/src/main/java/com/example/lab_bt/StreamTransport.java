@@ -0,0 +1,34 @@
+package com.example.lab_bt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Byte streams between two devices, RFCOMM on real hardware. Blocking calls have no
+ * timeout of their own; closing the stream or server from another thread is the way
+ * to abort them.
+ */
+public interface StreamTransport {
+    interface Stream extends Closeable {
+        String getRemoteAddress();
+
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+    }
+
+    interface Server extends Closeable {
+        /** Returns the next client, already connected. */
+        Stream accept() throws IOException;
+    }
+
+    /** A stream to the service on the device, not connected yet. */
+    Stream open(String address, UUID uuid) throws IOException;
+
+    Server listen(String name, UUID uuid) throws IOException;
+}
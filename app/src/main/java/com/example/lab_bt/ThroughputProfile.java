@@ -0,0 +1,49 @@
+package com.example.lab_bt;
+
+/**
+ * How a connection trades latency and throughput against power. MTU and connection
+ * priority can only be negotiated from API 21 on, older devices keep the stack
+ * defaults for both and only get the write type.
+ */
+public enum ThroughputProfile {
+    /** Stack defaults: acknowledged writes, 23-byte MTU, balanced connection interval. */
+    BALANCED(false, 0, Link.CONNECTION_PRIORITY_BALANCED),
+    /**
+     * Idempotent commands go out as write-without-response over the shortest connection
+     * interval. The MTU asked for is 247, not the 517 a link may allow: with the L2CAP
+     * header that fills one 251-byte link-layer packet under data length extension,
+     * anything larger is fragmented again.
+     */
+    HIGH_THROUGHPUT(true, 247, Link.CONNECTION_PRIORITY_HIGH),
+    /** Acknowledged writes over a long connection interval. */
+    LOW_POWER(false, 0, Link.CONNECTION_PRIORITY_LOW_POWER);
+
+    /** ATT MTU every connection starts with. */
+    public static final int DEFAULT_MTU = 23;
+    // ATT opcode and handle take three bytes of every write.
+    public static final int ATT_OVERHEAD = 3;
+
+    private final boolean writeWithoutResponse;
+    private final int mtu;
+    private final int connectionPriority;
+
+    ThroughputProfile(boolean writeWithoutResponse, int mtu, int connectionPriority) {
+        this.writeWithoutResponse = writeWithoutResponse;
+        this.mtu = mtu;
+        this.connectionPriority = connectionPriority;
+    }
+
+    public boolean isWriteWithoutResponse() {
+        return writeWithoutResponse;
+    }
+
+    /** 0 keeps whatever MTU the link has. */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /** One of the {@code Link.CONNECTION_PRIORITY_*} values. */
+    public int getConnectionPriority() {
+        return connectionPriority;
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.lab_bt;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Collapses rapid writes to one characteristic. A value waits out the debounce
+ * window and, if a write of ours is still in flight, that write as well; anything
+ * submitted in the meantime replaces it and the replaced value completes as
+ * superseded. So at most one write is queued and it always carries the latest intent.
+ */
+public class WriteCoalescer {
+    public static final long DEFAULT_DEBOUNCE = 100;
+
+    /** Builds the write for a value, null when the link is gone. */
+    public interface Sender {
+        GattOperation createWrite(byte[] value, GattOperation.Callback callback);
+    }
+
+    private final Handler handler;
+    private final GattOperationQueue queue;
+    private final Sender sender;
+    private long debounce = DEFAULT_DEBOUNCE;
+
+    private byte[] pendingValue;
+    private GattOperation.Callback pendingCallback;
+    private long pendingTime;
+    private boolean inFlight;
+    private boolean debouncing;
+
+    private long submittedCount;
+    private long sentCount;
+    private long savedCount;
+    private long completionTotal;
+    private long completionCount;
+    private long maxCompletion;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            endDebounce();
+        }
+    };
+
+    public WriteCoalescer(Handler handler, GattOperationQueue queue, Sender sender) {
+        this.handler = handler;
+        this.queue = queue;
+        this.sender = sender;
+    }
+
+    /** Applies to values submitted from now on, 0 sends as soon as the link is free. */
+    public synchronized void setDebounce(long debounce) {
+        this.debounce = debounce;
+    }
+
+    public void submit(byte[] value, GattOperation.Callback callback) {
+        GattOperation.Callback superseded;
+        synchronized (this) {
+            submittedCount++;
+            superseded = pendingCallback;
+            if (pendingValue != null) {
+                savedCount++;
+            }
+            pendingValue = value;
+            pendingCallback = callback;
+            pendingTime = SystemClock.elapsedRealtime();
+            // Every new value restarts the window, a burst only goes out once it is over.
+            handler.removeCallbacks(flushRunnable);
+            debouncing = true;
+            handler.postDelayed(flushRunnable, debounce);
+        }
+        if (superseded != null) {
+            superseded.onComplete(null, GattOperation.STATUS_SUPERSEDED);
+        }
+    }
+
+    /** Drops the value that has not been sent yet, it completes as cancelled. */
+    public void cancel() {
+        GattOperation.Callback cancelled;
+        synchronized (this) {
+            handler.removeCallbacks(flushRunnable);
+            debouncing = false;
+            inFlight = false;
+            cancelled = pendingCallback;
+            pendingValue = null;
+            pendingCallback = null;
+        }
+        if (cancelled != null) {
+            cancelled.onComplete(null, GattOperation.STATUS_CANCELLED);
+        }
+    }
+
+    /** Sends the value once the link is free. Runs on the handler, visible for tests. */
+    void endDebounce() {
+        synchronized (this) {
+            debouncing = false;
+        }
+        flush();
+    }
+
+    private void flush() {
+        byte[] value;
+        final GattOperation.Callback callback;
+        final long submitTime;
+        synchronized (this) {
+            if (pendingValue == null || inFlight || debouncing) {
+                return;
+            }
+            value = pendingValue;
+            callback = pendingCallback;
+            submitTime = pendingTime;
+            pendingValue = null;
+            pendingCallback = null;
+            inFlight = true;
+        }
+
+        GattOperation operation = sender.createWrite(value, new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation, int status) {
+                synchronized (WriteCoalescer.this) {
+                    inFlight = false;
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        long elapsed = SystemClock.elapsedRealtime() - submitTime;
+                        completionTotal += elapsed;
+                        completionCount++;
+                        maxCompletion = Math.max(maxCompletion, elapsed);
+                    }
+                }
+                if (callback != null) {
+                    callback.onComplete(operation, status);
+                }
+                flush();
+            }
+        });
+        if (operation == null) {
+            synchronized (this) {
+                inFlight = false;
+            }
+            if (callback != null) {
+                callback.onComplete(null, GattOperation.STATUS_NOT_CONNECTED);
+            }
+            return;
+        }
+        synchronized (this) {
+            sentCount++;
+        }
+        queue.submit(operation);
+    }
+
+    public synchronized long getSubmittedCount() {
+        return submittedCount;
+    }
+
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    /** Values that were replaced before they went out. */
+    public synchronized long getSavedCount() {
+        return savedCount;
+    }
+
+    /**
+     * Average time from submitting a value to its write completing, in ms. The board
+     * acts on the frame after that, its acknowledgement is not waited for.
+     */
+    public synchronized long getAverageCompletionTime() {
+        return completionCount == 0 ? 0 : completionTotal / completionCount;
+    }
+
+    public synchronized long getMaxCompletionTime() {
+        return maxCompletion;
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.lab_bt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisementDataTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final UUID HM10_SERVICE = UUID.fromString(GattAttribute.HM10_SERVICE);
+
+    /** Builds a scan record out of AD structures, each given as type then data. */
+    static class Record {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Record add(int type, byte[] data) {
+            out.write(data.length + 1);
+            out.write(type);
+            out.write(data, 0, data.length);
+            return this;
+        }
+
+        Record add(int type, int... data) {
+            byte[] bytes = new byte[data.length];
+            for (int i = 0; i < data.length; i++) {
+                bytes[i] = (byte) data[i];
+            }
+            return add(type, bytes);
+        }
+
+        Record add(int type, String text) {
+            return add(type, text.getBytes(UTF_8));
+        }
+
+        /** Padded with zeros to the 62 bytes Android hands out. */
+        byte[] build() {
+            byte[] record = new byte[62];
+            byte[] data = out.toByteArray();
+            System.arraycopy(data, 0, record, 0, Math.min(data.length, record.length));
+            return record;
+        }
+    }
+
+    // How an HM-10 with the default settings advertises.
+    static byte[] hm10Record(String name) {
+        return new Record()
+                .add(AdvertisementData.TYPE_FLAGS, 0x06)
+                .add(AdvertisementData.TYPE_UUID16_COMPLETE, 0xE0, 0xFF)
+                .add(AdvertisementData.TYPE_NAME_COMPLETE, name)
+                .build();
+    }
+
+    private final AdvertisementData data = new AdvertisementData();
+
+    @Test
+    public void parsesAnHm10Advertisement() {
+        assertTrue(data.parse(hm10Record("HMSoft")));
+        assertEquals(0x06, data.getFlags());
+        assertEquals("HMSoft", data.getLocalName());
+        assertTrue(data.nameEquals("HMSoft".getBytes(UTF_8)));
+        assertTrue(data.nameStartsWith("HM".getBytes(UTF_8)));
+        assertFalse(data.nameEquals("HM".getBytes(UTF_8)));
+        assertTrue(data.hasServiceUuid(HM10_SERVICE));
+        assertFalse(data.hasServiceUuid(UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb")));
+        assertEquals(-1, data.getManufacturerId());
+    }
+
+    @Test
+    public void completeNameWinsOverTheShortOne() {
+        data.parse(new Record()
+                .add(AdvertisementData.TYPE_NAME_COMPLETE, "Board 12")
+                .add(AdvertisementData.TYPE_NAME_SHORT, "Bd")
+                .build());
+        assertEquals("Board 12", data.getLocalName());
+    }
+
+    @Test
+    public void expandsThirtyTwoBitAndMatchesFullUuids() {
+        UUID full = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+        byte[] bytes = new byte[16];
+        long lsb = full.getLeastSignificantBits();
+        long msb = full.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (lsb >>> (8 * i));
+            bytes[8 + i] = (byte) (msb >>> (8 * i));
+        }
+        data.parse(new Record()
+                .add(AdvertisementData.TYPE_UUID32_INCOMPLETE, 0x0D, 0x18, 0, 0)
+                .add(AdvertisementData.TYPE_UUID128_COMPLETE, bytes)
+                .build());
+        assertTrue(data.hasServiceUuid(full));
+        assertTrue(data.hasServiceUuid(UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb")));
+        assertFalse(data.hasServiceUuid(HM10_SERVICE));
+    }
+
+    @Test
+    public void readsManufacturerData() {
+        data.parse(new Record()
+                .add(AdvertisementData.TYPE_MANUFACTURER_DATA, 0x4C, 0x00, 0x02, 0x15)
+                .build());
+        assertEquals(0x004C, data.getManufacturerId());
+        assertEquals(2, data.getManufacturerDataLength());
+        assertEquals(0x02, data.getRecord()[data.getManufacturerDataOffset()]);
+    }
+
+    @Test
+    public void keepsWhatParsedBeforeAnOverrun() {
+        byte[] record = new Record()
+                .add(AdvertisementData.TYPE_FLAGS, 0x06)
+                .add(AdvertisementData.TYPE_NAME_COMPLETE, "HMSoft")
+                .build();
+        // The name claims more bytes than the record has.
+        record[3] = 100;
+        assertFalse(data.parse(record));
+        assertEquals(0x06, data.getFlags());
+        assertFalse(data.hasLocalName());
+    }
+
+    @Test
+    public void ignoresTheOddTailOfAUuidList() {
+        data.parse(new Record()
+                .add(AdvertisementData.TYPE_UUID16_COMPLETE, 0xE0, 0xFF, 0x0D)
+                .build());
+        assertTrue(data.hasServiceUuid(HM10_SERVICE));
+    }
+
+    @Test
+    public void resetsBetweenRecords() {
+        data.parse(hm10Record("HMSoft"));
+        assertTrue(data.parse(new byte[0]));
+        assertFalse(data.hasLocalName());
+        assertEquals(-1, data.getFlags());
+        assertFalse(data.hasServiceUuid(HM10_SERVICE));
+        assertFalse(data.parse(null));
+        assertNull(data.getLocalName());
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.lab_bt;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AuthorizationStoreTest {
+    private static final long BOARD = 0x001122334455L;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private AuthorizationStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        file = folder.newFile("authorizations.bin");
+        store = new AuthorizationStore(file);
+    }
+
+    private static List<KeyExchangeHandler.Key> keys(int count, long expiry) {
+        List<KeyExchangeHandler.Key> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // One vendor prefix, as a batch of boards would have.
+            keys.add(new KeyExchangeHandler.Key(0x001122000000L + i,
+                    new byte[]{(byte) i, (byte) (i >>> 8)}, expiry));
+        }
+        return keys;
+    }
+
+    @Test
+    public void probesAGrant() {
+        assertFalse(store.isAuthorized(BOARD, 0));
+        assertNull(store.getToken(BOARD));
+        assertEquals(-1, store.getGrantTime(BOARD));
+
+        store.grant(BOARD, new byte[]{1, 2, 3}, 100, 5000);
+        assertTrue(store.isAuthorized(BOARD, 4999));
+        assertFalse(store.isAuthorized(BOARD, 5000));
+        assertArrayEquals(new byte[]{1, 2, 3}, store.getToken(BOARD));
+        assertEquals(100, store.getGrantTime(BOARD));
+        assertEquals(5000, store.getExpiry(BOARD));
+
+        // Granting again replaces the entry rather than adding one.
+        store.grant(BOARD, new byte[]{4}, 200, AuthorizationStore.NEVER);
+        assertEquals(1, store.size());
+        assertTrue(store.isAuthorized(BOARD, Long.MAX_VALUE));
+        assertArrayEquals(new byte[]{4}, store.getToken(BOARD));
+    }
+
+    @Test
+    public void tokensAreCopied() {
+        byte[] token = {1, 2, 3};
+        store.grant(BOARD, token, 0, AuthorizationStore.NEVER);
+        token[0] = 9;
+        store.getToken(BOARD)[1] = 9;
+        assertArrayEquals(new byte[]{1, 2, 3}, store.getToken(BOARD));
+    }
+
+    @Test
+    public void revokeRemovesOnlyThatDevice() {
+        store.importKeys(keys(100, AuthorizationStore.NEVER), 0);
+        assertTrue(store.revoke(0x001122000000L + 42));
+        assertFalse(store.revoke(0x001122000000L + 42));
+        assertEquals(99, store.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i != 42, store.isAuthorized(0x001122000000L + i, 0));
+        }
+    }
+
+    /**
+     * Random grants, revokes and lookups over a small address range, so chains collide
+     * and deletions shift entries all the time, checked against a HashMap.
+     */
+    @Test
+    public void matchesAMapUnderRandomChanges() {
+        Random random = new Random(17);
+        Map<Long, byte[]> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            long address = 0x001122000000L + random.nextInt(512);
+            switch (random.nextInt(3)) {
+                case 0:
+                    byte[] token = {(byte) i};
+                    store.grant(address, token, i, AuthorizationStore.NEVER);
+                    expected.put(address, token);
+                    break;
+                case 1:
+                    assertEquals(expected.remove(address) != null, store.revoke(address));
+                    break;
+                default:
+                    assertArrayEquals(expected.get(address), store.getToken(address));
+                    break;
+            }
+            assertEquals(expected.size(), store.size());
+        }
+        for (Map.Entry<Long, byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getValue(), store.getToken(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void exportSkipsExpiredKeys() {
+        store.importKeys(keys(10, 1000), 0);
+        store.grant(BOARD, new byte[]{9}, 0, AuthorizationStore.NEVER);
+        assertEquals(11, store.exportKeys(999).size());
+        List<KeyExchangeHandler.Key> valid = store.exportKeys(1000);
+        assertEquals(1, valid.size());
+        assertEquals(BOARD, valid.get(0).address);
+    }
+
+    @Test
+    public void importsTenThousandKeysAndProbesThem() {
+        List<KeyExchangeHandler.Key> keys = keys(10000, AuthorizationStore.NEVER);
+        assertEquals(keys.size(), store.importKeys(keys, 0));
+
+        int lookups = 100000;
+        int found = 0;
+        for (int i = 0; i < lookups; i++) {
+            // Every other probe misses, the vendor prefix is shared either way.
+            if (store.isAuthorized(0x001122000000L + i % 20000, 0)) {
+                found++;
+            }
+        }
+
+        assertEquals(lookups / 2, found);
+        assertEquals(keys.size(), store.size());
+    }
+
+    @Test
+    public void survivesAReload() {
+        store.importKeys(keys(1000, 5000), 300);
+        store.revoke(0x001122000000L + 7);
+        store.flush();
+
+        AuthorizationStore reloaded = new AuthorizationStore(file);
+        assertEquals(999, reloaded.size());
+        assertFalse(reloaded.isAuthorized(0x001122000000L + 7, 0));
+        assertArrayEquals(new byte[]{8, 0}, reloaded.getToken(0x001122000000L + 8));
+        assertEquals(300, reloaded.getGrantTime(0x001122000000L + 8));
+        assertEquals(5000, reloaded.getExpiry(0x001122000000L + 8));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void keepsWhatItCanOfADamagedFile() throws IOException {
+        store.importKeys(keys(10, AuthorizationStore.NEVER), 0);
+        store.flush();
+        // Every entry is 8 + 8 + 8 + 1 + 2 bytes after the 8-byte header, cut the last one.
+        File damaged = folder.newFile("damaged.bin");
+        byte[] contents = new byte[8 + 9 * 27 + 10];
+        RandomAccessFile original = new RandomAccessFile(file, "r");
+        try {
+            assertEquals(8 + 10 * 27, original.length());
+            original.readFully(contents);
+        } finally {
+            original.close();
+        }
+        FileOutputStream out = new FileOutputStream(damaged);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+
+        assertEquals(9, new AuthorizationStore(damaged).size());
+    }
+
+    @Test
+    public void startsEmptyOnAnUnknownVersion() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[]{0, 0, 0, 99, 0, 0, 0, 0});
+        } finally {
+            out.close();
+        }
+        assertEquals(0, new AuthorizationStore(file).size());
+    }
+}
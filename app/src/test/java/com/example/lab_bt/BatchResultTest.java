@@ -0,0 +1,115 @@
+package com.example.lab_bt;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchResultTest {
+    private static final long LATENCY = 50;
+
+    private SimulatedFleet fleet;
+
+    @After
+    public void tearDown() {
+        if (fleet != null) {
+            fleet.close();
+        }
+    }
+
+    private static class Counter implements BatchResult.Callback {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onComplete(BatchResult result) {
+            calls.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    // What sendBatch does for every connected device of the set.
+    private static void submit(GattOperationQueue queue, final String address, int command,
+                               final BatchResult result) {
+        queue.submit(GattOperation.write(SimulatedFleet.CHARACTERISTIC,
+                FrameCodec.encode(command, 0), new GattOperation.Callback() {
+                    @Override
+                    public void onComplete(GattOperation operation, int status) {
+                        result.complete(address, status);
+                    }
+                }).setCoalescing(true));
+    }
+
+    @Test
+    public void callsBackOnceEveryDeviceCompleted() {
+        Counter counter = new Counter();
+        BatchResult result = new BatchResult(3, counter);
+        result.complete("a", BluetoothGatt.GATT_SUCCESS);
+        result.complete("b", GattOperation.STATUS_NOT_CONNECTED);
+        // A second answer for the same device does not count.
+        result.complete("a", BluetoothGatt.GATT_FAILURE);
+        assertFalse(result.isDone());
+        assertEquals(0, counter.calls.get());
+
+        result.complete("c", BluetoothGatt.GATT_SUCCESS);
+        assertTrue(result.isDone());
+        assertEquals(1, counter.calls.get());
+        assertEquals(2, result.getSuccessCount());
+        Map<String, Integer> statuses = result.getStatuses();
+        assertEquals(BluetoothGatt.GATT_SUCCESS, (int) statuses.get("a"));
+        assertEquals(GattOperation.STATUS_NOT_CONNECTED, (int) statuses.get("b"));
+        assertEquals(3, result.getLatencies().size());
+    }
+
+    @Test
+    public void fansOutToAFleet() throws InterruptedException {
+        int size = 20;
+        fleet = new SimulatedFleet(size, LATENCY);
+        fleet.connect();
+
+        Counter counter = new Counter();
+        BatchResult result = new BatchResult(size, counter);
+        for (int i = 0; i < size; i++) {
+            submit(fleet.queue(i), SimulatedFleet.address(i), FrameCodec.CMD_LED_ON, result);
+        }
+        SimulatedFleet.await(counter.done);
+
+        assertEquals(size, result.getSuccessCount());
+        for (int i = 0; i < size; i++) {
+            assertTrue(fleet.peripheral(i).isLedOn());
+        }
+    }
+
+    @Test
+    public void newerBatchSupersedesAQueuedOne() throws InterruptedException {
+        fleet = new SimulatedFleet(1, LATENCY);
+        fleet.connect();
+        String address = SimulatedFleet.address(0);
+        GattOperationQueue queue = fleet.queue(0);
+
+        Counter first = new Counter();
+        Counter second = new Counter();
+        BatchResult firstResult = new BatchResult(1, first);
+        BatchResult secondResult = new BatchResult(1, second);
+        // Keeps the link busy so that both batches wait in the queue.
+        queue.submit(GattOperation.write(SimulatedFleet.CHARACTERISTIC,
+                FrameCodec.encode(FrameCodec.CMD_QUERY, 0), null));
+        submit(queue, address, FrameCodec.CMD_LED_ON, firstResult);
+        submit(queue, address, FrameCodec.CMD_LED_OFF, secondResult);
+
+        SimulatedFleet.await(first.done);
+        assertEquals(GattOperation.STATUS_SUPERSEDED,
+                (int) firstResult.getStatuses().get(address));
+        SimulatedFleet.await(second.done);
+        assertEquals(1, secondResult.getSuccessCount());
+        assertFalse(fleet.peripheral(0).isLedOn());
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.lab_bt;
+
+import android.os.Handler;
+
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceConnectionTest {
+    private static final UUID CHARACTERISTIC = UUID.fromString(GattAttribute.HM10_CHARACTERISTIC);
+    // One-way delay of a link at a 7.5 ms connection interval, give or take.
+    private static final long LATENCY = 8;
+    private static final int ROUNDS = 10;
+
+    // Metrics are per address and live for the process, every test takes its own.
+    private static DeviceConnection connection(int device) {
+        return new DeviceConnection(String.format("0A:00:00:00:25:%02X", device), new Handler());
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000;
+    }
+
+    @Test
+    public void coldAttachIsTimedFromTheFirstScreen() {
+        DeviceConnection connection = connection(1);
+        assertFalse(connection.acquire(100));
+        assertFalse(connection.acquire(200));
+        connection.markAttachReady(500);
+        // Discoveries after a lost link have no screen waiting on them.
+        connection.markAttachReady(900);
+
+        LatencyHistogram cold = connection.getMetrics().getColdAttach();
+        assertEquals(1, cold.getCount());
+        assertEquals(400, cold.getMax());
+        assertEquals(0, connection.getMetrics().getWarmAttach().getCount());
+    }
+
+    @Test
+    public void readyDeviceAttachesWarm() {
+        DeviceConnection connection = connection(2);
+        connection.setState(DeviceConnection.State.READY);
+        assertTrue(connection.acquire(100));
+        connection.markAttachReady(500);
+        assertEquals(0, connection.getMetrics().getColdAttach().getCount());
+    }
+
+    @Test
+    public void reconnectIsTimedFromTheFirstLoss() {
+        DeviceConnection connection = connection(5);
+        connection.markReady(50);
+        connection.markDisconnected(100);
+        // A failed attempt in between loses the link again.
+        connection.markDisconnected(200);
+        connection.markReady(350);
+
+        LatencyHistogram reconnect = connection.getMetrics().getReconnectTime();
+        assertEquals(1, connection.getReconnectCount());
+        assertEquals(250, connection.getLastReconnectTime());
+        assertEquals(1, reconnect.getCount());
+        assertEquals(250000, reconnect.getMax());
+    }
+
+    @Test
+    public void onlyTheLastReleaseLetsGo() {
+        DeviceConnection connection = connection(3);
+        assertFalse(connection.release());
+        connection.acquire(100);
+        connection.acquire(200);
+        assertFalse(connection.release());
+        assertEquals(1, connection.getClientCount());
+        assertTrue(connection.release());
+        assertFalse(connection.release());
+        assertEquals(0, connection.getClientCount());
+    }
+
+    // Connect, discovery and notification setup, as the service does before READY.
+    private static void connectCold(LoopbackTransport transport, final DeviceConnection connection,
+                                    AtomicReference<Link> link) throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(1);
+        link.set(transport.connect(connection.getAddress(), false, new HandlerLinkCallbackTest
+                .RecordingCallback() {
+            @Override
+            public void onConnected(Link link) {
+                connection.setState(DeviceConnection.State.DISCOVERING);
+                link.discoverServices();
+            }
+
+            @Override
+            public void onServicesDiscovered(Link link, int status) {
+                link.setNotification(CHARACTERISTIC, true, 0);
+            }
+
+            @Override
+            public void onNotificationChanged(Link link, UUID charUuid, int status, int token) {
+                connection.setState(DeviceConnection.State.READY);
+                connection.markAttachReady(now());
+                ready.countDown();
+            }
+        }));
+        SimulatedFleet.await(ready);
+    }
+
+    /**
+     * A screen opened, closed and reopened within the idle timeout, then left alone
+     * until the link is dropped, a few times over. Reopening finds the link ready.
+     */
+    @Test
+    public void reattachFindsTheLinkReady() throws InterruptedException {
+        DeviceConnection connection = connection(4);
+        LoopbackTransport transport = new LoopbackTransport();
+        SimulatedPeripheral peripheral = new SimulatedPeripheral();
+        peripheral.setLatency(LATENCY);
+        transport.addPeripheral(connection.getAddress(), peripheral);
+        AtomicReference<Link> link = new AtomicReference<>();
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                assertFalse(connection.acquire(now()));
+                connectCold(transport, connection, link);
+                assertTrue(connection.release());
+
+                // What BluetoothLeService.acquire() records for a ready device.
+                long attachTime = now();
+                assertTrue(connection.acquire(attachTime));
+                connection.getMetrics().recordAttach(now() - attachTime, true);
+                assertTrue(connection.release());
+
+                // The idle timeout ran out.
+                link.get().close();
+                connection.setState(DeviceConnection.State.IDLE);
+            }
+        } finally {
+            peripheral.close();
+        }
+
+        LatencyHistogram cold = connection.getMetrics().getColdAttach();
+        LatencyHistogram warm = connection.getMetrics().getWarmAttach();
+        assertEquals(ROUNDS, cold.getCount());
+        assertEquals(ROUNDS, warm.getCount());
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.lab_bt;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceStateCacheTest {
+    private static final String BOARD = "00:11:22:33:44:55";
+    private static final int ON = DeviceStateCache.LED_ON;
+    private static final int OFF = DeviceStateCache.LED_OFF;
+
+    private final List<String> events = new ArrayList<>();
+    private DeviceStateCache cache;
+
+    @Before
+    public void setUp() {
+        // Posted tasks never run, the pending timeout is run by hand.
+        cache = new DeviceStateCache(new Handler(), new DeviceStateCache.Listener() {
+            @Override
+            public void onLedStateChanged(String address, int led, boolean pending) {
+                events.add(led + (pending ? " pending" : ""));
+            }
+
+            @Override
+            public void onPendingTimeout(String address) {
+                events.add("timeout");
+            }
+        });
+    }
+
+    // The board reports OFF and the screen then asks for ON with sequence 7.
+    private void switchOn() {
+        cache.onLedState(BOARD, OFF);
+        cache.setPending(BOARD, ON, 7);
+        assertEquals(ON, cache.getLed(BOARD));
+        assertTrue(cache.isPending(BOARD));
+        events.clear();
+    }
+
+    @Test
+    public void unknownUntilTheBoardAnswers() {
+        assertEquals(DeviceStateCache.LED_UNKNOWN, cache.getLed(BOARD));
+        assertFalse(cache.isPending(BOARD));
+        assertEquals(0, cache.getConfirmedTime(BOARD));
+    }
+
+    @Test
+    public void ackConfirmsThePendingValue() {
+        switchOn();
+        // An answer to an older command changes nothing.
+        cache.onAck(BOARD, 6, FrameCodec.ACK_OK);
+        assertTrue(cache.isPending(BOARD));
+
+        cache.onAck(BOARD, 7, FrameCodec.ACK_OK);
+        assertEquals(ON, cache.getLed(BOARD));
+        assertFalse(cache.isPending(BOARD));
+        assertTrue(cache.getConfirmedTime(BOARD) > 0);
+        assertEquals(Arrays.asList(ON + ""), events);
+
+        // Nothing left to time out.
+        cache.timeout(BOARD);
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void timeoutRollsBack() {
+        switchOn();
+        cache.timeout(BOARD);
+        assertEquals(OFF, cache.getLed(BOARD));
+        assertFalse(cache.isPending(BOARD));
+        assertEquals(Arrays.asList(OFF + "", "timeout"), events);
+    }
+
+    @Test
+    public void negativeAckRollsBack() {
+        switchOn();
+        cache.onAck(BOARD, 7, FrameCodec.ACK_UNKNOWN_COMMAND);
+        assertEquals(OFF, cache.getLed(BOARD));
+        assertFalse(cache.isPending(BOARD));
+        assertEquals(Arrays.asList(OFF + ""), events);
+    }
+
+    @Test
+    public void failedWriteRollsBack() {
+        switchOn();
+        // The write of an older command failing leaves the newer one pending.
+        cache.onWriteFailed(BOARD, 6);
+        assertTrue(cache.isPending(BOARD));
+
+        cache.onWriteFailed(BOARD, 7);
+        assertEquals(OFF, cache.getLed(BOARD));
+        assertEquals(Arrays.asList(OFF + ""), events);
+    }
+
+    @Test
+    public void disconnectRollsBack() {
+        switchOn();
+        cache.onDisconnected(BOARD);
+        assertEquals(OFF, cache.getLed(BOARD));
+        assertFalse(cache.isPending(BOARD));
+        assertEquals(Arrays.asList(OFF + ""), events);
+        // A late ACK from the lost link is ignored.
+        cache.onAck(BOARD, 7, FrameCodec.ACK_OK);
+        assertEquals(OFF, cache.getLed(BOARD));
+    }
+
+    /** The query after a reconnect: the board's state wins over the cached one. */
+    @Test
+    public void reconnectQueryReconciles() {
+        switchOn();
+        cache.onDisconnected(BOARD);
+        // Someone switched the LED on at the board meanwhile.
+        cache.onLedState(BOARD, ON);
+        assertEquals(ON, cache.getLed(BOARD));
+        assertFalse(cache.isPending(BOARD));
+        assertEquals(Arrays.asList(OFF + "", ON + ""), events);
+    }
+
+    @Test
+    public void queryAnswerConfirmsAMatchingPendingValue() {
+        switchOn();
+        cache.onLedState(BOARD, ON);
+        assertFalse(cache.isPending(BOARD));
+        assertEquals(Arrays.asList(ON + ""), events);
+    }
+
+    @Test
+    public void queryAnswerKeepsADifferentPendingValue() {
+        switchOn();
+        // The state report was sent before the board read the command.
+        cache.onLedState(BOARD, OFF);
+        assertEquals(ON, cache.getLed(BOARD));
+        assertTrue(cache.isPending(BOARD));
+        assertEquals(Arrays.asList(ON + " pending"), events);
+
+        cache.timeout(BOARD);
+        assertEquals(OFF, cache.getLed(BOARD));
+    }
+}
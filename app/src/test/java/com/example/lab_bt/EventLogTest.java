@@ -0,0 +1,178 @@
+package com.example.lab_bt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventLogTest {
+    private static final long DEVICE = MacAddress.pack("00:11:22:33:44:55");
+    private static final long OTHER_DEVICE = MacAddress.pack("66:77:88:99:AA:BB");
+    // More than one segment holds.
+    private static final int MANY = 40000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private EventLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("events");
+        log = new EventLog(directory);
+    }
+
+    @After
+    public void tearDown() {
+        log.close();
+    }
+
+    private static class Recorder implements EventLog.Visitor {
+        final List<long[]> records = new ArrayList<>();
+
+        @Override
+        public void onEvent(long sequence, long timestamp, long address, int type,
+                            byte[] payload, int length) {
+            records.add(new long[]{sequence, timestamp, address, type,
+                    length == 0 ? -1 : payload[0]});
+        }
+    }
+
+    private int segmentFiles() {
+        return directory.list().length;
+    }
+
+    @Test
+    public void nextSegmentIsPreparedRightAway() throws InterruptedException {
+        for (int i = 0; i < 200 && segmentFiles() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, segmentFiles());
+    }
+
+    @Test
+    public void queriesBySequenceWhileTheClockJumpsBack() throws IOException {
+        log.append(5000, DEVICE, EventLog.TYPE_CONNECTED);
+        long from = log.getNextSequence();
+        log.append(6000, DEVICE, EventLog.TYPE_COMMAND, new byte[]{1}, 0, 1);
+        // The wall clock was set back.
+        log.append(1000, OTHER_DEVICE, EventLog.TYPE_NOTIFICATION, new byte[]{2}, 0, 1);
+        log.append(1500, DEVICE, EventLog.TYPE_LED_STATE, new byte[]{1}, 0, 1);
+
+        Recorder all = new Recorder();
+        assertEquals(3, log.querySequence(EventLog.ANY_ADDRESS, from, Long.MAX_VALUE, all));
+        assertEquals(6000, all.records.get(0)[1]);
+        assertEquals(1000, all.records.get(1)[1]);
+        assertEquals(1500, all.records.get(2)[1]);
+
+        Recorder device = new Recorder();
+        assertEquals(2, log.querySequence(DEVICE, from, Long.MAX_VALUE, device));
+        assertEquals(EventLog.TYPE_LED_STATE, device.records.get(1)[3]);
+        assertEquals(1, device.records.get(1)[4]);
+    }
+
+    @Test
+    public void queriesByTimeWindowWhileTheClockJumpsBack() throws IOException {
+        log.append(5000, DEVICE, EventLog.TYPE_CONNECTED);
+        log.append(6000, DEVICE, EventLog.TYPE_COMMAND);
+        log.append(1000, OTHER_DEVICE, EventLog.TYPE_NOTIFICATION);
+        log.append(1500, DEVICE, EventLog.TYPE_LED_STATE);
+        log.append(7000, DEVICE, EventLog.TYPE_DISCONNECTED);
+
+        Recorder early = new Recorder();
+        assertEquals(2, log.query(EventLog.ANY_ADDRESS, 1000, 2000, early));
+        assertEquals(3, early.records.get(0)[0]);
+        assertEquals(4, early.records.get(1)[0]);
+
+        Recorder device = new Recorder();
+        assertEquals(3, log.query(DEVICE, 1500, 7000, device));
+        assertEquals(1, device.records.get(0)[0]);
+        assertEquals(2, device.records.get(1)[0]);
+        assertEquals(4, device.records.get(2)[0]);
+    }
+
+    @Test
+    public void truncatesLongPayloads() throws IOException {
+        log.append(1, DEVICE, EventLog.TYPE_NOTIFICATION, new byte[40], 0, 40);
+        final int[] length = new int[1];
+        log.querySequence(DEVICE, 0, Long.MAX_VALUE, new EventLog.Visitor() {
+            @Override
+            public void onEvent(long sequence, long timestamp, long address, int type,
+                                byte[] payload, int stored) {
+                length[0] = stored;
+            }
+        });
+        assertEquals(EventLog.MAX_PAYLOAD, length[0]);
+    }
+
+    private void awaitNextSegment() throws InterruptedException {
+        for (int i = 0; i < 200 && !log.isNextSegmentReady(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(log.isNextSegmentReady());
+    }
+
+    @Test
+    public void rangesSpanSegments() throws IOException, InterruptedException {
+        awaitNextSegment();
+        for (int i = 0; i < MANY; i++) {
+            log.append(i, DEVICE, EventLog.TYPE_NOTIFICATION, new byte[]{(byte) i}, 0, 1);
+        }
+        assertTrue(segmentFiles() >= 2);
+        Recorder recorder = new Recorder();
+        assertEquals(20, log.querySequence(DEVICE, 32760, 32780, recorder));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(32760 + i, recorder.records.get(i)[0]);
+        }
+        assertEquals(MANY, log.querySequence(EventLog.ANY_ADDRESS, 0, Long.MAX_VALUE,
+                new Recorder()));
+        assertEquals(0, log.getDroppedCount());
+
+        // Timestamps are i, the window crosses into the second segment.
+        Recorder window = new Recorder();
+        assertEquals(20, log.query(DEVICE, 32760, 32780, window));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(32760 + i, window.records.get(i)[1]);
+        }
+        assertEquals(0, log.query(DEVICE, MANY, Long.MAX_VALUE, new Recorder()));
+    }
+
+    // A board whose clock was set back mid-block still has its block found.
+    @Test
+    public void timeIndexCoversOutOfOrderRecords() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            log.append(i == 500 ? 10 : 100000 + i, DEVICE, EventLog.TYPE_COMMAND);
+        }
+        Recorder recorder = new Recorder();
+        assertEquals(1, log.query(DEVICE, 0, 100, recorder));
+        assertEquals(501, recorder.records.get(0)[0]);
+    }
+
+    @Test
+    public void reopenedLogContinuesTheSequence() throws IOException, InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            log.append(i, DEVICE, EventLog.TYPE_COMMAND);
+        }
+        // Let the prepared segment appear, the reopened log must not skip ahead to it.
+        nextSegmentIsPreparedRightAway();
+        log.close();
+
+        log = new EventLog(directory);
+        assertEquals(11, log.getNextSequence());
+        log.append(100, DEVICE, EventLog.TYPE_COMMAND);
+        Recorder recorder = new Recorder();
+        assertEquals(11, log.querySequence(DEVICE, 0, Long.MAX_VALUE, recorder));
+        assertEquals(11, recorder.records.get(10)[0]);
+        assertEquals(2, segmentFiles());
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.lab_bt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Scheduler} on a thread of its own, the handler thread of code that runs
+ * without a looper. Tasks run in the order they fall due, posts in the order they were
+ * made.
+ */
+class ExecutorScheduler implements Scheduler {
+    private final Map<Runnable, List<Pending>> pending = new HashMap<>();
+    private volatile Thread thread;
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    thread = new Thread(runnable, "ExecutorScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private class Pending implements Runnable {
+        private final Runnable task;
+
+        Pending(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            synchronized (pending) {
+                List<Pending> runs = pending.get(task);
+                if (runs == null || !runs.remove(this)) {
+                    // Removed meanwhile.
+                    return;
+                }
+                if (runs.isEmpty()) {
+                    pending.remove(task);
+                }
+            }
+            task.run();
+        }
+    }
+
+    Thread getThread() {
+        return thread;
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay) {
+        Pending run = new Pending(task);
+        synchronized (pending) {
+            List<Pending> runs = pending.get(task);
+            if (runs == null) {
+                runs = new ArrayList<>();
+                pending.put(task, runs);
+            }
+            runs.add(run);
+        }
+        executor.schedule(run, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        synchronized (pending) {
+            pending.remove(task);
+        }
+    }
+
+    /** Waits until everything posted so far that is due has run. */
+    void sync() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        if (!done.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Scheduler thread stuck.");
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
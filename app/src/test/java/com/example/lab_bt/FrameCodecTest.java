@@ -0,0 +1,230 @@
+package com.example.lab_bt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameCodecTest {
+    private static class Collector implements FrameDecoder.Listener {
+        final List<byte[]> frames = new ArrayList<>();
+
+        @Override
+        public void onFrame(int command, int sequence, byte[] payload, int length) {
+            // Re-encoded, so frames compare as a whole and the reused buffer is copied.
+            frames.add(FrameCodec.encode(command, sequence,
+                    Arrays.copyOf(payload, length)));
+        }
+    }
+
+    @Test
+    public void crcMatchesTheReferenceValue() {
+        int crc = 0;
+        for (byte b : "123456789".getBytes()) {
+            crc = FrameCodec.crc8(crc, b);
+        }
+        // CRC-8 with polynomial 0x07, no reflection, zero init and final XOR.
+        assertEquals(0xF4, crc);
+    }
+
+    @Test
+    public void encodesTheDocumentedLayout() {
+        byte[] frame = FrameCodec.encode(FrameCodec.CMD_LED_ON, 7, new byte[]{0x11, 0x22});
+        assertEquals(2 + FrameCodec.OVERHEAD, frame.length);
+        assertEquals((byte) FrameCodec.SOF, frame[0]);
+        assertEquals(2, frame[1]);
+        assertEquals(FrameCodec.CMD_LED_ON, FrameCodec.commandOf(frame));
+        assertEquals(7, frame[3]);
+        int crc = 0;
+        for (int i = 1; i < frame.length - 1; i++) {
+            crc = FrameCodec.crc8(crc, frame[i]);
+        }
+        assertEquals((byte) crc, frame[frame.length - 1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOversizePayload() {
+        FrameCodec.encode(FrameCodec.EVT_AUTH, 0, new byte[FrameCodec.MAX_PAYLOAD + 1]);
+    }
+
+    @Test
+    public void idempotentCommands() {
+        assertTrue(FrameCodec.isIdempotent(FrameCodec.CMD_LED_ON));
+        assertTrue(FrameCodec.isIdempotent(FrameCodec.CMD_QUERY));
+        assertFalse(FrameCodec.isIdempotent(FrameCodec.CMD_STREAM_START));
+    }
+
+    @Test
+    public void decodesFramesSplitAtEveryPoint() {
+        byte[] frame = FrameCodec.encode(FrameCodec.EVT_SAMPLE, 200, new byte[]{1, 2, 3, 4, 5, 6});
+        for (int split = 0; split <= frame.length; split++) {
+            Collector collector = new Collector();
+            FrameDecoder decoder = new FrameDecoder(collector);
+            decoder.feed(frame, 0, split);
+            decoder.feed(frame, split, frame.length - split);
+            assertEquals(1, collector.frames.size());
+            assertArrayEquals(frame, collector.frames.get(0));
+        }
+    }
+
+    @Test
+    public void decodesSeveralFramesInOneNotification() {
+        byte[] first = FrameCodec.encode(FrameCodec.EVT_ACK, 1, new byte[]{0});
+        byte[] second = FrameCodec.encode(FrameCodec.EVT_READY, 2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(first, 0, first.length);
+        out.write(second, 0, second.length);
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder(collector);
+        byte[] data = out.toByteArray();
+        decoder.feed(data, 0, data.length);
+        assertEquals(2, collector.frames.size());
+        assertArrayEquals(second, collector.frames.get(1));
+    }
+
+    @Test
+    public void resynchronizesAfterGarbage() {
+        byte[] frame = FrameCodec.encode(FrameCodec.EVT_LED_STATE, 9, new byte[]{1});
+        byte[] corrupt = frame.clone();
+        corrupt[4] ^= 0x40;
+        // Stray start bytes, an impossible length and a frame with a bad CRC.
+        byte[] garbage = {(byte) 0xA5, (byte) 0xA5, (byte) 0xFF, 0x12, 0x34};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(garbage, 0, garbage.length);
+        out.write(corrupt, 0, corrupt.length);
+        out.write(frame, 0, frame.length);
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder(collector);
+        byte[] data = out.toByteArray();
+        decoder.feed(data, 0, data.length);
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals(frame, collector.frames.get(0));
+        assertTrue(decoder.getErrorCount() >= 2);
+    }
+
+    // The start of the first frame was lost, the 0xA5 left in its payload claims the
+    // longest payload possible and would take the next frames with it.
+    @Test
+    public void strayStartByteDoesNotSwallowTheNextFrame() {
+        byte[] damaged = FrameCodec.encode(FrameCodec.EVT_SAMPLE, 1,
+                new byte[]{0x11, (byte) FrameCodec.SOF, FrameCodec.MAX_PAYLOAD, 0x22});
+        byte[] next = FrameCodec.encode(FrameCodec.EVT_LED_STATE, 2, new byte[]{1});
+        byte[] last = FrameCodec.encode(FrameCodec.EVT_ACK, 3, new byte[FrameCodec.MAX_PAYLOAD]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(damaged, 5, damaged.length - 5);
+        out.write(next, 0, next.length);
+        out.write(last, 0, last.length);
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder(collector);
+        byte[] data = out.toByteArray();
+        decoder.feed(data, 0, data.length);
+        assertEquals(2, collector.frames.size());
+        assertArrayEquals(next, collector.frames.get(0));
+        assertArrayEquals(last, collector.frames.get(1));
+        assertEquals(1, decoder.getErrorCount());
+    }
+
+    // A notification in the middle of a long frame never arrived.
+    @Test
+    public void lostFragmentDoesNotSwallowTheNextFrame() {
+        byte[] payload = new byte[20];
+        Arrays.fill(payload, (byte) 0x33);
+        byte[] damaged = FrameCodec.encode(FrameCodec.EVT_SAMPLE, 1, payload);
+        byte[] next = FrameCodec.encode(FrameCodec.EVT_ACK, 2, new byte[]{0});
+        byte[] last = FrameCodec.encode(FrameCodec.EVT_READY, 3);
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder(collector);
+        decoder.feed(damaged, 0, 8);
+        decoder.feed(damaged, 18, damaged.length - 18);
+        for (int i = 0; i < 3; i++) {
+            decoder.feed(next, 0, next.length);
+            decoder.feed(last, 0, last.length);
+        }
+        assertEquals(6, collector.frames.size());
+        for (int i = 0; i < 6; i += 2) {
+            assertArrayEquals(next, collector.frames.get(i));
+            assertArrayEquals(last, collector.frames.get(i + 1));
+        }
+    }
+
+    @Test
+    public void resetDropsAPartialFrame() {
+        byte[] frame = FrameCodec.encode(FrameCodec.EVT_LED_STATE, 1, new byte[]{1});
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder(collector);
+        decoder.feed(frame, 0, 3);
+        decoder.reset();
+        decoder.feed(frame, 0, frame.length);
+        assertEquals(1, collector.frames.size());
+    }
+
+    /**
+     * Valid frames separated by line noise and cut at random notification boundaries.
+     * Noise without a start byte is skipped, so every frame must come through intact.
+     */
+    @Test
+    public void fuzzNoiseAndRandomSplits() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            List<byte[]> sent = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                byte[] noise = new byte[random.nextInt(8)];
+                random.nextBytes(noise);
+                for (int j = 0; j < noise.length; j++) {
+                    if ((noise[j] & 0xFF) == FrameCodec.SOF) {
+                        noise[j] = 0;
+                    }
+                }
+                out.write(noise, 0, noise.length);
+                byte[] payload = new byte[random.nextInt(FrameCodec.MAX_PAYLOAD + 1)];
+                random.nextBytes(payload);
+                byte[] frame = FrameCodec.encode(random.nextInt(256), random.nextInt(256),
+                        payload);
+                sent.add(frame);
+                out.write(frame, 0, frame.length);
+            }
+            byte[] data = out.toByteArray();
+
+            Collector collector = new Collector();
+            FrameDecoder decoder = new FrameDecoder(collector);
+            for (int offset = 0; offset < data.length; ) {
+                int count = Math.min(data.length - offset, 1 + random.nextInt(20));
+                decoder.feed(data, offset, count);
+                offset += count;
+            }
+            assertEquals(sent.size(), collector.frames.size());
+            for (int i = 0; i < sent.size(); i++) {
+                assertArrayEquals(sent.get(i), collector.frames.get(i));
+            }
+        }
+    }
+
+    /** Random bytes followed by a valid frame: no exception, and the frame survives. */
+    @Test
+    public void fuzzRandomBytesThenRecover() {
+        Random random = new Random(7);
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder(collector);
+        byte[] data = new byte[4096];
+        byte[] frame = FrameCodec.encode(FrameCodec.EVT_ACK, 3, new byte[]{0});
+        for (int i = 0; i < 1000; i++) {
+            random.nextBytes(data);
+            decoder.feed(data, 0, data.length);
+            collector.frames.clear();
+            // Garbage can leave the decoder inside a bogus frame of up to MAX_FRAME bytes.
+            byte[] flush = new byte[FrameCodec.MAX_FRAME];
+            decoder.feed(flush, 0, flush.length);
+            decoder.feed(frame, 0, frame.length);
+            assertArrayEquals(frame, collector.frames.get(collector.frames.size() - 1));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.lab_bt;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GattEventBusTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int EVENTS = 1000000;
+
+    private static class CountingListener implements GattListener {
+        final List<String> events = new ArrayList<>();
+        long bytes;
+
+        @Override
+        public void onConnectionStateChanged(String address, int state) {
+            events.add("state:" + state);
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+            events.add("discovered");
+        }
+
+        @Override
+        public void onDataAvailable(String address, byte[] data, int length) {
+            bytes += length;
+        }
+
+        @Override
+        public void onLedStateChanged(String address, int led, boolean pending) {
+            events.add("led:" + led + ":" + pending);
+        }
+
+        @Override
+        public void onAuthorizationChanged(String address, boolean authorized) {
+            events.add("authorized:" + authorized);
+        }
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    @Test
+    public void directListenersGetEveryEventInOrder() {
+        GattEventBus bus = new GattEventBus();
+        CountingListener listener = new CountingListener();
+        bus.register(listener, null);
+        bus.register(listener, null);
+
+        bus.postConnectionState(ADDRESS, 2);
+        bus.postServicesDiscovered(ADDRESS);
+        bus.postData(ADDRESS, new byte[]{1, 2, 3}, 3);
+        bus.postLedState(ADDRESS, DeviceStateCache.LED_ON, true);
+        bus.postAuthorization(ADDRESS, true);
+
+        assertEquals("state:2", listener.events.get(0));
+        assertEquals("discovered", listener.events.get(1));
+        assertEquals("led:" + DeviceStateCache.LED_ON + ":true", listener.events.get(2));
+        assertEquals("authorized:true", listener.events.get(3));
+        assertEquals(4, listener.events.size());
+        assertEquals(3, listener.bytes);
+    }
+
+    @Test
+    public void unregisteredListenerHearsNothing() {
+        GattEventBus bus = new GattEventBus();
+        CountingListener kept = new CountingListener();
+        CountingListener removed = new CountingListener();
+        bus.register(kept, null);
+        bus.register(removed, null);
+        bus.unregister(removed);
+
+        bus.postData(ADDRESS, new byte[4], 4);
+        assertEquals(4, kept.bytes);
+        assertEquals(0, removed.bytes);
+    }
+
+    @Test
+    public void dataPathDoesNotAllocate() {
+        GattEventBus bus = new GattEventBus();
+        CountingListener listener = new CountingListener();
+        bus.register(listener, null);
+        byte[] data = new byte[20];
+        // Warm up so that the loop under test runs compiled.
+        for (int i = 0; i < EVENTS; i++) {
+            bus.postData(ADDRESS, data, data.length);
+        }
+
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < EVENTS; i++) {
+            bus.postData(ADDRESS, data, data.length);
+        }
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        assertEquals(2L * EVENTS * data.length, listener.bytes);
+        if (allocatedBefore >= 0) {
+            // A few bytes of slack for the measurement itself.
+            assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+        }
+    }
+}
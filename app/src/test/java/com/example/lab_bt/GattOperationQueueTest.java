@@ -0,0 +1,298 @@
+package com.example.lab_bt;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GattOperationQueueTest {
+    private static final UUID CHARACTERISTIC =
+            UUID.fromString(GattAttribute.HM10_CHARACTERISTIC);
+
+    private FakeLink link;
+    private GattOperationQueue queue;
+    private final List<String> completions = new ArrayList<>();
+
+    /** Records what was issued; answers only when told to, or right away if synchronous. */
+    private static class FakeLink implements Link {
+        final List<byte[]> writes = new ArrayList<>();
+        final List<Integer> tokens = new ArrayList<>();
+        GattOperationQueue answerFrom;
+        boolean reject;
+
+        int lastToken() {
+            return tokens.get(tokens.size() - 1);
+        }
+
+        @Override
+        public String getAddress() {
+            return "00:11:22:33:44:55";
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return true;
+        }
+
+        @Override
+        public Collection<UUID> getCharacteristics() {
+            return Collections.singletonList(CHARACTERISTIC);
+        }
+
+        @Override
+        public UUID getServiceUuid(UUID charUuid) {
+            return null;
+        }
+
+        @Override
+        public int getProperties(UUID charUuid) {
+            return 0;
+        }
+
+        @Override
+        public boolean read(UUID charUuid, int token) {
+            tokens.add(token);
+            return !reject;
+        }
+
+        @Override
+        public boolean write(UUID charUuid, byte[] value, int writeType, int token) {
+            if (reject) {
+                return false;
+            }
+            writes.add(value);
+            tokens.add(token);
+            if (answerFrom != null) {
+                answerFrom.onComplete(GattOperation.Type.WRITE, BluetoothGatt.GATT_SUCCESS,
+                        token);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean setNotification(UUID charUuid, boolean enable, int token) {
+            tokens.add(token);
+            return !reject;
+        }
+
+        @Override
+        public int getMaxMtu() {
+            return ThroughputProfile.DEFAULT_MTU;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu, int token) {
+            tokens.add(token);
+            return !reject;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return true;
+        }
+
+        @Override
+        public boolean refresh() {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        link = new FakeLink();
+        // Posted tasks never run, timeouts are fired by hand.
+        queue = new GattOperationQueue(new HandlerScheduler(new Handler()));
+        queue.attach(link);
+    }
+
+    private GattOperation.Callback record(final String name) {
+        return new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation, int status) {
+                completions.add(name + ":" + status);
+            }
+        };
+    }
+
+    private GattOperation write(String name, byte[] value) {
+        return GattOperation.write(CHARACTERISTIC, value, record(name));
+    }
+
+    private void answerWrite(int status) {
+        queue.onComplete(GattOperation.Type.WRITE, status, link.lastToken());
+    }
+
+    @Test
+    public void issuesOneAtATimeInOrder() {
+        queue.submit(write("a", new byte[]{1}));
+        queue.submit(write("b", new byte[]{2}));
+        queue.submit(write("c", new byte[]{3}));
+        assertEquals(1, link.writes.size());
+        assertEquals(3, queue.size());
+
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+
+        assertEquals(3, link.writes.size());
+        assertArrayEquals(new byte[]{3}, link.writes.get(2));
+        assertEquals(Arrays.asList("a:0", "b:0", "c:0"), completions);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void lateAnswerAfterTimeoutDoesNotCompleteTheRetry() {
+        queue.submit(write("a", new byte[]{1}));
+        queue.submit(write("b", new byte[]{2}));
+        int first = link.lastToken();
+
+        queue.timeout();
+        assertEquals(2, link.writes.size());
+
+        // The first attempt answers after all, with a failure.
+        queue.onComplete(GattOperation.Type.WRITE, BluetoothGatt.GATT_FAILURE, first);
+        assertTrue(completions.isEmpty());
+        assertEquals(2, link.writes.size());
+
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+        assertEquals(Collections.singletonList("a:0"), completions);
+        // b went out as the third write, not as a retry of a.
+        assertArrayEquals(new byte[]{2}, link.writes.get(2));
+    }
+
+    @Test
+    public void answerOfAnotherTypeIsIgnored() {
+        queue.submit(write("a", new byte[]{1}));
+        queue.onComplete(GattOperation.Type.READ, BluetoothGatt.GATT_SUCCESS,
+                link.lastToken());
+        assertTrue(completions.isEmpty());
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+        assertEquals(Collections.singletonList("a:0"), completions);
+    }
+
+    @Test
+    public void timesOutOnceRetriesAreUsedUp() {
+        queue.submit(write("a", new byte[]{1}).setRetries(1));
+        queue.timeout();
+        queue.timeout();
+        assertEquals(2, link.writes.size());
+        assertEquals(Collections.singletonList("a:" + GattOperation.STATUS_TIMEOUT),
+                completions);
+        // Nothing is awaited any more.
+        queue.timeout();
+        assertEquals(1, completions.size());
+    }
+
+    @Test
+    public void failedWriteIsRetried() {
+        queue.submit(write("a", new byte[]{1}));
+        answerWrite(BluetoothGatt.GATT_FAILURE);
+        assertEquals(2, link.writes.size());
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+        assertEquals(Collections.singletonList("a:0"), completions);
+    }
+
+    @Test
+    public void rejectedOperationFailsWithoutBlockingTheQueue() {
+        link.reject = true;
+        queue.submit(write("a", new byte[]{1}).setRetries(0));
+        link.reject = false;
+        queue.submit(write("b", new byte[]{2}));
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+        assertEquals(Arrays.asList("a:" + GattOperation.STATUS_REJECTED, "b:0"), completions);
+    }
+
+    @Test
+    public void chunkedWriteCompletesAfterTheLastChunk() {
+        queue.submit(write("a", new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}).setChunkSize(4));
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+        assertTrue(completions.isEmpty());
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+        assertEquals(3, link.writes.size());
+        assertArrayEquals(new byte[]{9, 10}, link.writes.get(2));
+        assertEquals(Collections.singletonList("a:0"), completions);
+    }
+
+    @Test
+    public void linkAnsweringSynchronouslyDrainsTheQueue() {
+        link.answerFrom = queue;
+        for (int i = 0; i < 100; i++) {
+            queue.submit(write(Integer.toString(i), new byte[]{(byte) i}));
+        }
+        assertEquals(100, link.writes.size());
+        assertEquals(100, completions.size());
+        assertEquals("99:0", completions.get(99));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void coalescingWriteReplacesTheQueuedOne() {
+        queue.submit(write("a", new byte[]{1}));
+        queue.submit(write("b", new byte[]{2}).setCoalescing(true));
+        queue.submit(write("c", new byte[]{3}).setCoalescing(true));
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+        assertEquals(Arrays.asList("b:" + GattOperation.STATUS_SUPERSEDED, "a:0", "c:0"),
+                completions);
+        assertEquals(2, link.writes.size());
+    }
+
+    @Test
+    public void detachCancelsEverything() {
+        queue.submit(write("a", new byte[]{1}));
+        queue.submit(write("b", new byte[]{2}));
+        int token = link.lastToken();
+        queue.detach();
+        queue.onComplete(GattOperation.Type.WRITE, BluetoothGatt.GATT_SUCCESS, token);
+        assertEquals(Arrays.asList("a:" + GattOperation.STATUS_CANCELLED,
+                "b:" + GattOperation.STATUS_CANCELLED), completions);
+    }
+
+    @Test
+    public void notificationSetupGoesAheadOfHeldWrites() {
+        queue.detach();
+        queue.submit(write("a", new byte[]{1}));
+        queue.submitFirst(GattOperation.setNotification(CHARACTERISTIC, true, record("cccd")));
+        queue.attach(link);
+        // The descriptor write is in flight, the held write waits for it.
+        assertTrue(link.writes.isEmpty());
+
+        queue.onComplete(GattOperation.Type.SET_NOTIFICATION, BluetoothGatt.GATT_SUCCESS,
+                link.lastToken());
+        assertEquals(1, link.writes.size());
+        answerWrite(BluetoothGatt.GATT_SUCCESS);
+        assertEquals(Arrays.asList("cccd:0", "a:0"), completions);
+    }
+
+    @Test
+    public void sustainsBackToBackWrites() {
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            queue.submit(GattOperation.write(CHARACTERISTIC, new byte[]{(byte) i}, null));
+            answerWrite(BluetoothGatt.GATT_SUCCESS);
+        }
+        assertEquals(count, link.writes.size());
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.lab_bt;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class HandlerLinkCallbackTest {
+    private static final String BOARD = "00:11:22:33:44:55";
+    private static final UUID CHARACTERISTIC = UUID.fromString(GattAttribute.HM10_CHARACTERISTIC);
+    private static final int SAMPLES = 200;
+
+    private final ExecutorScheduler scheduler = new ExecutorScheduler();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    static class RecordingCallback implements Link.Callback {
+        final List<String> events = new ArrayList<>();
+        // The thread each event arrived on.
+        final List<Thread> threads = new ArrayList<>();
+
+        private void record(String event) {
+            events.add(event);
+            threads.add(Thread.currentThread());
+        }
+
+        @Override
+        public void onConnected(Link link) {
+            record("connected");
+        }
+
+        @Override
+        public void onDisconnected(Link link, int status) {
+            record("disconnected " + status);
+        }
+
+        @Override
+        public void onServicesDiscovered(Link link, int status) {
+            record("discovered " + status);
+        }
+
+        @Override
+        public void onCharacteristicRead(Link link, UUID charUuid, byte[] value, int status,
+                                         int token) {
+            record("read " + charUuid + " " + value.length + " " + status + " " + token);
+        }
+
+        @Override
+        public void onCharacteristicWrite(Link link, UUID charUuid, int status, int token) {
+            record("write " + charUuid + " " + status + " " + token);
+        }
+
+        @Override
+        public void onCharacteristicChanged(Link link, UUID charUuid, byte[] value) {
+            record("changed " + charUuid + " " + value.length);
+        }
+
+        @Override
+        public void onNotificationChanged(Link link, UUID charUuid, int status, int token) {
+            record("notification " + charUuid + " " + status + " " + token);
+        }
+
+        @Override
+        public void onMtuChanged(Link link, int mtu, int status, int token) {
+            record("mtu " + mtu + " " + status + " " + token);
+        }
+    }
+
+    @Test
+    public void everyCallbackArrivesIntactAndInOrder() throws InterruptedException {
+        RecordingCallback target = new RecordingCallback();
+        HandlerLinkCallback callback = new HandlerLinkCallback(scheduler, target);
+
+        // Twice over, so the second round runs on recycled holders.
+        for (int round = 0; round < 2; round++) {
+            callback.onConnected(null);
+            callback.onServicesDiscovered(null, Link.STATUS_SUCCESS);
+            callback.onCharacteristicRead(null, CHARACTERISTIC, new byte[3], Link.STATUS_FAILURE,
+                    1);
+            callback.onCharacteristicWrite(null, CHARACTERISTIC, Link.STATUS_SUCCESS, 2);
+            callback.onCharacteristicChanged(null, CHARACTERISTIC, new byte[5]);
+            callback.onNotificationChanged(null, CHARACTERISTIC, Link.STATUS_SUCCESS, 3);
+            callback.onMtuChanged(null, 185, Link.STATUS_SUCCESS, 4);
+            callback.onDisconnected(null, Link.STATUS_FAILURE);
+        }
+        scheduler.sync();
+
+        String[] expected = {
+                "connected",
+                "discovered " + Link.STATUS_SUCCESS,
+                "read " + CHARACTERISTIC + " 3 " + Link.STATUS_FAILURE + " 1",
+                "write " + CHARACTERISTIC + " " + Link.STATUS_SUCCESS + " 2",
+                "changed " + CHARACTERISTIC + " 5",
+                "notification " + CHARACTERISTIC + " " + Link.STATUS_SUCCESS + " 3",
+                "mtu 185 " + Link.STATUS_SUCCESS + " 4",
+                "disconnected " + Link.STATUS_FAILURE
+        };
+        assertEquals(expected.length * 2, target.events.size());
+        for (int i = 0; i < target.events.size(); i++) {
+            assertEquals(expected[i % expected.length], target.events.get(i));
+            assertSame(scheduler.getThread(), target.threads.get(i));
+        }
+    }
+
+    /**
+     * A board streaming samples over the loopback transport, as the service sees it:
+     * the transport calls from the peripheral's thread, the protocol runs on the
+     * scheduler's and now and then falls behind. Every sample must still arrive there,
+     * in the order the board sent it.
+     */
+    @Test
+    public void handsTransportCallbacksToTheSchedulerThreadInOrder() throws InterruptedException {
+        final List<Integer> sequences = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(SAMPLES);
+        final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(int command, int sequence, byte[] payload, int length) {
+                if (command == FrameCodec.EVT_SAMPLE) {
+                    sequences.add(sequence);
+                    done.countDown();
+                }
+            }
+        });
+        RecordingCallback protocol = new RecordingCallback() {
+            @Override
+            public void onConnected(Link link) {
+                super.onConnected(link);
+                link.discoverServices();
+            }
+
+            @Override
+            public void onServicesDiscovered(Link link, int status) {
+                super.onServicesDiscovered(link, status);
+                link.setNotification(CHARACTERISTIC, true, 0);
+            }
+
+            @Override
+            public void onNotificationChanged(Link link, UUID charUuid, int status, int token) {
+                super.onNotificationChanged(link, charUuid, status, token);
+                link.write(CHARACTERISTIC, FrameCodec.encode(FrameCodec.CMD_STREAM_START, 0,
+                        new byte[]{1, 0}), 0, 0);
+            }
+
+            @Override
+            public void onCharacteristicChanged(Link link, UUID charUuid, byte[] value) {
+                super.onCharacteristicChanged(link, charUuid, value);
+                decoder.feed(value, 0, value.length);
+                if (events.size() % 16 == 0) {
+                    // Busy for a while, the transport keeps calling meanwhile.
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        final List<Thread> callers = new ArrayList<>();
+        HandlerLinkCallback callback = new HandlerLinkCallback(scheduler, protocol) {
+            @Override
+            public void onCharacteristicChanged(Link link, UUID charUuid, byte[] value) {
+                synchronized (callers) {
+                    callers.add(Thread.currentThread());
+                }
+                super.onCharacteristicChanged(link, charUuid, value);
+            }
+        };
+
+        LoopbackTransport transport = new LoopbackTransport();
+        SimulatedPeripheral peripheral = new SimulatedPeripheral();
+        transport.addPeripheral(BOARD, peripheral);
+        try {
+            Link link = transport.connect(BOARD, false, callback);
+            SimulatedFleet.await(done);
+            link.close();
+            scheduler.sync();
+        } finally {
+            peripheral.close();
+        }
+
+        for (Thread thread : protocol.threads) {
+            assertSame(scheduler.getThread(), thread);
+        }
+        synchronized (callers) {
+            for (Thread thread : callers) {
+                assertNotSame(scheduler.getThread(), thread);
+            }
+        }
+        // The board numbers the frames it sends on its own, samples are the only ones.
+        for (int i = 0; i < SAMPLES; i++) {
+            assertEquals(i & 0xFF, (int) sequences.get(i));
+        }
+    }
+}
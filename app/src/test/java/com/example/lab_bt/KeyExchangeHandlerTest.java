@@ -0,0 +1,251 @@
+package com.example.lab_bt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyExchangeHandlerTest {
+    private final KeyExchangeHandler protocol = new KeyExchangeHandler();
+
+    // TYPE | LENGTH | PAYLOAD | CRC32, as the handler frames it.
+    private static byte[] frame(int type, int... payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        int[] header = {type, payload.length >>> 8, payload.length & 0xFF};
+        for (int b : header) {
+            out.write(b);
+            crc.update(b);
+        }
+        for (int b : payload) {
+            out.write(b);
+            crc.update(b);
+        }
+        long value = crc.getValue();
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static ByteArrayInputStream input(byte[]... frames) {
+        return new ByteArrayInputStream(concat(frames));
+    }
+
+    private static byte[] hello() {
+        return frame(KeyExchangeHandler.MSG_HELLO, KeyExchangeHandler.MIN_VERSION,
+                KeyExchangeHandler.VERSION);
+    }
+
+    private static byte[] helloAck() {
+        return frame(KeyExchangeHandler.MSG_HELLO_ACK, KeyExchangeHandler.VERSION);
+    }
+
+    private static List<KeyExchangeHandler.Key> keys(int count) {
+        List<KeyExchangeHandler.Key> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] token = new byte[i % (KeyExchangeHandler.MAX_TOKEN + 1)];
+            for (int j = 0; j < token.length; j++) {
+                token[j] = (byte) (i + j);
+            }
+            keys.add(new KeyExchangeHandler.Key(0x0000AABB0000L + i, token, i * 1000L));
+        }
+        return keys;
+    }
+
+    private List<KeyExchangeHandler.Key> serve(List<KeyExchangeHandler.Key> sent)
+            throws Exception {
+        final PipedInputStream serverIn = new PipedInputStream();
+        final PipedOutputStream clientOut = new PipedOutputStream(serverIn);
+        final PipedInputStream clientIn = new PipedInputStream();
+        final PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+        ExecutorService server = Executors.newSingleThreadExecutor();
+        Future<List<KeyExchangeHandler.Key>> received = server.submit(
+                new Callable<List<KeyExchangeHandler.Key>>() {
+                    @Override
+                    public List<KeyExchangeHandler.Key> call() throws IOException {
+                        List<KeyExchangeHandler.Key> keys = protocol.receive(serverIn, serverOut);
+                        protocol.acknowledge(serverOut, keys.size());
+                        return keys;
+                    }
+                });
+        try {
+            assertEquals(sent.size(), protocol.send(clientIn, clientOut, sent));
+            return received.get(10, TimeUnit.SECONDS);
+        } finally {
+            server.shutdownNow();
+        }
+    }
+
+    private static void assertSameKeys(List<KeyExchangeHandler.Key> expected,
+                                       List<KeyExchangeHandler.Key> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).address, actual.get(i).address);
+            assertEquals(expected.get(i).expiry, actual.get(i).expiry);
+            assertArrayEquals(expected.get(i).token, actual.get(i).token);
+        }
+    }
+
+    @Test
+    public void emptySetStillGetsAnAck() throws Exception {
+        assertTrue(serve(Collections.<KeyExchangeHandler.Key>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void largeSetIsSplitAcrossMessages() throws Exception {
+        // Far more than fits in one payload, with tokens of every allowed length.
+        List<KeyExchangeHandler.Key> sent = keys(2000);
+        assertSameKeys(sent, serve(sent));
+    }
+
+    @Test
+    public void clientRejectsOverlongTokens() throws Exception {
+        List<KeyExchangeHandler.Key> keys = Collections.singletonList(new KeyExchangeHandler.Key(
+                1, new byte[KeyExchangeHandler.MAX_TOKEN + 1], 0));
+        try {
+            protocol.send(input(helloAck()), new ByteArrayOutputStream(), keys);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void corruptedCrcIsRejected() throws Exception {
+        byte[] hello = hello();
+        hello[hello.length - 1] ^= 1;
+        try {
+            protocol.receive(input(hello), new ByteArrayOutputStream());
+            fail();
+        } catch (ProtocolException e) {
+            assertEquals("CRC mismatch.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void corruptedPayloadIsRejected() throws Exception {
+        byte[] ack = helloAck();
+        ack[3] ^= 0x40;
+        try {
+            protocol.send(input(ack), new ByteArrayOutputStream(), keys(1));
+            fail();
+        } catch (ProtocolException e) {
+            assertEquals("CRC mismatch.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void oversizePayloadIsRejectedBeforeReadingIt() throws Exception {
+        int length = KeyExchangeHandler.MAX_PAYLOAD + 1;
+        // Only the header arrives, the handler must not wait for the rest.
+        byte[] header = {KeyExchangeHandler.MSG_HELLO, (byte) (length >>> 8), (byte) length};
+        try {
+            protocol.receive(new ByteArrayInputStream(header), new ByteArrayOutputStream());
+            fail();
+        } catch (ProtocolException e) {
+            assertEquals("Message of " + length + " bytes.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void truncatedStreamIsAnIoError() throws Exception {
+        byte[] hello = hello();
+        try {
+            protocol.receive(new ByteArrayInputStream(hello, 0, hello.length - 2),
+                    new ByteArrayOutputStream());
+            fail();
+        } catch (ProtocolException e) {
+            fail("Truncation is not a protocol error: " + e);
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void serverAnswersAnUnknownVersionWithError() throws Exception {
+        ByteArrayOutputStream serverOut = new ByteArrayOutputStream();
+        try {
+            protocol.receive(input(frame(KeyExchangeHandler.MSG_HELLO,
+                    KeyExchangeHandler.VERSION + 1, KeyExchangeHandler.VERSION + 2)), serverOut);
+            fail();
+        } catch (ProtocolException expected) {
+        }
+        assertArrayEquals(frame(KeyExchangeHandler.MSG_ERROR, KeyExchangeHandler.ERROR_VERSION),
+                serverOut.toByteArray());
+
+        // Fed back to a client the same bytes come out as a refusal.
+        try {
+            protocol.send(new ByteArrayInputStream(serverOut.toByteArray()),
+                    new ByteArrayOutputStream(), keys(1));
+            fail();
+        } catch (KeyExchangeHandler.RefusedException e) {
+            assertEquals(KeyExchangeHandler.ERROR_VERSION, e.getError());
+        }
+    }
+
+    @Test
+    public void serverAnswersMalformedKeysWithError() throws Exception {
+        // Claims two keys but carries one, with an empty token.
+        int[] payload = {0, 2, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        ByteArrayOutputStream serverOut = new ByteArrayOutputStream();
+        try {
+            protocol.receive(input(hello(), frame(KeyExchangeHandler.MSG_KEYS, payload),
+                    frame(KeyExchangeHandler.MSG_DONE)), serverOut);
+            fail();
+        } catch (ProtocolException expected) {
+        }
+        assertArrayEquals(concat(helloAck(),
+                frame(KeyExchangeHandler.MSG_ERROR, KeyExchangeHandler.ERROR_MALFORMED)),
+                serverOut.toByteArray());
+    }
+
+    @Test
+    public void serverRejectsMessagesOutOfOrder() throws Exception {
+        ByteArrayOutputStream serverOut = new ByteArrayOutputStream();
+        try {
+            protocol.receive(input(frame(KeyExchangeHandler.MSG_DONE)), serverOut);
+            fail();
+        } catch (ProtocolException e) {
+            assertEquals("Expected HELLO.", e.getMessage());
+        }
+        assertArrayEquals(frame(KeyExchangeHandler.MSG_ERROR, KeyExchangeHandler.ERROR_MALFORMED),
+                serverOut.toByteArray());
+    }
+
+    @Test
+    public void clientRejectsAnUnknownServerVersion() throws Exception {
+        try {
+            protocol.send(input(frame(KeyExchangeHandler.MSG_HELLO_ACK,
+                    KeyExchangeHandler.VERSION + 1)), new ByteArrayOutputStream(), keys(1));
+            fail();
+        } catch (KeyExchangeHandler.RefusedException e) {
+            fail("Not a refusal: " + e);
+        } catch (ProtocolException expected) {
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.lab_bt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeyExchangeServerTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final LoopbackTransport transport = new LoopbackTransport();
+    private final KeyExchangeHandler protocol = new KeyExchangeHandler();
+    private AuthorizationStore store;
+    private KeyExchangeServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new AuthorizationStore(folder.newFile("authorizations.bin"));
+        server = new KeyExchangeServer(transport, store);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    // The server starts listening on its own thread, retry until it does.
+    private StreamTransport.Stream connect() throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            StreamTransport.Stream stream = transport.open(LoopbackTransport.LOCAL_ADDRESS,
+                    App.MY_UUID_SECURE);
+            try {
+                stream.connect();
+                return stream;
+            } catch (IOException e) {
+                stream.close();
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private int handOff(long address) throws IOException, InterruptedException {
+        StreamTransport.Stream stream = connect();
+        try {
+            List<KeyExchangeHandler.Key> keys = Collections.singletonList(
+                    new KeyExchangeHandler.Key(address, new byte[]{(byte) address}, 0));
+            return protocol.send(stream.getInputStream(), stream.getOutputStream(), keys);
+        } finally {
+            stream.close();
+        }
+    }
+
+    // The client has its ACK a moment before the server counts the hand-off.
+    private void awaitHandshakes(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && server.getHandshakeCount() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, server.getHandshakeCount());
+    }
+
+    @Test
+    public void storesTheKeysOfAHandOff() throws Exception {
+        assertEquals(1, handOff(0x001122334455L));
+        assertTrue(store.isAuthorized(0x001122334455L, 0));
+        assertArrayEquals(new byte[]{0x55}, store.getToken(0x001122334455L));
+        awaitHandshakes(1);
+    }
+
+    @Test
+    public void servesClientsConcurrently() throws Exception {
+        final int clients = 8;
+        final int perClient = 50;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            results.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int stored = 0;
+                    for (int i = 0; i < perClient; i++) {
+                        stored += handOff((long) client << 16 | i);
+                    }
+                    return stored;
+                }
+            }));
+        }
+        int stored = 0;
+        for (Future<Integer> result : results) {
+            stored += result.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertEquals(clients * perClient, stored);
+        assertEquals(clients * perClient, store.size());
+        awaitHandshakes(clients * perClient);
+    }
+
+    // The watchdog is gone once stopped, a silent client must not outlive stop().
+    @Test(timeout = KeyExchangeServer.CONNECTION_TIMEOUT / 2)
+    public void stopDropsClientsThatNeverSpeak() throws Exception {
+        List<StreamTransport.Stream> silent = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            silent.add(connect());
+        }
+        // Let the workers pick them up and block on their first read.
+        Thread.sleep(200);
+
+        server.stop();
+        for (StreamTransport.Stream stream : silent) {
+            InputStream in = stream.getInputStream();
+            assertEquals(-1, in.read());
+            stream.close();
+        }
+    }
+}
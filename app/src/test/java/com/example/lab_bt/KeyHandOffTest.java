@@ -0,0 +1,128 @@
+package com.example.lab_bt;
+
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeyHandOffTest {
+    private static final KeyHandOff.Callback IGNORED = new KeyHandOff.Callback() {
+        @Override
+        public void onComplete(KeyHandOff handOff, int result) {
+        }
+    };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final LoopbackTransport transport = new LoopbackTransport();
+    private final List<KeyExchangeHandler.Key> keys = new ArrayList<>();
+    private StreamTransport.Server silent;
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < 10; i++) {
+            keys.add(new KeyExchangeHandler.Key(0x001122334400L + i, new byte[]{(byte) i}, 0));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (silent != null) {
+            silent.close();
+        }
+    }
+
+    // Posted tasks never run, the timeout is fired by hand and the result polled.
+    private KeyHandOff start() {
+        KeyHandOff handOff = new KeyHandOff(transport, LoopbackTransport.LOCAL_ADDRESS, keys,
+                new Handler(), IGNORED);
+        handOff.start();
+        return handOff;
+    }
+
+    private static int await(KeyHandOff handOff) throws InterruptedException {
+        for (int i = 0; i < 500 && handOff.getResult() == -1; i++) {
+            Thread.sleep(10);
+        }
+        return handOff.getResult();
+    }
+
+    @Test
+    public void handsEveryKeyToTheServer() throws Exception {
+        AuthorizationStore store = new AuthorizationStore(folder.newFile("authorizations.bin"));
+        KeyExchangeServer server = new KeyExchangeServer(transport, store);
+        server.start();
+        try {
+            KeyHandOff handOff;
+            // The server starts listening on its own thread, retry until it does.
+            for (int attempt = 0; ; attempt++) {
+                handOff = start();
+                if (await(handOff) != KeyHandOff.RESULT_FAILED || attempt == 100) {
+                    break;
+                }
+                Thread.sleep(10);
+            }
+            assertEquals(KeyHandOff.RESULT_OK, handOff.getResult());
+            assertEquals(keys.size(), handOff.getStoredCount());
+            assertEquals(keys.size(), store.size());
+            assertTrue(store.isAuthorized(0x001122334409L, 0));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void failsWithoutAServer() throws Exception {
+        assertEquals(KeyHandOff.RESULT_FAILED, await(start()));
+    }
+
+    @Test(timeout = 5000)
+    public void cancelUnblocksASilentServer() throws Exception {
+        // A server that takes the connection and then never says a word.
+        silent = transport.listen("silent", App.MY_UUID_SECURE);
+        KeyHandOff handOff = start();
+        StreamTransport.Stream stream = silent.accept();
+        handOff.cancel();
+        assertEquals(KeyHandOff.RESULT_CANCELLED, await(handOff));
+        // The HELLO may or may not have made it across, the stream ends either way.
+        InputStream in = stream.getInputStream();
+        while (in.read() != -1) {
+        }
+        stream.close();
+    }
+
+    @Test(timeout = 5000)
+    public void timeoutUnblocksASilentServer() throws Exception {
+        // A server that takes the connection and then never says a word.
+        silent = transport.listen("silent", App.MY_UUID_SECURE);
+        KeyHandOff handOff = start();
+        StreamTransport.Stream stream = silent.accept();
+        handOff.timeout();
+        assertEquals(KeyHandOff.RESULT_TIMEOUT, await(handOff));
+        // Whatever comes after the hand-off ended does not change the outcome.
+        handOff.cancel();
+        assertEquals(KeyHandOff.RESULT_TIMEOUT, handOff.getResult());
+        stream.close();
+    }
+
+    @Test
+    public void cancelBeforeConnectingNeverOpensTheStream() throws Exception {
+        KeyHandOff handOff = new KeyHandOff(transport, LoopbackTransport.LOCAL_ADDRESS, keys,
+                new Handler(), IGNORED);
+        handOff.cancel();
+        handOff.start();
+        assertEquals(KeyHandOff.RESULT_CANCELLED, await(handOff));
+    }
+}
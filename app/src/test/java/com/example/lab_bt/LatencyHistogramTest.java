@@ -0,0 +1,124 @@
+package com.example.lab_bt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    private static final int LAST_BUCKET = LatencyHistogram.bucketOf(Long.MAX_VALUE);
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    private static void assertWithinBucket(long value) {
+        int bucket = LatencyHistogram.bucketOf(value);
+        assertTrue(value + " below bucket " + bucket,
+                LatencyHistogram.lowerBound(bucket) <= value);
+        if (bucket < LAST_BUCKET) {
+            long upper = LatencyHistogram.lowerBound(bucket + 1);
+            assertTrue(value + " above bucket " + bucket, value < upper);
+            // A bucket is at most a sixteenth of the values it holds wide.
+            assertTrue(value + " in a bucket too wide",
+                    (upper - LatencyHistogram.lowerBound(bucket)) * 16 <= Math.max(16, value));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        assertEquals(0, LatencyHistogram.lowerBound(0));
+        for (int bucket = 0; bucket < LAST_BUCKET; bucket++) {
+            long lower = LatencyHistogram.lowerBound(bucket);
+            long next = LatencyHistogram.lowerBound(bucket + 1);
+            assertTrue(next > lower);
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower));
+            assertEquals(bucket, LatencyHistogram.bucketOf(next - 1));
+        }
+    }
+
+    @Test
+    public void everyValueFallsBetweenItsBucketBounds() {
+        for (long value = 0; value < 100000; value++) {
+            assertWithinBucket(value);
+        }
+        Random random = new Random(21);
+        for (int i = 0; i < 100000; i++) {
+            assertWithinBucket(random.nextLong() >>> (1 + random.nextInt(40)));
+        }
+        for (int bit = 0; bit < 63; bit++) {
+            assertWithinBucket((1L << bit) - 1);
+            assertWithinBucket(1L << bit);
+        }
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        assertEquals(0, LatencyHistogram.bucketOf(-5));
+        assertEquals(LAST_BUCKET, LatencyHistogram.bucketOf(1L << 50));
+        assertTrue(LatencyHistogram.lowerBound(LAST_BUCKET) <= 1L << 41);
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void percentilesStayWithinABucket() {
+        for (int value = 1; value <= 10000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(5000, histogram.getMean());
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(10000, histogram.getPercentile(100));
+        for (int percentile = 1; percentile < 100; percentile++) {
+            long expected = percentile * 100;
+            long reported = histogram.getPercentile(percentile);
+            // The top of the bucket holding the value, never below it.
+            assertTrue(percentile + "th was " + reported, reported >= expected);
+            assertTrue(percentile + "th was " + reported, reported < expected * 17 / 16 + 1);
+        }
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void percentileIsCappedAtTheMaximum() {
+        histogram.record(1000);
+        assertEquals(1000, histogram.getPercentile(99.9));
+        assertEquals(1000, histogram.getMax());
+    }
+
+    @Test
+    public void recordsFromManyThreads() throws InterruptedException {
+        final int threads = 4;
+        final int perThread = 250000;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        histogram.record(offset + i % 1000);
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads * perThread, histogram.getCount());
+        assertEquals(threads - 1 + 999, histogram.getMax());
+    }
+}
@@ -0,0 +1,364 @@
+package com.example.lab_bt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Both transports in memory. Links reach {@link SimulatedPeripheral}s registered
+ * under an address, streams reach servers listening in the same transport. Enough to
+ * run the service and the key exchange against any number of virtual devices.
+ */
+public class LoopbackTransport implements LinkTransport, StreamTransport {
+    /** What servers see as the address of loopback clients. */
+    public static final String LOCAL_ADDRESS = "00:00:00:00:00:00";
+
+    private static final UUID HM10_SERVICE = UUID.fromString(GattAttribute.HM10_SERVICE);
+    private static final UUID HM10_CHARACTERISTIC =
+            UUID.fromString(GattAttribute.HM10_CHARACTERISTIC);
+    // As reported by a real HM-10.
+    private static final int HM10_PROPERTIES = Link.PROPERTY_READ
+            | Link.PROPERTY_WRITE_NO_RESPONSE | Link.PROPERTY_WRITE | Link.PROPERTY_NOTIFY;
+
+    private final Map<String, SimulatedPeripheral> peripherals = new HashMap<>();
+    private final Map<UUID, LoopbackServer> servers = new HashMap<>();
+
+    public synchronized void addPeripheral(String address, SimulatedPeripheral peripheral) {
+        peripherals.put(address, peripheral);
+    }
+
+    public synchronized SimulatedPeripheral removePeripheral(String address) {
+        return peripherals.remove(address);
+    }
+
+    @Override
+    public Link connect(String address, boolean autoConnect, Link.Callback callback) {
+        SimulatedPeripheral peripheral;
+        synchronized (this) {
+            peripheral = peripherals.get(address);
+        }
+        if (peripheral == null) {
+            return null;
+        }
+        LoopbackLink link = new LoopbackLink(address, peripheral, callback);
+        peripheral.connect(link);
+        return link;
+    }
+
+    @Override
+    public Stream open(String address, UUID uuid) {
+        return new LoopbackStream(address, uuid);
+    }
+
+    @Override
+    public synchronized Server listen(String name, UUID uuid) throws IOException {
+        if (servers.containsKey(uuid)) {
+            throw new IOException("Already listening on " + uuid + ".");
+        }
+        LoopbackServer server = new LoopbackServer(uuid);
+        servers.put(uuid, server);
+        return server;
+    }
+
+    private synchronized void removeServer(LoopbackServer server) {
+        if (servers.get(server.uuid) == server) {
+            servers.remove(server.uuid);
+        }
+    }
+
+    private synchronized LoopbackServer getServer(UUID uuid) {
+        return servers.get(uuid);
+    }
+
+    private static class LoopbackLink implements Link, SimulatedPeripheral.Central {
+        private final String address;
+        private final SimulatedPeripheral peripheral;
+        private final Link.Callback callback;
+
+        private volatile boolean discovered;
+        private volatile boolean disconnecting;
+        private volatile boolean closed;
+        // The peripheral answers in order and one request is out at a time.
+        private volatile int token;
+
+        LoopbackLink(String address, SimulatedPeripheral peripheral, Link.Callback callback) {
+            this.address = address;
+            this.peripheral = peripheral;
+            this.callback = callback;
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            peripheral.discoverServices();
+            return true;
+        }
+
+        @Override
+        public Collection<UUID> getCharacteristics() {
+            return discovered ? Collections.singletonList(HM10_CHARACTERISTIC)
+                    : Collections.<UUID>emptyList();
+        }
+
+        @Override
+        public UUID getServiceUuid(UUID charUuid) {
+            return getProperties(charUuid) < 0 ? null : HM10_SERVICE;
+        }
+
+        @Override
+        public int getProperties(UUID charUuid) {
+            return discovered && HM10_CHARACTERISTIC.equals(charUuid) ? HM10_PROPERTIES : -1;
+        }
+
+        @Override
+        public boolean read(UUID charUuid, int token) {
+            // The sketch never sets a value to read.
+            return false;
+        }
+
+        @Override
+        public boolean write(UUID charUuid, byte[] value, int writeType, int token) {
+            if (getProperties(charUuid) < 0) {
+                return false;
+            }
+            int previous = this.token;
+            this.token = token;
+            if (!peripheral.write(value)) {
+                this.token = previous;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean setNotification(UUID charUuid, boolean enable, int token) {
+            if (getProperties(charUuid) < 0) {
+                return false;
+            }
+            this.token = token;
+            peripheral.setNotifications(enable);
+            return true;
+        }
+
+        @Override
+        public int getMaxMtu() {
+            return peripheral.getMaxMtu();
+        }
+
+        @Override
+        public boolean requestMtu(int mtu, int token) {
+            this.token = token;
+            peripheral.requestMtu(mtu);
+            return true;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return true;
+        }
+
+        @Override
+        public boolean refresh() {
+            discovered = false;
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+            disconnecting = true;
+            peripheral.disconnect();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            peripheral.disconnect();
+        }
+
+        @Override
+        public void onConnected() {
+            if (!closed) {
+                callback.onConnected(this);
+            }
+        }
+
+        @Override
+        public void onDisconnected() {
+            if (!closed) {
+                callback.onDisconnected(this, disconnecting ? STATUS_SUCCESS : STATUS_FAILURE);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered() {
+            discovered = true;
+            if (!closed) {
+                callback.onServicesDiscovered(this, STATUS_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(int mtu) {
+            if (!closed) {
+                callback.onMtuChanged(this, mtu, STATUS_SUCCESS, token);
+            }
+        }
+
+        @Override
+        public void onNotificationsChanged(boolean enabled) {
+            if (!closed) {
+                callback.onNotificationChanged(this, HM10_CHARACTERISTIC, STATUS_SUCCESS, token);
+            }
+        }
+
+        @Override
+        public void onWriteComplete(boolean success) {
+            if (!closed) {
+                callback.onCharacteristicWrite(this, HM10_CHARACTERISTIC,
+                        success ? STATUS_SUCCESS : STATUS_FAILURE, token);
+            }
+        }
+
+        @Override
+        public void onNotification(byte[] value) {
+            if (!closed) {
+                callback.onCharacteristicChanged(this, HM10_CHARACTERISTIC, value);
+            }
+        }
+    }
+
+    private class LoopbackServer implements Server {
+        private final UUID uuid;
+        private final ArrayDeque<Stream> pending = new ArrayDeque<>();
+        private boolean closed;
+
+        LoopbackServer(UUID uuid) {
+            this.uuid = uuid;
+        }
+
+        synchronized void offer(Stream stream) throws IOException {
+            if (closed) {
+                throw new IOException("Connection refused.");
+            }
+            pending.add(stream);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized Stream accept() throws IOException {
+            while (!closed && pending.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted.", e);
+                }
+            }
+            if (closed) {
+                throw new IOException("Server closed.");
+            }
+            return pending.poll();
+        }
+
+        @Override
+        public void close() throws IOException {
+            removeServer(this);
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+                for (Stream stream : pending) {
+                    stream.close();
+                }
+                pending.clear();
+            }
+        }
+    }
+
+    private class LoopbackStream implements Stream {
+        private final String remoteAddress;
+        private final UUID uuid;
+
+        private Pipe.SourceChannel source;
+        private Pipe.SinkChannel sink;
+        private boolean closed;
+
+        LoopbackStream(String remoteAddress, UUID uuid) {
+            this.remoteAddress = remoteAddress;
+            this.uuid = uuid;
+        }
+
+        // The server side of a connection, connected from the start.
+        LoopbackStream(Pipe.SourceChannel source, Pipe.SinkChannel sink) {
+            this(LOCAL_ADDRESS, null);
+            this.source = source;
+            this.sink = sink;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            LoopbackServer server = getServer(uuid);
+            if (server == null) {
+                throw new IOException("Connection refused.");
+            }
+            Pipe out = Pipe.open();
+            Pipe in = Pipe.open();
+            synchronized (this) {
+                if (closed || source != null) {
+                    throw new IOException(closed ? "Stream closed." : "Already connected.");
+                }
+                source = in.source();
+                sink = out.sink();
+            }
+            server.offer(new LoopbackStream(out.source(), in.sink()));
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (source == null) {
+                throw new IOException("Not connected.");
+            }
+            return Channels.newInputStream(source);
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (sink == null) {
+                throw new IOException("Not connected.");
+            }
+            return Channels.newOutputStream(sink);
+        }
+
+        @Override
+        public void close() throws IOException {
+            Pipe.SourceChannel currentSource;
+            Pipe.SinkChannel currentSink;
+            synchronized (this) {
+                closed = true;
+                currentSource = source;
+                currentSink = sink;
+            }
+            if (currentSource != null) {
+                currentSource.close();
+            }
+            if (currentSink != null) {
+                currentSink.close();
+            }
+        }
+    }
+}
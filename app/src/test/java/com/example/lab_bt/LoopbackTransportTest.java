@@ -0,0 +1,210 @@
+package com.example.lab_bt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LoopbackTransportTest {
+    private static final String BOARD = "00:11:22:33:44:55";
+    private static final UUID CHARACTERISTIC = UUID.fromString(GattAttribute.HM10_CHARACTERISTIC);
+
+    private final LoopbackTransport transport = new LoopbackTransport();
+    private final SimulatedPeripheral peripheral = new SimulatedPeripheral();
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+    private final Link.Callback callback = new Link.Callback() {
+        @Override
+        public void onConnected(Link link) {
+            events.add("connected");
+        }
+
+        @Override
+        public void onDisconnected(Link link, int status) {
+            events.add("disconnected " + status);
+        }
+
+        @Override
+        public void onServicesDiscovered(Link link, int status) {
+            events.add("discovered " + status);
+        }
+
+        @Override
+        public void onCharacteristicRead(Link link, UUID charUuid, byte[] value, int status,
+                                         int token) {
+            events.add("read " + status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(Link link, UUID charUuid, int status, int token) {
+            events.add("write " + status + " " + token);
+        }
+
+        @Override
+        public void onCharacteristicChanged(Link link, UUID charUuid, byte[] value) {
+        }
+
+        @Override
+        public void onNotificationChanged(Link link, UUID charUuid, int status, int token) {
+            events.add("notification " + status + " " + token);
+        }
+
+        @Override
+        public void onMtuChanged(Link link, int mtu, int status, int token) {
+            events.add("mtu " + mtu + " " + status + " " + token);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        transport.addPeripheral(BOARD, peripheral);
+    }
+
+    @After
+    public void tearDown() {
+        peripheral.close();
+    }
+
+    private void expect(String event) throws InterruptedException {
+        assertEquals(event, events.poll(2, TimeUnit.SECONDS));
+    }
+
+    private Link connect() throws InterruptedException {
+        Link link = transport.connect(BOARD, false, callback);
+        expect("connected");
+        assertTrue(link.discoverServices());
+        expect("discovered " + Link.STATUS_SUCCESS);
+        return link;
+    }
+
+    // Transports without android.jar report the stack's own values.
+    @Test
+    public void linkConstantsAreTheStacks() {
+        assertEquals(BluetoothGatt.GATT_SUCCESS, Link.STATUS_SUCCESS);
+        assertEquals(BluetoothGatt.GATT_FAILURE, Link.STATUS_FAILURE);
+        assertEquals(BluetoothGattCharacteristic.PROPERTY_READ, Link.PROPERTY_READ);
+        assertEquals(BluetoothGattCharacteristic.PROPERTY_WRITE, Link.PROPERTY_WRITE);
+        assertEquals(BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                Link.PROPERTY_WRITE_NO_RESPONSE);
+        assertEquals(BluetoothGattCharacteristic.PROPERTY_NOTIFY, Link.PROPERTY_NOTIFY);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED,
+                Link.CONNECTION_PRIORITY_BALANCED);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, Link.CONNECTION_PRIORITY_HIGH);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER,
+                Link.CONNECTION_PRIORITY_LOW_POWER);
+    }
+
+    @Test
+    public void unknownAddressHasNoLink() {
+        assertNull(transport.connect("66:77:88:99:AA:BB", false, callback));
+    }
+
+    @Test
+    public void characteristicIsKnownOnlyAfterDiscovery() throws InterruptedException {
+        Link link = transport.connect(BOARD, false, callback);
+        expect("connected");
+        assertEquals(-1, link.getProperties(CHARACTERISTIC));
+        assertFalse(link.write(CHARACTERISTIC, new byte[]{1}, 0, 1));
+
+        link.discoverServices();
+        expect("discovered " + Link.STATUS_SUCCESS);
+        int properties = link.getProperties(CHARACTERISTIC);
+        assertTrue((properties & Link.PROPERTY_WRITE) != 0);
+        assertTrue((properties & Link.PROPERTY_WRITE_NO_RESPONSE) != 0);
+        assertTrue((properties & Link.PROPERTY_NOTIFY) != 0);
+        assertEquals(UUID.fromString(GattAttribute.HM10_SERVICE),
+                link.getServiceUuid(CHARACTERISTIC));
+        link.close();
+    }
+
+    @Test
+    public void outcomesCarryTheirToken() throws InterruptedException {
+        Link link = connect();
+        assertTrue(link.setNotification(CHARACTERISTIC, true, 7));
+        expect("notification " + Link.STATUS_SUCCESS + " 7");
+        assertTrue(link.write(CHARACTERISTIC, FrameCodec.encode(FrameCodec.CMD_LED_ON, 0), 0, 8));
+        expect("write " + Link.STATUS_SUCCESS + " 8");
+        assertTrue(link.requestMtu(100, 9));
+        expect("mtu " + ThroughputProfile.DEFAULT_MTU + " " + Link.STATUS_SUCCESS + " 9");
+        link.close();
+    }
+
+    @Test
+    public void disconnectStatusTellsWhoHungUp() throws InterruptedException {
+        Link link = connect();
+        link.disconnect();
+        expect("disconnected " + Link.STATUS_SUCCESS);
+
+        link = connect();
+        peripheral.setDisconnectRate(1);
+        link.write(CHARACTERISTIC, new byte[]{1}, 0, 1);
+        expect("disconnected " + Link.STATUS_FAILURE);
+    }
+
+    @Test
+    public void closedLinkStaysQuiet() throws InterruptedException {
+        Link link = connect();
+        link.close();
+        assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void streamsNeedAListeningServer() throws IOException {
+        StreamTransport.Stream stream = transport.open(LoopbackTransport.LOCAL_ADDRESS,
+                App.MY_UUID_SECURE);
+        try {
+            stream.connect();
+            fail();
+        } catch (IOException expected) {
+        }
+        StreamTransport.Server server = transport.listen("test", App.MY_UUID_SECURE);
+        try {
+            transport.listen("again", App.MY_UUID_SECURE);
+            fail();
+        } catch (IOException expected) {
+        }
+        server.close();
+        // Closed servers free the UUID for the next one.
+        transport.listen("test", App.MY_UUID_SECURE).close();
+    }
+
+    @Test
+    public void streamCarriesBytesBothWays() throws IOException {
+        StreamTransport.Server server = transport.listen("test", App.MY_UUID_SECURE);
+        StreamTransport.Stream client = transport.open(LoopbackTransport.LOCAL_ADDRESS,
+                App.MY_UUID_SECURE);
+        client.connect();
+        StreamTransport.Stream accepted = server.accept();
+        assertEquals(LoopbackTransport.LOCAL_ADDRESS, accepted.getRemoteAddress());
+
+        OutputStream out = client.getOutputStream();
+        out.write(new byte[]{1, 2, 3});
+        InputStream in = accepted.getInputStream();
+        assertEquals(1, in.read());
+        assertEquals(2, in.read());
+        assertEquals(3, in.read());
+        accepted.getOutputStream().write(42);
+        assertEquals(42, client.getInputStream().read());
+
+        client.close();
+        assertEquals(-1, in.read());
+        accepted.close();
+        server.close();
+    }
+}
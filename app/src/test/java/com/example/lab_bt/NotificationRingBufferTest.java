@@ -0,0 +1,133 @@
+package com.example.lab_bt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationRingBufferTest {
+    private static class Collector implements NotificationRingBuffer.Consumer {
+        final List<byte[]> payloads = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+
+        @Override
+        public void onPayload(long timestamp, byte[] data, int length) {
+            payloads.add(Arrays.copyOf(data, length));
+            timestamps.add(timestamp);
+        }
+    }
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(8, new NotificationRingBuffer(5, 20).capacity());
+        assertEquals(1024, new NotificationRingBuffer(1024, 20).capacity());
+    }
+
+    @Test
+    public void keepsOrderAcrossTheWrap() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(4, 20);
+        Collector collector = new Collector();
+        int next = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3; i++, next++) {
+                assertTrue(buffer.offer(next, new byte[]{(byte) next, 1}, 2));
+            }
+            assertEquals(3, buffer.drain(collector, 10));
+        }
+        assertEquals(30, collector.payloads.size());
+        for (int i = 0; i < 30; i++) {
+            assertArrayEquals(new byte[]{(byte) i, 1}, collector.payloads.get(i));
+            assertEquals(i, (long) collector.timestamps.get(i));
+        }
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void dropsTheNewestWhenFull() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(4, 20);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i, new byte[]{(byte) i}, 1));
+        }
+        assertFalse(buffer.offer(4, new byte[]{4}, 1));
+        assertEquals(1, buffer.getDroppedCount());
+        assertEquals(5, buffer.getReceivedCount());
+
+        Collector collector = new Collector();
+        assertEquals(2, buffer.drain(collector, 2));
+        assertTrue(buffer.offer(5, new byte[]{5}, 1));
+        buffer.drain(collector, 10);
+        assertArrayEquals(new byte[]{5}, collector.payloads.get(collector.payloads.size() - 1));
+        assertEquals(5, collector.payloads.size());
+    }
+
+    @Test
+    public void storesFullMtuNotificationsWhole() {
+        int maxNotification = 247 - ThroughputProfile.ATT_OVERHEAD;
+        NotificationRingBuffer buffer = new NotificationRingBuffer(4, maxNotification);
+        assertEquals(maxNotification, buffer.getSlotSize());
+        byte[] value = new byte[maxNotification];
+        Arrays.fill(value, (byte) 7);
+        buffer.offer(0, value, value.length);
+        Collector collector = new Collector();
+        buffer.drain(collector, 1);
+        assertArrayEquals(value, collector.payloads.get(0));
+        assertEquals(0, buffer.getTruncatedCount());
+    }
+
+    @Test
+    public void cutsAndCountsOversizePayloads() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(4, FrameCodec.MAX_FRAME);
+        buffer.offer(0, new byte[FrameCodec.MAX_FRAME + 10], FrameCodec.MAX_FRAME + 10);
+        Collector collector = new Collector();
+        buffer.drain(collector, 1);
+        assertEquals(FrameCodec.MAX_FRAME, collector.payloads.get(0).length);
+        assertEquals(1, buffer.getTruncatedCount());
+    }
+
+    @Test
+    public void producerAndConsumerOnTheirOwnThreads() throws InterruptedException {
+        final int count = 2000000;
+        final NotificationRingBuffer buffer = new NotificationRingBuffer(1024, 20);
+        final long[] lastSeen = {-1};
+        final boolean[] ordered = {true};
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] value = new byte[20];
+                for (int i = 0; i < count; ) {
+                    value[0] = (byte) i;
+                    if (buffer.offer(i, value, value.length)) {
+                        i++;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        NotificationRingBuffer.Consumer consumer = new NotificationRingBuffer.Consumer() {
+            @Override
+            public void onPayload(long timestamp, byte[] data, int length) {
+                if (timestamp != lastSeen[0] + 1 || data[0] != (byte) timestamp) {
+                    ordered[0] = false;
+                }
+                lastSeen[0] = timestamp;
+            }
+        };
+
+        producer.start();
+        while (lastSeen[0] < count - 1) {
+            if (buffer.drain(consumer, 256) == 0) {
+                Thread.yield();
+            }
+        }
+        producer.join();
+
+        assertTrue("payloads lost or reordered", ordered[0]);
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.lab_bt;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanFilterTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID HM10_SERVICE = UUID.fromString(GattAttribute.HM10_SERVICE);
+    private static final byte[] HM10 = AdvertisementDataTest.hm10Record("HMSoft");
+    private static final byte[] OTHER = new AdvertisementDataTest.Record()
+            .add(AdvertisementData.TYPE_NAME_COMPLETE, "Heart rate")
+            .add(AdvertisementData.TYPE_UUID16_COMPLETE, 0x0D, 0x18)
+            .build();
+
+    private final AdvertisementData data = new AdvertisementData();
+
+    @Test
+    public void emptyFilterMatchesEverything() {
+        ScanFilter filter = new ScanFilter.Builder().build();
+        assertTrue(filter.matches(ADDRESS, -100, null, data));
+    }
+
+    @Test
+    public void checksRssiAndAddressBeforeTheRecord() {
+        ScanFilter filter = new ScanFilter.Builder()
+                .setMinRssi(-80)
+                .addAddress(ADDRESS)
+                .addAddress("66:77:88:99:AA:BB")
+                .build();
+        assertTrue(filter.matches("66:77:88:99:aa:bb", -80, null, data));
+        assertFalse(filter.matches(ADDRESS, -81, HM10, data));
+        assertFalse(filter.matches("00:11:22:33:44:56", -40, HM10, data));
+    }
+
+    @Test
+    public void matchesNamesAsBytes() {
+        ScanFilter exact = new ScanFilter.Builder().setName("HMSoft").build();
+        ScanFilter prefix = new ScanFilter.Builder().setNamePrefix("HM").build();
+        assertTrue(exact.matches(ADDRESS, 0, HM10, data));
+        assertFalse(exact.matches(ADDRESS, 0, AdvertisementDataTest.hm10Record("HMSoft2"), data));
+        assertTrue(prefix.matches(ADDRESS, 0, AdvertisementDataTest.hm10Record("HMSoft2"), data));
+        assertFalse(prefix.matches(ADDRESS, 0, OTHER, data));
+    }
+
+    @Test
+    public void anyServiceUuidIsEnough() {
+        ScanFilter filter = new ScanFilter.Builder()
+                .addServiceUuid(UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb"))
+                .addServiceUuid(HM10_SERVICE)
+                .build();
+        assertTrue(filter.matches(ADDRESS, 0, HM10, data));
+        assertFalse(filter.matches(ADDRESS, 0, OTHER, data));
+        assertFalse(filter.matches(ADDRESS, 0, null, data));
+    }
+
+    @Test
+    public void allConditionsMustHold() {
+        ScanFilter filter = new ScanFilter.Builder()
+                .setNamePrefix("Heart")
+                .addServiceUuid(HM10_SERVICE)
+                .build();
+        assertFalse(filter.matches(ADDRESS, 0, HM10, data));
+        assertFalse(filter.matches(ADDRESS, 0, OTHER, data));
+    }
+
+    @Test
+    public void filteringDoesNotAllocate() {
+        ScanFilter filter = new ScanFilter.Builder()
+                .setMinRssi(-90)
+                .setNamePrefix("HM")
+                .addServiceUuid(HM10_SERVICE)
+                .build();
+        int count = 1000000;
+        int matched = 0;
+        // Warm up so that the loop under test runs compiled.
+        for (int i = 0; i < count; i++) {
+            filter.matches(ADDRESS, -60, (i & 1) == 0 ? HM10 : OTHER, data);
+        }
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        boolean measured = bean instanceof com.sun.management.ThreadMXBean;
+        long before = measured
+                ? ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(thread) : 0;
+        for (int i = 0; i < count; i++) {
+            if (filter.matches(ADDRESS, -60, (i & 1) == 0 ? HM10 : OTHER, data)) {
+                matched++;
+            }
+        }
+        assertEquals(count / 2, matched);
+        if (measured) {
+            long allocated = ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(thread) - before;
+            assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.lab_bt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScanIndexTest {
+    private static final String[] ADDRESSES = new String[256];
+
+    static {
+        for (int i = 0; i < ADDRESSES.length; i++) {
+            ADDRESSES[i] = SimulatedFleet.address(i);
+        }
+    }
+
+    private final ScanIndex index = new ScanIndex();
+
+    private static String address(int device) {
+        return ADDRESSES[device];
+    }
+
+    private boolean advertise(int device, int rssi, long now) {
+        return index.update(address(device), null, rssi, new byte[]{(byte) device}, now, false);
+    }
+
+    @Test
+    public void repeatedAdvertisementsUpdateOneEntry() {
+        assertTrue(advertise(1, -70, 100));
+        ScanIndex.Entry entry = index.get(address(1));
+        assertFalse(advertise(1, -60, 200));
+        assertSame(entry, index.get(address(1)));
+        assertEquals(1, index.size());
+        assertEquals(-60, entry.getRssi());
+        assertEquals(200, entry.getLastSeen());
+    }
+
+    @Test
+    public void snapshotKeepsTheOrderDevicesWereFirstSeen() {
+        for (int i = 0; i < 50; i++) {
+            advertise(i, -50 - i % 7, i);
+        }
+        // Hearing a device again does not move it.
+        advertise(10, -30, 100);
+        List<ScanIndex.Entry> out = new ArrayList<>();
+        index.snapshot(out);
+        assertEquals(50, out.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(address(i), out.get(i).getAddress());
+        }
+    }
+
+    @Test
+    public void evictsDevicesNotHeardFromSinceTheCutoff() {
+        advertise(1, -60, 1000);
+        advertise(2, -60, 5000);
+        advertise(3, -60, 9000);
+        assertEquals(2, index.evictOlderThan(6000));
+        assertNull(index.get(address(1)));
+        List<ScanIndex.Entry> out = new ArrayList<>();
+        index.snapshot(out);
+        assertEquals(1, out.size());
+        assertEquals(address(3), out.get(0).getAddress());
+        // Back after eviction it counts as new.
+        assertTrue(advertise(1, -60, 10000));
+    }
+
+    @Test
+    public void eligibilitySticksUntilEviction() {
+        index.update(address(1), null, -60, null, 0, true);
+        index.update(address(1), null, -60, null, 100, false);
+        assertTrue(index.get(address(1)).isEligible());
+        index.evictOlderThan(200);
+        advertise(1, -60, 300);
+        assertFalse(index.get(address(1)).isEligible());
+    }
+
+    @Test
+    public void firstSampleIsTakenAsIs() {
+        advertise(1, -72, 0);
+        assertEquals(-72f, index.get(address(1)).getSmoothedRssi(), 0);
+    }
+
+    /**
+     * Two boards 6 dB apart with the fading of a real room, advertising every 100 ms.
+     * Ranked by the last reading they swap places all the time, smoothed they should
+     * settle in the right order.
+     */
+    @Test
+    public void smoothingSettlesTheRankingOfNoisyBoards() {
+        Random random = new Random(13);
+        int rawSwaps = 0;
+        int smoothedSwaps = 0;
+        int smoothedWrong = 0;
+        int samples = 600;
+        for (int i = 0; i < samples; i++) {
+            long now = i * 100L;
+            advertise(1, (int) Math.round(-60 + 4 * random.nextGaussian()), now);
+            advertise(2, (int) Math.round(-66 + 4 * random.nextGaussian()), now);
+            ScanIndex.Entry near = index.get(address(1));
+            ScanIndex.Entry far = index.get(address(2));
+            if (far.getRssi() > near.getRssi()) {
+                rawSwaps++;
+            }
+            // Give the filter a couple of seconds before judging it.
+            if (i >= 20 && far.getSmoothedRssi() > near.getSmoothedRssi()) {
+                smoothedWrong++;
+            }
+            if (i >= 20 && ranking().get(0) != near) {
+                smoothedSwaps++;
+            }
+        }
+        assertEquals(smoothedWrong, smoothedSwaps);
+        assertTrue("raw readings swapped " + rawSwaps + " times", rawSwaps > samples / 20);
+        assertTrue("smoothed ranking wrong " + smoothedWrong + " times",
+                smoothedWrong < samples / 50);
+    }
+
+    private List<ScanIndex.Entry> ranking() {
+        List<ScanIndex.Entry> out = new ArrayList<>();
+        index.snapshotByProximity(out);
+        return out;
+    }
+
+    // Sorting on values the scan thread keeps changing breaks TimSort's contract.
+    @Test
+    public void ranksWhileTheScanThreadUpdates() throws InterruptedException {
+        final int devices = ADDRESSES.length;
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread scanner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(5);
+                for (long now = 0; running.get(); now++) {
+                    advertise(random.nextInt(devices), -40 - random.nextInt(60), now);
+                }
+            }
+        });
+        for (int i = 0; i < devices; i++) {
+            advertise(i, -70, 0);
+        }
+        scanner.start();
+        try {
+            List<ScanIndex.Entry> out = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                index.snapshotByProximity(out);
+                assertEquals(devices, out.size());
+            }
+        } finally {
+            running.set(false);
+            scanner.join();
+        }
+    }
+
+    @Test
+    public void followsABoardThatIsCarriedAway() {
+        for (int i = 0; i < 50; i++) {
+            advertise(1, -50, i * 100L);
+        }
+        // Twenty seconds of walking away, then it stays put at -80 dBm.
+        for (int i = 50; i < 300; i++) {
+            advertise(1, -80, i * 100L);
+        }
+        assertEquals(-80f, index.get(address(1)).getSmoothedRssi(), 1f);
+    }
+
+    @Test
+    public void nearestEligibleSkipsIneligibleAndStaleBoards() {
+        index.update(address(1), null, -40, null, 1000, false);
+        index.update(address(2), null, -70, null, 1000, true);
+        index.update(address(3), null, -50, null, 200, true);
+        index.update(address(4), null, -60, null, 900, true);
+        assertEquals(address(4), index.nearestEligible(500).getAddress());
+        assertEquals(address(3), index.nearestEligible(0).getAddress());
+        assertNull(index.nearestEligible(2000));
+    }
+
+    @Test
+    public void snapshotsWhileTheScanThreadUpdates() throws InterruptedException {
+        final int devices = 200;
+        final int rounds = 500;
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread scanner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int round = 0; round < rounds; round++) {
+                    for (int i = 0; i < devices; i++) {
+                        advertise(i, -40 - (round + i) % 50, round);
+                    }
+                }
+                running.set(false);
+            }
+        });
+        scanner.start();
+        List<ScanIndex.Entry> out = new ArrayList<>();
+        while (running.get()) {
+            index.snapshot(out);
+            assertTrue(out.size() <= devices);
+        }
+        scanner.join();
+
+        index.snapshot(out);
+        assertEquals(devices, out.size());
+        assertEquals(address(0), out.get(0).getAddress());
+    }
+}
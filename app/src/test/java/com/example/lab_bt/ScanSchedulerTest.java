@@ -0,0 +1,102 @@
+package com.example.lab_bt;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanSchedulerTest {
+    private static final String BOARD = "00:11:22:33:44:55";
+    private static final String OTHER_BOARD = "66:77:88:99:AA:BB";
+    private static final String STRANGER = "12:34:56:78:9A:BC";
+
+    private int starts;
+    private int stops;
+    private int allFound;
+    private ScanScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        // Posted tasks never run, the all-found task is run by hand.
+        scheduler = new ScanScheduler(new Handler(), new ScanScheduler.Radio() {
+            @Override
+            public boolean startScan() {
+                starts++;
+                return true;
+            }
+
+            @Override
+            public void stopScan() {
+                stops++;
+            }
+        });
+        scheduler.setListener(new ScanScheduler.Listener() {
+            @Override
+            public void onAllFound() {
+                allFound++;
+            }
+        });
+    }
+
+    @Test
+    public void stopsOnceEveryWantedBoardWasSeen() {
+        scheduler.addWanted(BOARD);
+        scheduler.addWanted(OTHER_BOARD);
+        scheduler.start();
+        assertEquals(1, starts);
+
+        scheduler.onDiscovered(BOARD, true);
+        scheduler.onDiscovered(STRANGER, true);
+        assertFalse(scheduler.isAllFound());
+        // Wanted boards count even when the caller's filter did not pick them.
+        scheduler.onDiscovered(OTHER_BOARD, false);
+        assertTrue(scheduler.isAllFound());
+
+        scheduler.finishAllFound();
+        assertFalse(scheduler.isRunning());
+        assertEquals(1, stops);
+        assertEquals(1, allFound);
+        // A late run after stopping does nothing.
+        scheduler.finishAllFound();
+        assertEquals(1, allFound);
+    }
+
+    @Test
+    public void keepsScanningWithoutWantedBoards() {
+        scheduler.start();
+        scheduler.onDiscovered(BOARD, true);
+        assertFalse(scheduler.isAllFound());
+        assertTrue(scheduler.isRunning());
+    }
+
+    @Test
+    public void restartLooksForEveryBoardAgain() {
+        scheduler.addWanted(BOARD);
+        scheduler.start();
+        scheduler.onDiscovered(BOARD, false);
+        scheduler.finishAllFound();
+
+        scheduler.start();
+        assertFalse(scheduler.isAllFound());
+        scheduler.clearWanted();
+        scheduler.addWanted(OTHER_BOARD);
+        scheduler.onDiscovered(BOARD, false);
+        assertFalse(scheduler.isAllFound());
+        scheduler.onDiscovered(OTHER_BOARD, false);
+        assertTrue(scheduler.isAllFound());
+    }
+
+    @Test
+    public void nonTargetsAreNotCounted() {
+        scheduler.start();
+        scheduler.onDiscovered(STRANGER, false);
+        assertEquals(0, scheduler.getDiscoveryCount());
+        scheduler.onDiscovered(BOARD, true);
+        scheduler.onDiscovered(BOARD, true);
+        assertEquals(1, scheduler.getDiscoveryCount());
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.lab_bt;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated boards reached through {@link LoopbackTransport}, each behind its own
+ * {@link GattOperationQueue} like a connection in the service. Completions go straight
+ * to the queue from the peripheral's thread, and notifications to {@link #setListener}.
+ */
+class SimulatedFleet {
+    static final UUID CHARACTERISTIC = UUID.fromString(GattAttribute.HM10_CHARACTERISTIC);
+
+    interface NotificationListener {
+        void onNotification(int device, byte[] value);
+    }
+
+    private final LoopbackTransport transport = new LoopbackTransport();
+    private final List<SimulatedPeripheral> peripherals = new ArrayList<>();
+    private final List<Link> links = new ArrayList<>();
+    private final List<GattOperationQueue> queues = new ArrayList<>();
+    private volatile NotificationListener listener;
+
+    SimulatedFleet(int size, long latency) {
+        for (int i = 0; i < size; i++) {
+            SimulatedPeripheral peripheral = new SimulatedPeripheral();
+            peripheral.setLatency(latency);
+            transport.addPeripheral(address(i), peripheral);
+            peripherals.add(peripheral);
+            // Posted tasks never run, so timeouts never fire.
+            queues.add(new GattOperationQueue(new HandlerScheduler(new Handler())));
+        }
+    }
+
+    static String address(int device) {
+        return String.format("00:00:00:00:%02X:%02X", device >> 8, device & 0xFF);
+    }
+
+    /** Connects every board and discovers its services, the queues start afterwards. */
+    void connect() throws InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(peripherals.size());
+        final CountDownLatch discovered = new CountDownLatch(peripherals.size());
+        for (int i = 0; i < peripherals.size(); i++) {
+            links.add(transport.connect(address(i), false,
+                    new FleetCallback(i, connected, discovered)));
+        }
+        await(connected);
+        for (Link link : links) {
+            link.discoverServices();
+        }
+        await(discovered);
+        for (int i = 0; i < links.size(); i++) {
+            queues.get(i).attach(links.get(i));
+        }
+    }
+
+    static void await(CountDownLatch latch) throws InterruptedException {
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+            throw new AssertionError("Timed out with " + latch.getCount() + " left.");
+        }
+    }
+
+    int size() {
+        return peripherals.size();
+    }
+
+    SimulatedPeripheral peripheral(int device) {
+        return peripherals.get(device);
+    }
+
+    Link link(int device) {
+        return links.get(device);
+    }
+
+    GattOperationQueue queue(int device) {
+        return queues.get(device);
+    }
+
+    void setListener(NotificationListener listener) {
+        this.listener = listener;
+    }
+
+    void close() {
+        for (int i = 0; i < peripherals.size(); i++) {
+            queues.get(i).detach();
+            if (i < links.size()) {
+                links.get(i).close();
+            }
+            peripherals.get(i).close();
+        }
+    }
+
+    private class FleetCallback implements Link.Callback {
+        private final int device;
+        private final CountDownLatch connected;
+        private final CountDownLatch discovered;
+
+        FleetCallback(int device, CountDownLatch connected, CountDownLatch discovered) {
+            this.device = device;
+            this.connected = connected;
+            this.discovered = discovered;
+        }
+
+        @Override
+        public void onConnected(Link link) {
+            connected.countDown();
+        }
+
+        @Override
+        public void onDisconnected(Link link, int status) {
+            queues.get(device).detach();
+        }
+
+        @Override
+        public void onServicesDiscovered(Link link, int status) {
+            discovered.countDown();
+        }
+
+        @Override
+        public void onCharacteristicRead(Link link, UUID charUuid, byte[] value, int status,
+                                         int token) {
+            queues.get(device).onComplete(GattOperation.Type.READ, status, token);
+        }
+
+        @Override
+        public void onCharacteristicWrite(Link link, UUID charUuid, int status, int token) {
+            queues.get(device).onComplete(GattOperation.Type.WRITE, status, token);
+        }
+
+        @Override
+        public void onCharacteristicChanged(Link link, UUID charUuid, byte[] value) {
+            NotificationListener current = listener;
+            if (current != null) {
+                current.onNotification(device, value);
+            }
+        }
+
+        @Override
+        public void onNotificationChanged(Link link, UUID charUuid, int status, int token) {
+            queues.get(device).onComplete(GattOperation.Type.SET_NOTIFICATION, status, token);
+        }
+
+        @Override
+        public void onMtuChanged(Link link, int mtu, int status, int token) {
+            queues.get(device).onComplete(GattOperation.Type.REQUEST_MTU, status, token);
+        }
+    }
+}
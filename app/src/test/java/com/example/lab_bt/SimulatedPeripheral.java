@@ -0,0 +1,413 @@
+package com.example.lab_bt;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HM-10 and the sketch in {@code arduino/BT/BT.ino} in plain Java, so the framing,
+ * write and notification paths can be driven on a JVM without a phone or a board.
+ * Link latency, MTU, loss and spontaneous disconnects are configurable; everything
+ * runs on one private thread and the {@link Central} is called back from there.
+ *
+ * <p>Writes are fed to the board like the HM-10 feeds its UART. The board's answers
+ * leave at 9600 baud and are cut into notifications of at most MTU - 3 bytes.
+ */
+public class SimulatedPeripheral {
+    private static final int BAUD_RATE = 9600;
+    // Start bit, eight data bits, stop bit.
+    private static final int BITS_PER_BYTE = 10;
+    private static final int ANALOG_MAX = 1023;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    public interface Central {
+        void onConnected();
+
+        /** The link dropped or {@link #disconnect} was called. */
+        void onDisconnected();
+
+        void onServicesDiscovered();
+
+        void onMtuChanged(int mtu);
+
+        void onNotificationsChanged(boolean enabled);
+
+        void onWriteComplete(boolean success);
+
+        void onNotification(byte[] value);
+    }
+
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final long bootTime = System.nanoTime();
+    private final Random random;
+
+    private final FrameDecoder decoder;
+    private final byte[] frame = new byte[FrameCodec.MAX_FRAME];
+
+    // Only touched on the executor thread, apart from the volatile settings.
+    private volatile long latency;
+    private volatile int maxMtu = ThroughputProfile.DEFAULT_MTU;
+    private volatile int mtu = ThroughputProfile.DEFAULT_MTU;
+    private volatile double lossRate;
+    private volatile double disconnectRate;
+    private volatile int analogValue = ANALOG_MAX / 2;
+
+    private Central central;
+    private int generation;
+    private boolean notifying;
+    private volatile boolean ledOn;
+    private int txSequence;
+    private boolean streaming;
+    private long streamInterval;
+    // When the board's serial line is free again, in nanoseconds of System.nanoTime().
+    private long txFreeTime;
+
+    private volatile long writeCount;
+    private volatile long notificationCount;
+    private volatile long lostCount;
+
+    private final Runnable sampleTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!streaming || central == null) {
+                return;
+            }
+            long now = millis();
+            int value = analogValue;
+            byte[] sample = {
+                    (byte) now, (byte) (now >> 8), (byte) (now >> 16), (byte) (now >> 24),
+                    (byte) value, (byte) (value >> 8)
+            };
+            sendFrame(FrameCodec.EVT_SAMPLE, nextTxSequence(), sample, sample.length);
+            long serialTime = toMillis(serialNanos(sample.length + FrameCodec.OVERHEAD));
+            executor.schedule(this, Math.max(streamInterval, serialTime),
+                    TimeUnit.MILLISECONDS);
+        }
+    };
+
+    public SimulatedPeripheral() {
+        this(new Random());
+    }
+
+    /** A seeded {@code random} makes loss and disconnects repeatable. */
+    public SimulatedPeripheral(Random random) {
+        this.random = random;
+        decoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(int command, int sequence, byte[] payload, int length) {
+                handleFrame(command, sequence, payload, length);
+            }
+        });
+    }
+
+    /** One-way delay of the radio link in milliseconds. */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /** Largest MTU the peripheral agrees to, the real HM-10 stays at the default. */
+    public void setMaxMtu(int maxMtu) {
+        this.maxMtu = maxMtu;
+    }
+
+    public int getMaxMtu() {
+        return maxMtu;
+    }
+
+    /** The MTU of the current connection. */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /** Chance from 0 to 1 that a write fails or a notification never arrives. */
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /** Chance from 0 to 1 that the link drops on any write. */
+    public void setDisconnectRate(double disconnectRate) {
+        this.disconnectRate = disconnectRate;
+    }
+
+    /** The A0 reading reported in samples. */
+    public void setAnalogValue(int analogValue) {
+        this.analogValue = Math.max(0, Math.min(ANALOG_MAX, analogValue));
+    }
+
+    public void connect(final Central central) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dropLink(false);
+                SimulatedPeripheral.this.central = central;
+                final int current = generation;
+                schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (current == generation) {
+                            central.onConnected();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /** Reports the HM-10 service, the only one the board has. */
+    public void discoverServices() {
+        runConnected(new Runnable() {
+            @Override
+            public void run() {
+                central.onServicesDiscovered();
+            }
+        });
+    }
+
+    public void requestMtu(final int requested) {
+        runConnected(new Runnable() {
+            @Override
+            public void run() {
+                mtu = Math.max(ThroughputProfile.DEFAULT_MTU, Math.min(requested, maxMtu));
+                central.onMtuChanged(mtu);
+            }
+        });
+    }
+
+    /** Writes the client configuration descriptor, nothing is notified until it is on. */
+    public void setNotifications(final boolean enabled) {
+        runConnected(new Runnable() {
+            @Override
+            public void run() {
+                notifying = enabled;
+                central.onNotificationsChanged(enabled);
+            }
+        });
+    }
+
+    public void disconnect() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dropLink(true);
+            }
+        });
+    }
+
+    /**
+     * Sends a value the way a characteristic write would. Returns false if it is
+     * longer than the MTU allows, otherwise the outcome arrives at the central.
+     */
+    public boolean write(byte[] value) {
+        if (value.length > mtu - ThroughputProfile.ATT_OVERHEAD) {
+            return false;
+        }
+        final byte[] copy = value.clone();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (central == null) {
+                    return;
+                }
+                final Central current = central;
+                final int currentGeneration = generation;
+                if (random.nextDouble() < disconnectRate) {
+                    dropLink(true);
+                    return;
+                }
+                final boolean lost = random.nextDouble() < lossRate;
+                if (lost) {
+                    lostCount++;
+                } else {
+                    writeCount++;
+                }
+                schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (currentGeneration != generation) {
+                            return;
+                        }
+                        if (!lost) {
+                            decoder.feed(copy, 0, copy.length);
+                        }
+                        current.onWriteComplete(!lost);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * A line typed on the board's serial monitor: "Auth", optionally followed by a
+     * space and a token, or "Ready". Anything else is ignored, as by the sketch.
+     */
+    public void typeLine(final String line) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (central != null) {
+                    handleLine(line);
+                }
+            }
+        });
+    }
+
+    /** Stops the simulation thread, the peripheral is unusable afterwards. */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    public boolean isLedOn() {
+        return ledOn;
+    }
+
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    public long getNotificationCount() {
+        return notificationCount;
+    }
+
+    /** Writes and notifications that were dropped. */
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    // Runs the task one link delay from now, unless the connection is gone by then.
+    private void runConnected(final Runnable task) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (central == null) {
+                    return;
+                }
+                final int current = generation;
+                schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (current == generation) {
+                            task.run();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void dropLink(boolean notify) {
+        Central current = central;
+        central = null;
+        generation++;
+        notifying = false;
+        mtu = ThroughputProfile.DEFAULT_MTU;
+        streaming = false;
+        decoder.reset();
+        if (notify && current != null) {
+            current.onDisconnected();
+        }
+    }
+
+    // Mirrors handleFrame() in BT.ino.
+    private void handleFrame(int command, int sequence, byte[] payload, int length) {
+        switch (command) {
+            case FrameCodec.CMD_LED_ON:
+                ledOn = true;
+                break;
+            case FrameCodec.CMD_LED_OFF:
+                ledOn = false;
+                break;
+            case FrameCodec.CMD_STREAM_START:
+                streamInterval = length >= 2
+                        ? (payload[0] & 0xFF) | (payload[1] & 0xFF) << 8 : 0;
+                sendAck(sequence, FrameCodec.ACK_OK);
+                if (!streaming) {
+                    streaming = true;
+                    executor.execute(sampleTask);
+                }
+                return;
+            case FrameCodec.CMD_STREAM_STOP:
+                streaming = false;
+                sendAck(sequence, FrameCodec.ACK_OK);
+                return;
+            case FrameCodec.CMD_QUERY:
+                break;
+            default:
+                sendAck(sequence, FrameCodec.ACK_UNKNOWN_COMMAND);
+                return;
+        }
+        sendAck(sequence, FrameCodec.ACK_OK);
+        byte[] state = {(byte) (ledOn ? 1 : 0)};
+        sendFrame(FrameCodec.EVT_LED_STATE, nextTxSequence(), state, state.length);
+    }
+
+    // Mirrors handleLine() in BT.ino.
+    private void handleLine(String line) {
+        if (line.equals("Auth") || line.startsWith("Auth ")) {
+            byte[] token = line.substring(Math.min(line.length(), 5)).getBytes(ASCII);
+            int length = Math.min(token.length, FrameCodec.MAX_PAYLOAD);
+            sendFrame(FrameCodec.EVT_AUTH, nextTxSequence(), token, length);
+        } else if (line.equals("Ready")) {
+            sendFrame(FrameCodec.EVT_READY, nextTxSequence(), null, 0);
+        }
+    }
+
+    private void sendAck(int sequence, int status) {
+        sendFrame(FrameCodec.EVT_ACK, sequence, new byte[]{(byte) status}, 1);
+    }
+
+    private int nextTxSequence() {
+        int sequence = txSequence;
+        txSequence = (txSequence + 1) & 0xFF;
+        return sequence;
+    }
+
+    // Queues the frame on the serial line, then hands it to the radio in MTU-sized pieces.
+    private void sendFrame(int command, int sequence, byte[] payload, int length) {
+        int frameLength = FrameCodec.encode(command, sequence, payload, 0, length, frame, 0);
+        long now = System.nanoTime();
+        txFreeTime = Math.max(txFreeTime, now) + serialNanos(frameLength);
+        long delay = toMillis(txFreeTime - now) + latency;
+
+        int chunkSize = mtu - ThroughputProfile.ATT_OVERHEAD;
+        for (int offset = 0; offset < frameLength; offset += chunkSize) {
+            int end = Math.min(frameLength, offset + chunkSize);
+            if (random.nextDouble() < lossRate) {
+                lostCount++;
+                continue;
+            }
+            final byte[] value = new byte[end - offset];
+            System.arraycopy(frame, offset, value, 0, value.length);
+            final Central current = central;
+            final int currentGeneration = generation;
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (currentGeneration == generation && notifying) {
+                        notificationCount++;
+                        current.onNotification(value);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void schedule(Runnable task) {
+        executor.schedule(task, latency, TimeUnit.MILLISECONDS);
+    }
+
+    private long millis() {
+        return toMillis(System.nanoTime() - bootTime);
+    }
+
+    private static long serialNanos(int bytes) {
+        return bytes * BITS_PER_BYTE * 1000000000L / BAUD_RATE;
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.lab_bt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SimulatedPeripheralTest {
+    private static final long WAIT = 2000;
+
+    private SimulatedPeripheral peripheral;
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+
+    private final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener() {
+        @Override
+        public void onFrame(int command, int sequence, byte[] payload, int length) {
+            byte[] frame = new byte[length + 1];
+            frame[0] = (byte) command;
+            System.arraycopy(payload, 0, frame, 1, length);
+            frames.add(frame);
+        }
+    });
+
+    private final SimulatedPeripheral.Central central = new SimulatedPeripheral.Central() {
+        @Override
+        public void onConnected() {
+            events.add("connected");
+        }
+
+        @Override
+        public void onDisconnected() {
+            events.add("disconnected");
+        }
+
+        @Override
+        public void onServicesDiscovered() {
+            events.add("discovered");
+        }
+
+        @Override
+        public void onMtuChanged(int mtu) {
+            events.add("mtu:" + mtu);
+        }
+
+        @Override
+        public void onNotificationsChanged(boolean enabled) {
+            events.add("notifications:" + enabled);
+        }
+
+        @Override
+        public void onWriteComplete(boolean success) {
+            events.add("write:" + success);
+        }
+
+        @Override
+        public void onNotification(byte[] value) {
+            decoder.feed(value, 0, value.length);
+        }
+    };
+
+    @Before
+    public void setUp() throws InterruptedException {
+        peripheral = new SimulatedPeripheral();
+        peripheral.connect(central);
+        assertEquals("connected", events.poll(WAIT, TimeUnit.MILLISECONDS));
+        peripheral.setNotifications(true);
+        assertEquals("notifications:true", events.poll(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        peripheral.close();
+    }
+
+    private byte[] nextFrame() throws InterruptedException {
+        byte[] frame = frames.poll(WAIT, TimeUnit.MILLISECONDS);
+        assertNotNull("no frame from the peripheral", frame);
+        return frame;
+    }
+
+    @Test
+    public void operatorAuthIsSentAsFrameWithToken() throws Exception {
+        peripheral.typeLine("Auth secret");
+        byte[] frame = nextFrame();
+        assertEquals((byte) FrameCodec.EVT_AUTH, frame[0]);
+        assertArrayEquals("secret".getBytes("US-ASCII"), Arrays.copyOfRange(frame, 1,
+                frame.length));
+    }
+
+    @Test
+    public void operatorReadyIsSentAsFrame() throws InterruptedException {
+        peripheral.typeLine("Auth");
+        peripheral.typeLine("Ready");
+        peripheral.typeLine("Hello");
+        assertArrayEquals(new byte[]{(byte) FrameCodec.EVT_AUTH}, nextFrame());
+        assertArrayEquals(new byte[]{(byte) FrameCodec.EVT_READY}, nextFrame());
+        assertNull(frames.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void ledCommandIsAckedAndReported() throws InterruptedException {
+        assertTrue(peripheral.write(FrameCodec.encode(FrameCodec.CMD_LED_ON, 5)));
+        assertEquals("write:true", events.poll(WAIT, TimeUnit.MILLISECONDS));
+        assertArrayEquals(new byte[]{(byte) FrameCodec.EVT_ACK, FrameCodec.ACK_OK},
+                nextFrame());
+        assertArrayEquals(new byte[]{(byte) FrameCodec.EVT_LED_STATE, 1}, nextFrame());
+        assertTrue(peripheral.isLedOn());
+    }
+
+    @Test
+    public void writeLongerThanTheMtuIsRefused() {
+        assertFalse(peripheral.write(new byte[ThroughputProfile.DEFAULT_MTU]));
+    }
+}
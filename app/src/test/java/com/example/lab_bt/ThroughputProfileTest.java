@@ -0,0 +1,108 @@
+package com.example.lab_bt;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThroughputProfileTest {
+    private static final long LATENCY = 2;
+    private static final int LARGE_MTU = 247;
+
+    private SimulatedFleet fleet;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        fleet = new SimulatedFleet(1, LATENCY);
+        fleet.peripheral(0).setMaxMtu(LARGE_MTU);
+        fleet.connect();
+    }
+
+    @After
+    public void tearDown() {
+        fleet.close();
+    }
+
+    private static GattOperation.Callback countDown(final CountDownLatch latch) {
+        return new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation, int status) {
+                assertEquals(BluetoothGatt.GATT_SUCCESS, status);
+                latch.countDown();
+            }
+        };
+    }
+
+    private void write(byte[] value, int chunkSize) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        fleet.queue(0).submit(GattOperation.write(SimulatedFleet.CHARACTERISTIC, value,
+                countDown(done)).setChunkSize(chunkSize));
+        SimulatedFleet.await(done);
+    }
+
+    private void requestMtu(int mtu) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        fleet.queue(0).submit(GattOperation.requestMtu(mtu, countDown(done)));
+        SimulatedFleet.await(done);
+    }
+
+    @Test
+    public void onlyHighThroughputAsksForMore() {
+        assertEquals(0, ThroughputProfile.BALANCED.getMtu());
+        assertEquals(0, ThroughputProfile.LOW_POWER.getMtu());
+        assertEquals(LARGE_MTU, ThroughputProfile.HIGH_THROUGHPUT.getMtu());
+        assertTrue(ThroughputProfile.HIGH_THROUGHPUT.isWriteWithoutResponse());
+        assertFalse(ThroughputProfile.BALANCED.isWriteWithoutResponse());
+        assertFalse(ThroughputProfile.LOW_POWER.isWriteWithoutResponse());
+    }
+
+    @Test
+    public void chunkedFrameArrivesIntact() throws InterruptedException {
+        byte[] frame = FrameCodec.encode(FrameCodec.CMD_LED_ON, 1);
+        write(frame, 2);
+        assertTrue(fleet.peripheral(0).isLedOn());
+        assertEquals((frame.length + 1) / 2, fleet.peripheral(0).getWriteCount());
+    }
+
+    @Test
+    public void peripheralCapsTheMtu() throws InterruptedException {
+        requestMtu(512);
+        assertEquals(LARGE_MTU, fleet.peripheral(0).getMtu());
+    }
+
+    /** A burst of frames, chunked by the default MTU and then by a negotiated one. */
+    @Test
+    public void largerMtuNeedsFewerRoundTrips() throws InterruptedException {
+        ByteArrayOutputStream burst = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            byte[] frame = FrameCodec.encode(i % 2 == 0 ? FrameCodec.CMD_LED_OFF
+                    : FrameCodec.CMD_LED_ON, i);
+            burst.write(frame, 0, frame.length);
+        }
+        byte[] value = burst.toByteArray();
+        SimulatedPeripheral peripheral = fleet.peripheral(0);
+
+        write(value, ThroughputProfile.DEFAULT_MTU - ThroughputProfile.ATT_OVERHEAD);
+        long smallWrites = peripheral.getWriteCount();
+        assertTrue(peripheral.isLedOn());
+
+        requestMtu(ThroughputProfile.HIGH_THROUGHPUT.getMtu());
+        int chunkSize = peripheral.getMtu() - ThroughputProfile.ATT_OVERHEAD;
+        write(value, chunkSize);
+        long largeWrites = peripheral.getWriteCount() - smallWrites;
+
+        int length = value.length;
+        int defaultChunk = ThroughputProfile.DEFAULT_MTU - ThroughputProfile.ATT_OVERHEAD;
+        assertEquals((length + defaultChunk - 1) / defaultChunk, smallWrites);
+        assertEquals((length + chunkSize - 1) / chunkSize, largeWrites);
+        assertTrue(largeWrites * 2 < smallWrites);
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.lab_bt;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteCoalescerTest {
+    private static final long LATENCY = 50;
+
+    private SimulatedFleet fleet;
+    private WriteCoalescer coalescer;
+    // "index:status" in completion order, completions arrive on the peripheral's thread.
+    private final List<String> completions = new ArrayList<>();
+    private final CountDownLatch[] done = new CountDownLatch[3];
+
+    @Before
+    public void setUp() throws InterruptedException {
+        fleet = new SimulatedFleet(1, LATENCY);
+        fleet.connect();
+        // Posted tasks never run, the debounce window ends by hand.
+        coalescer = new WriteCoalescer(new Handler(), fleet.queue(0),
+                new WriteCoalescer.Sender() {
+                    @Override
+                    public GattOperation createWrite(byte[] value,
+                                                     GattOperation.Callback callback) {
+                        return GattOperation.write(SimulatedFleet.CHARACTERISTIC, value,
+                                callback);
+                    }
+                });
+        for (int i = 0; i < done.length; i++) {
+            done[i] = new CountDownLatch(1);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        fleet.close();
+    }
+
+    private GattOperation.Callback record(final int index) {
+        return new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation, int status) {
+                synchronized (completions) {
+                    completions.add(index + ":" + status);
+                }
+                done[index].countDown();
+            }
+        };
+    }
+
+    private void submit(int index, int command) {
+        coalescer.submit(FrameCodec.encode(command, index), record(index));
+    }
+
+    private List<String> completions() {
+        synchronized (completions) {
+            return new ArrayList<>(completions);
+        }
+    }
+
+    @Test
+    public void waitsOutTheDebounceWindow() throws InterruptedException {
+        submit(0, FrameCodec.CMD_LED_ON);
+        assertEquals(0, fleet.queue(0).size());
+        assertEquals(0, coalescer.getSentCount());
+
+        coalescer.endDebounce();
+        assertEquals(1, coalescer.getSentCount());
+        SimulatedFleet.await(done[0]);
+        assertEquals(Arrays.asList("0:" + BluetoothGatt.GATT_SUCCESS), completions());
+        assertTrue(fleet.peripheral(0).isLedOn());
+    }
+
+    @Test
+    public void onlyTheLatestValueGoesOut() throws InterruptedException {
+        submit(0, FrameCodec.CMD_LED_ON);
+        submit(1, FrameCodec.CMD_LED_ON);
+        submit(2, FrameCodec.CMD_LED_OFF);
+        assertEquals(Arrays.asList("0:" + GattOperation.STATUS_SUPERSEDED,
+                "1:" + GattOperation.STATUS_SUPERSEDED), completions());
+
+        coalescer.endDebounce();
+        SimulatedFleet.await(done[2]);
+        assertEquals("2:" + BluetoothGatt.GATT_SUCCESS, completions().get(2));
+        assertEquals(3, coalescer.getSubmittedCount());
+        assertEquals(1, coalescer.getSentCount());
+        assertEquals(2, coalescer.getSavedCount());
+        assertEquals(1, fleet.peripheral(0).getWriteCount());
+        assertFalse(fleet.peripheral(0).isLedOn());
+    }
+
+    @Test
+    public void holdsTheNextValueUntilTheLinkIsFree() throws InterruptedException {
+        submit(0, FrameCodec.CMD_LED_ON);
+        coalescer.endDebounce();
+        submit(1, FrameCodec.CMD_LED_ON);
+        submit(2, FrameCodec.CMD_LED_OFF);
+        // Ends the window while the first write may still be in flight, the latest
+        // value then goes out from its completion.
+        coalescer.endDebounce();
+
+        SimulatedFleet.await(done[2]);
+        assertEquals(Arrays.asList("0:" + BluetoothGatt.GATT_SUCCESS,
+                "1:" + GattOperation.STATUS_SUPERSEDED, "2:" + BluetoothGatt.GATT_SUCCESS),
+                sorted(completions()));
+        assertEquals(2, coalescer.getSentCount());
+        assertEquals(1, coalescer.getSavedCount());
+        assertEquals(2, fleet.peripheral(0).getWriteCount());
+        assertFalse(fleet.peripheral(0).isLedOn());
+    }
+
+    @Test
+    public void cancelDropsTheUnsentValue() throws InterruptedException {
+        submit(0, FrameCodec.CMD_LED_ON);
+        coalescer.endDebounce();
+        submit(1, FrameCodec.CMD_LED_ON);
+
+        // What the service does when the link goes down.
+        fleet.queue(0).detach();
+        coalescer.cancel();
+        SimulatedFleet.await(done[0]);
+        assertEquals(Arrays.asList("0:" + GattOperation.STATUS_CANCELLED,
+                "1:" + GattOperation.STATUS_CANCELLED), sorted(completions()));
+
+        coalescer.endDebounce();
+        assertEquals(1, coalescer.getSentCount());
+        assertEquals(0, fleet.queue(0).size());
+    }
+
+    // The two completions of an in-flight write and a superseded one race each other.
+    private static List<String> sorted(List<String> completions) {
+        String[] sorted = completions.toArray(new String[completions.size()]);
+        Arrays.sort(sorted);
+        return Arrays.asList(sorted);
+    }
+}
@@ -1,11 +1,202 @@
 #include <SoftwareSerial.h>
 
+// Frame layout, see FrameCodec.java:
+// 0xA5 | LEN | CMD | SEQ | PAYLOAD... | CRC-8 over LEN..PAYLOAD
+#define SOF 0xA5
+#define MAX_PAYLOAD 32
+
+#define CMD_LED_ON 0x01
+#define CMD_LED_OFF 0x02
+#define CMD_QUERY 0x03
+#define CMD_STREAM_START 0x04
+#define CMD_STREAM_STOP 0x05
+
+#define EVT_ACK 0x80
+#define EVT_LED_STATE 0x81
+#define EVT_AUTH 0x82
+#define EVT_READY 0x83
+#define EVT_SAMPLE 0x84
+
+#define ACK_OK 0x00
+#define ACK_UNKNOWN_COMMAND 0x01
+
+enum {
+  STATE_SOF,
+  STATE_LENGTH,
+  STATE_COMMAND,
+  STATE_SEQUENCE,
+  STATE_PAYLOAD,
+  STATE_CRC
+};
 
 SoftwareSerial BT(10, 11); // RX, TX
-char val;
 boolean ledOn;
 
-void setup()  
+byte rxState = STATE_SOF;
+byte rxLength;
+byte rxCommand;
+byte rxSequence;
+byte rxPosition;
+byte rxCrc;
+byte rxPayload[MAX_PAYLOAD];
+
+byte txSequence;
+
+// Operator input from the serial monitor, one line at a time.
+char lineBuffer[MAX_PAYLOAD + 8];
+byte lineLength;
+
+boolean streaming;
+unsigned int streamInterval;
+unsigned long lastSample;
+
+byte crc8(byte crc, byte b)
+{
+  crc ^= b;
+  for (byte i = 0; i < 8; i++) {
+    crc = (crc & 0x80) ? (crc << 1) ^ 0x07 : crc << 1;
+  }
+  return crc;
+}
+
+void sendFrame(byte command, byte sequence, const byte *payload, byte length)
+{
+  byte crc = 0;
+  BT.write(SOF);
+  BT.write(length);
+  crc = crc8(crc, length);
+  BT.write(command);
+  crc = crc8(crc, command);
+  BT.write(sequence);
+  crc = crc8(crc, sequence);
+  for (byte i = 0; i < length; i++) {
+    BT.write(payload[i]);
+    crc = crc8(crc, payload[i]);
+  }
+  BT.write(crc);
+}
+
+void sendAck(byte sequence, byte status)
+{
+  sendFrame(EVT_ACK, sequence, &status, 1);
+}
+
+void sendLedState()
+{
+  byte state = ledOn ? 1 : 0;
+  sendFrame(EVT_LED_STATE, txSequence++, &state, 1);
+}
+
+// millis() and A0, both little endian
+void sendSample()
+{
+  unsigned long now = millis();
+  int value = analogRead(A0);
+  byte sample[6] = {
+    (byte) now, (byte) (now >> 8), (byte) (now >> 16), (byte) (now >> 24),
+    (byte) value, (byte) (value >> 8)
+  };
+  sendFrame(EVT_SAMPLE, txSequence++, sample, sizeof(sample));
+  lastSample = now;
+}
+
+// "Auth" grants this phone access, optionally followed by a token the phone keeps;
+// "Ready" tells it the board is listening. Both go out as frames like everything else.
+void handleLine()
+{
+  lineBuffer[lineLength] = 0;
+  if (strncmp(lineBuffer, "Auth", 4) == 0 && (lineLength == 4 || lineBuffer[4] == ' ')) {
+    byte start = (lineLength > 4) ? 5 : 4;
+    sendFrame(EVT_AUTH, txSequence++, (const byte *) lineBuffer + start, lineLength - start);
+    Serial.println("Sent Auth");
+  } else if (strcmp(lineBuffer, "Ready") == 0) {
+    sendFrame(EVT_READY, txSequence++, NULL, 0);
+    Serial.println("Sent Ready");
+  } else if (lineLength > 0) {
+    Serial.print("Unknown: ");
+    Serial.println(lineBuffer);
+  }
+  lineLength = 0;
+}
+
+void readLine(char c)
+{
+  if (c == '\r' || c == '\n') {
+    handleLine();
+  } else if (lineLength < MAX_PAYLOAD + 5) {
+    lineBuffer[lineLength++] = c;
+  }
+}
+
+void handleFrame(byte command, byte sequence, const byte *payload, byte length)
+{
+  Serial.print("CMD ");
+  Serial.print(command, HEX);
+  Serial.print(" SEQ ");
+  Serial.println(sequence);
+
+  if (command == CMD_LED_ON) {
+    digitalWrite(13, HIGH);
+    ledOn = true;
+  } else if (command == CMD_LED_OFF) {
+    digitalWrite(13, LOW);
+    ledOn = false;
+  } else if (command == CMD_STREAM_START) {
+    streamInterval = (length >= 2) ? (payload[0] | (payload[1] << 8)) : 0;
+    streaming = true;
+    sendAck(sequence, ACK_OK);
+    return;
+  } else if (command == CMD_STREAM_STOP) {
+    streaming = false;
+    sendAck(sequence, ACK_OK);
+    return;
+  } else if (command != CMD_QUERY) {
+    sendAck(sequence, ACK_UNKNOWN_COMMAND);
+    return;
+  }
+  sendAck(sequence, ACK_OK);
+  sendLedState();
+}
+
+void decode(byte b)
+{
+  switch (rxState) {
+    case STATE_SOF:
+      if (b == SOF) rxState = STATE_LENGTH;
+      break;
+    case STATE_LENGTH:
+      if (b > MAX_PAYLOAD) {
+        rxState = (b == SOF) ? STATE_LENGTH : STATE_SOF;
+        break;
+      }
+      rxLength = b;
+      rxPosition = 0;
+      rxCrc = crc8(0, b);
+      rxState = STATE_COMMAND;
+      break;
+    case STATE_COMMAND:
+      rxCommand = b;
+      rxCrc = crc8(rxCrc, b);
+      rxState = STATE_SEQUENCE;
+      break;
+    case STATE_SEQUENCE:
+      rxSequence = b;
+      rxCrc = crc8(rxCrc, b);
+      rxState = (rxLength == 0) ? STATE_CRC : STATE_PAYLOAD;
+      break;
+    case STATE_PAYLOAD:
+      rxPayload[rxPosition++] = b;
+      rxCrc = crc8(rxCrc, b);
+      if (rxPosition == rxLength) rxState = STATE_CRC;
+      break;
+    case STATE_CRC:
+      rxState = STATE_SOF;
+      if (b == rxCrc) handleFrame(rxCommand, rxSequence, rxPayload, rxLength);
+      break;
+  }
+}
+
+void setup()
 {
   // Open serial communications and wait for port to open:
   Serial.begin(9600);
@@ -14,35 +205,23 @@ void setup()
 
   // set the data rate for the SoftwareSerial port
   BT.begin(9600);
-  
+
   ledOn = false;
-  BT.print("Off");
+  sendLedState();
 }
 
 void loop() // run over and over
-{ 
-  if (Serial.available()) {
-    val = Serial.read();
-    BT.print(val);
-  }
-  
-  if (BT.available()) {
-    val = BT.read();
-    Serial.print(val);
-    
-    if (val == 'O') {
-      digitalWrite(13, HIGH);
-      ledOn = true;
-      BT.print("On");
-    } else if (val == 'X') {
-      digitalWrite(13, LOW);
-      ledOn = false;
-      BT.print("Off");
-    } else if (val == '?') {
-      if (ledOn) BT.print("On");
-      else BT.print("Off");
-    }
+{
+  while (Serial.available()) {
+    readLine(Serial.read());
   }
-}
 
+  while (BT.available()) {
+    decode(BT.read());
+  }
 
+  // With an interval of 0 the serial link to the HM-10 is the only limit.
+  if (streaming && millis() - lastSample >= streamInterval) {
+    sendSample();
+  }
+}
@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * Stand-in for the framework class so the app's queue runs on a desktop JVM. Both
+ * clocks count from an arbitrary origin, like the real ones count from boot.
+ */
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long elapsedRealtimeNanos() {
+        return System.nanoTime();
+    }
+}
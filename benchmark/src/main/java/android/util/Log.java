@@ -0,0 +1,15 @@
+package android.util;
+
+/**
+ * Stand-in for the framework class so the app's queue runs on a desktop JVM, only
+ * the calls the benchmarked classes make. Warnings go to standard error.
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static int w(String tag, String msg) {
+        System.err.println("W/" + tag + ": " + msg);
+        return 0;
+    }
+}
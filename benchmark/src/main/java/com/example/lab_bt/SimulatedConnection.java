@@ -0,0 +1,173 @@
+package com.example.lab_bt;
+
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulated board driven the way {@link BluetoothLeService} drives a connection:
+ * link callbacks move to a handler thread through {@link HandlerLinkCallback}, every
+ * request goes through a {@link GattOperationQueue}, and notifications are decoded on
+ * that thread. Each call blocks the benchmark thread until the queue has the answer.
+ */
+public class SimulatedConnection implements Link.Callback {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID HM10 = UUID.fromString(GattAttribute.HM10_CHARACTERISTIC);
+    private static final long TIMEOUT = 10;
+
+    private final LoopbackTransport transport = new LoopbackTransport();
+    private final ExecutorScheduler scheduler = new ExecutorScheduler();
+    private final GattOperationQueue queue = new GattOperationQueue(scheduler);
+    private final HandlerLinkCallback callback = new HandlerLinkCallback(scheduler, this);
+    private final Semaphore linkEvents = new Semaphore(0);
+    private final Semaphore frames = new Semaphore(0);
+    private final Outcome outcome = new Outcome();
+    private final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener() {
+        @Override
+        public void onFrame(int command, int sequence, byte[] payload, int length) {
+            if (command == awaitedCommand) {
+                frames.release();
+            }
+        }
+    });
+
+    private Link link;
+    private volatile int awaitedCommand = -1;
+    private volatile int mtu = ThroughputProfile.DEFAULT_MTU;
+
+    private static class Outcome implements GattOperation.Callback {
+        private final Semaphore done = new Semaphore(0);
+        private volatile int status;
+
+        @Override
+        public void onComplete(GattOperation operation, int status) {
+            this.status = status;
+            done.release();
+        }
+
+        int await(int count) throws InterruptedException {
+            SimulatedConnection.await(done, count);
+            return status;
+        }
+    }
+
+    public SimulatedConnection(SimulatedPeripheral peripheral) {
+        transport.addPeripheral(ADDRESS, peripheral);
+    }
+
+    /**
+     * Connects, discovers the services and switches on notifications, which is when
+     * the service reports a board as ready.
+     */
+    public void connect() throws InterruptedException {
+        link = transport.connect(ADDRESS, false, callback);
+        await(linkEvents, 1);
+        link.discoverServices();
+        await(linkEvents, 1);
+        queue.attach(link);
+        queue.submit(GattOperation.setNotification(HM10, true, outcome));
+        check(outcome.await(1));
+    }
+
+    /** Returns the MTU the board settled on. */
+    public int requestMtu(int requested) throws InterruptedException {
+        queue.submit(GattOperation.requestMtu(requested, outcome));
+        check(outcome.await(1));
+        return mtu;
+    }
+
+    /** One write of {@code value} in pieces of at most {@code chunkSize}, with retries. */
+    public int write(byte[] value, int chunkSize, int retries) throws InterruptedException {
+        queue.submit(GattOperation.write(HM10, value, outcome)
+                .setChunkSize(chunkSize).setRetries(retries));
+        return outcome.await(1);
+    }
+
+    /** Every value queued at once, the queue issues each as soon as the last completes. */
+    public void writeAll(byte[][] values, int chunkSize) throws InterruptedException {
+        for (byte[] value : values) {
+            queue.submit(GattOperation.write(HM10, value, outcome).setChunkSize(chunkSize));
+        }
+        outcome.await(values.length);
+    }
+
+    /**
+     * Writes {@code frame} and waits until the board's answer with {@code command} has
+     * been decoded, the round trip a user sees for a command.
+     */
+    public void roundTrip(byte[] frame, int command) throws InterruptedException {
+        awaitedCommand = command;
+        queue.submit(GattOperation.write(HM10, frame, outcome));
+        check(outcome.await(1));
+        await(frames, 1);
+    }
+
+    public void disconnect() throws InterruptedException {
+        queue.detach();
+        link.disconnect();
+        await(linkEvents, 1);
+        link.close();
+    }
+
+    /** Stops the handler thread, the peripheral is the caller's to close. */
+    public void close() {
+        scheduler.shutdown();
+    }
+
+    private static void check(int status) {
+        if (status != Link.STATUS_SUCCESS) {
+            throw new IllegalStateException("GATT operation failed with " + status + ".");
+        }
+    }
+
+    private static void await(Semaphore semaphore, int count) throws InterruptedException {
+        if (!semaphore.tryAcquire(count, TIMEOUT, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("No answer from the board.");
+        }
+    }
+
+    @Override
+    public void onConnected(Link link) {
+        linkEvents.release();
+    }
+
+    @Override
+    public void onDisconnected(Link link, int status) {
+        queue.detach();
+        linkEvents.release();
+    }
+
+    @Override
+    public void onServicesDiscovered(Link link, int status) {
+        linkEvents.release();
+    }
+
+    @Override
+    public void onCharacteristicRead(Link link, UUID charUuid, byte[] value, int status,
+                                     int token) {
+        queue.onComplete(GattOperation.Type.READ, status, token);
+    }
+
+    @Override
+    public void onCharacteristicWrite(Link link, UUID charUuid, int status, int token) {
+        queue.onComplete(GattOperation.Type.WRITE, status, token);
+    }
+
+    @Override
+    public void onCharacteristicChanged(Link link, UUID charUuid, byte[] value) {
+        decoder.feed(value, 0, value.length);
+    }
+
+    @Override
+    public void onNotificationChanged(Link link, UUID charUuid, int status, int token) {
+        queue.onComplete(GattOperation.Type.SET_NOTIFICATION, status, token);
+    }
+
+    @Override
+    public void onMtuChanged(Link link, int mtu, int status, int token) {
+        if (status == Link.STATUS_SUCCESS) {
+            this.mtu = mtu;
+        }
+        queue.onComplete(GattOperation.Type.REQUEST_MTU, status, token);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.lab_bt.benchmark;
+
+import com.example.lab_bt.SimulatedConnection;
+import com.example.lab_bt.SimulatedPeripheral;
+import com.example.lab_bt.ThroughputProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything the service does before a board is ready for its first command, through
+ * the operation queue and handler hand-off the service uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConnectionBenchmark {
+    /** One-way link delay in milliseconds, 0 leaves only the simulation's own cost. */
+    @Param({"0", "2"})
+    public long latency;
+
+    private SimulatedPeripheral peripheral;
+    private SimulatedConnection connection;
+
+    @Setup
+    public void setUp() {
+        peripheral = new SimulatedPeripheral();
+        peripheral.setLatency(latency);
+        peripheral.setMaxMtu(ThroughputProfile.HIGH_THROUGHPUT.getMtu());
+        connection = new SimulatedConnection(peripheral);
+    }
+
+    @TearDown
+    public void tearDown() {
+        connection.close();
+        peripheral.close();
+    }
+
+    /** Connection, discovery and notification setup. */
+    @Benchmark
+    public void connect() throws InterruptedException {
+        connection.connect();
+        connection.disconnect();
+    }
+
+    /** As above plus the MTU exchange of {@link ThroughputProfile#HIGH_THROUGHPUT}. */
+    @Benchmark
+    public int connectAndExchangeMtu() throws InterruptedException {
+        connection.connect();
+        int mtu = connection.requestMtu(ThroughputProfile.HIGH_THROUGHPUT.getMtu());
+        connection.disconnect();
+        return mtu;
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.lab_bt.benchmark;
+
+import com.example.lab_bt.FrameCodec;
+import com.example.lab_bt.FrameDecoder;
+import com.example.lab_bt.NotificationRingBuffer;
+import com.example.lab_bt.SimulatedConnection;
+import com.example.lab_bt.SimulatedPeripheral;
+import com.example.lab_bt.ThroughputProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The receiving side of a sample stream: notifications cut at the MTU decoded back
+ * into frames, and payloads handed from the GATT thread to a consumer through the
+ * ring buffer. Both run without a link, the simulated board is paced at 9600 baud
+ * and would only measure itself. The query round trip runs the whole path once, from
+ * the queued write to the decoded answer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NotificationBenchmark {
+    private static final int FRAMES = 1000;
+    private static final int SAMPLE = 6;
+
+    @State(Scope.Thread)
+    public static class Stream {
+        /** The default MTU and the one {@link ThroughputProfile#HIGH_THROUGHPUT} asks for. */
+        @Param({"23", "247"})
+        public int mtu;
+
+        byte[][] notifications;
+        FrameDecoder decoder;
+        long samples;
+
+        @Setup
+        public void setUp() {
+            byte[] stream = new byte[FRAMES * (SAMPLE + FrameCodec.OVERHEAD)];
+            byte[] sample = new byte[SAMPLE];
+            int length = 0;
+            for (int i = 0; i < FRAMES; i++) {
+                sample[0] = (byte) i;
+                length += FrameCodec.encode(FrameCodec.EVT_SAMPLE, i, sample, 0, SAMPLE,
+                        stream, length);
+            }
+            int chunkSize = mtu - ThroughputProfile.ATT_OVERHEAD;
+            notifications = new byte[(length + chunkSize - 1) / chunkSize][];
+            for (int i = 0; i < notifications.length; i++) {
+                int offset = i * chunkSize;
+                notifications[i] = new byte[Math.min(chunkSize, length - offset)];
+                System.arraycopy(stream, offset, notifications[i], 0, notifications[i].length);
+            }
+            decoder = new FrameDecoder(new FrameDecoder.Listener() {
+                @Override
+                public void onFrame(int command, int sequence, byte[] payload, int length) {
+                    samples += payload[0];
+                }
+            });
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Board {
+        /** One-way link delay in milliseconds. */
+        @Param({"0", "2"})
+        public long latency;
+
+        SimulatedPeripheral peripheral;
+        SimulatedConnection connection;
+        final byte[] query = FrameCodec.encode(FrameCodec.CMD_QUERY, 0);
+
+        @Setup
+        public void setUp() throws InterruptedException {
+            peripheral = new SimulatedPeripheral();
+            peripheral.setLatency(latency);
+            connection = new SimulatedConnection(peripheral);
+            connection.connect();
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            connection.disconnect();
+            connection.close();
+            peripheral.close();
+        }
+    }
+
+    @State(Scope.Group)
+    public static class Ring {
+        final NotificationRingBuffer buffer = new NotificationRingBuffer(256, 20);
+        final byte[] payload = new byte[SAMPLE + FrameCodec.OVERHEAD];
+    }
+
+    @State(Scope.Thread)
+    public static class Consumer implements NotificationRingBuffer.Consumer {
+        long bytes;
+
+        @Override
+        public void onPayload(long timestamp, byte[] data, int length) {
+            bytes += length;
+        }
+    }
+
+    /** Per frame, fed in notification-sized pieces as they arrive. */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long decode(Stream stream) {
+        for (byte[] notification : stream.notifications) {
+            stream.decoder.feed(notification, 0, notification.length);
+        }
+        return stream.samples;
+    }
+
+    /** A query written through the queue until the board's LED state is decoded. */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void query(Board board) throws InterruptedException {
+        board.connection.roundTrip(board.query, FrameCodec.EVT_LED_STATE);
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public boolean offer(Ring ring) {
+        return ring.buffer.offer(0, ring.payload, ring.payload.length);
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public int drain(Ring ring, Consumer consumer) {
+        return ring.buffer.drain(consumer, 64);
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.lab_bt.benchmark;
+
+import com.example.lab_bt.FrameCodec;
+import com.example.lab_bt.SimulatedConnection;
+import com.example.lab_bt.SimulatedPeripheral;
+import com.example.lab_bt.ThroughputProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commands written to a connected board through the operation queue, chunked by the
+ * MTU and acknowledged one write at a time as the HM-10 characteristic requires.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WriteBenchmark {
+    private static final int BURST_FRAMES = 100;
+    private static final int RETRIES = 10;
+
+    /** One-way link delay in milliseconds. */
+    @Param({"0", "2"})
+    public long latency;
+
+    /** The default MTU and the one {@link ThroughputProfile#HIGH_THROUGHPUT} asks for. */
+    @Param({"23", "247"})
+    public int mtu;
+
+    /** Share of writes the board fails, each one retried by the queue. */
+    @Param({"0", "0.1"})
+    public double lossRate;
+
+    private SimulatedPeripheral peripheral;
+    private SimulatedConnection connection;
+    private int chunkSize;
+    private byte[] command;
+    private byte[] burst;
+    private byte[][] commands;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        peripheral = new SimulatedPeripheral();
+        peripheral.setLatency(latency);
+        peripheral.setMaxMtu(mtu);
+        connection = new SimulatedConnection(peripheral);
+        connection.connect();
+        chunkSize = connection.requestMtu(mtu) - ThroughputProfile.ATT_OVERHEAD;
+        // Only now, so the connection itself never fails.
+        peripheral.setLossRate(lossRate);
+
+        command = FrameCodec.encode(FrameCodec.CMD_LED_ON, 0);
+        burst = new byte[BURST_FRAMES * FrameCodec.OVERHEAD];
+        commands = new byte[BURST_FRAMES][];
+        for (int i = 0; i < BURST_FRAMES; i++) {
+            int code = i % 2 == 0 ? FrameCodec.CMD_LED_OFF : FrameCodec.CMD_LED_ON;
+            FrameCodec.encode(code, i, null, 0, 0, burst, i * FrameCodec.OVERHEAD);
+            commands[i] = FrameCodec.encode(code, i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        peripheral.setLossRate(0);
+        connection.disconnect();
+        connection.close();
+        peripheral.close();
+    }
+
+    /** One LED command, a single write at any MTU. */
+    @Benchmark
+    public int command() throws InterruptedException {
+        return connection.write(command, chunkSize, RETRIES);
+    }
+
+    /** A hundred commands sent as one value, split into as many writes as the MTU needs. */
+    @Benchmark
+    public int burst() throws InterruptedException {
+        return connection.write(burst, chunkSize, RETRIES);
+    }
+
+    /** A hundred commands submitted back to back, each its own queued operation. */
+    @Benchmark
+    public void pipelined() throws InterruptedException {
+        connection.writeAll(commands, chunkSize);
+    }
+}